@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.io.File;
+import java.net.URI;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.xml.signature.SignableSAMLObject;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmarks of STSTokenValidator: validate() end-to-end and its parts in
+ * isolation. Token is made by STSTokenFixture from testToken.xml: lifetime
+ * starts at setup, extraAttributes generated saml:Attribute elements and
+ * one attribute of padding characters are added, and the assertion is
+ * signed with the benchmark key, so every parameter combination measures
+ * successful validation. Setup fails if the token isn't valid.
+ *
+ * validate() runs with signature cache switched off, as the authenticator
+ * does with replay check on (default). validateCachedSignature() measures
+ * the signature cache, which only callers without replay check can hit.
+ *
+ * Run from the benchmarks directory, e.g. with allocation profiling:
+ * java -jar target/benchmarks.jar STSTokenValidatorBenchmark -prof gc
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class STSTokenValidatorBenchmark {
+	/**
+	 * trust - "certificate" checks token certificate against trusted
+	 * thumbprint, "dn" checks issuer and subject DNs
+	 */
+	@Param({ "certificate", "dn" })
+	public String trust;
+	/**
+	 * extraAttributes - number of generated attributes added to the token
+	 */
+	@Param({ "0", "20", "200" })
+	public int extraAttributes;
+	/**
+	 * padding - length of the generated padding attribute value, 0 - none
+	 */
+	@Param({ "0", "65536" })
+	public int padding;
+
+	private static final String CONTEXT = "c6ibufXPEnVbU9hYc6rplyhjtEpWHEKWuMAJ8ryk4f";
+	private static final String ISSUER = "http://www.latvija.lv/sts";
+	private static final String AUDIENCE = "https://pakalpojumi.carnikava.lv/prod";
+	/**
+	 * LIFETIME - lifetime of the fixture token, longer than the whole run
+	 */
+	private static final long LIFETIME = 24 * 60 * 60 * 1000L;
+	private static final int MAX_CLOCK_SKEW = 60 * 1000;
+
+	private String token;
+	private STSTokenValidator validator;
+	/**
+	 * cachingValidator - validator with signature cache, as with replay_cache=0
+	 */
+	private STSTokenValidator cachingValidator;
+	private Document document;
+	private SignableSAMLObject samlToken;
+	private Instant notBefore;
+	private Instant notOnOrAfter;
+	private final STSErrorCollector errorCollector = new STSErrorCollector();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		STSBootstrap.bootstrap();
+		STSTokenFixture fixture = new STSTokenFixture();
+		X509Certificate certificate = fixture.getCertificate();
+		token = fixture.create(FileUtils.readFileToString(new File(
+				dataDir(), "testToken.xml")), extraAttributes, padding,
+				LIFETIME);
+		List<URI> audienceUris = Collections.singletonList(new URI(AUDIENCE));
+		validator = createValidator(certificate, audienceUris);
+		validator.setSignatureCacheEnabled(false);
+		cachingValidator = createValidator(certificate, audienceUris);
+		STSValidationResult result = validator.check(new STSParsedToken(
+				token), CONTEXT);
+		if (!result.isValid())
+			throw new IllegalStateException("Fixture token is not valid: "
+					+ result);
+		cachingValidator.check(new STSParsedToken(token), CONTEXT);
+		document = STSParsedToken.getDocument(token);
+		samlToken = STSParsedToken.getSamlTokenFromRstr(document);
+		notBefore = new Instant().minus(60000);
+		notOnOrAfter = new Instant().plus(60000);
+	}
+
+	private STSTokenValidator createValidator(X509Certificate certificate,
+			List<URI> audienceUris) throws Exception {
+		if ("certificate".equals(trust))
+			return new STSTokenValidator(Collections.<String> emptyList(),
+					audienceUris, ISSUER, null, ISSUER, certificate, true,
+					MAX_CLOCK_SKEW);
+		return new STSTokenValidator(Collections.singletonList(certificate
+				.getSubjectDN().getName()), audienceUris, ISSUER, certificate
+				.getIssuerDN().getName(), ISSUER, (X509Certificate) null,
+				true, MAX_CLOCK_SKEW);
+	}
+
+	/**
+	 * validate() as on login: signature cache is off, signature is always
+	 * verified
+	 */
+	@Benchmark
+	public List<STSClaim> validate() throws Exception {
+		errorCollector.clearErrorList();
+		return validator.validate(token, CONTEXT, errorCollector);
+	}
+
+	/**
+	 * validate() of a token whose signature was already verified, only
+	 * possible with replay_cache=0 or direct validator callers
+	 */
+	@Benchmark
+	public List<STSClaim> validateCachedSignature() throws Exception {
+		errorCollector.clearErrorList();
+		return cachingValidator.validate(token, CONTEXT, errorCollector);
+	}
+
+	/**
+	 * StAX pre-scan of the envelope values
+	 */
+	@Benchmark
+	public Object prescan() throws Exception {
+		return new STSParsedToken(token);
+	}
+
+	/**
+	 * DOM parsing with pooled DocumentBuilder
+	 */
+	@Benchmark
+	public Document parse() throws Exception {
+		return STSParsedToken.getDocument(token);
+	}
+
+	@Benchmark
+	public SignableSAMLObject getSamlTokenFromRstr() throws Exception {
+		return STSParsedToken.getSamlTokenFromRstr(document);
+	}
+
+	/**
+	 * signature verification without signature cache
+	 */
+	@Benchmark
+	public boolean validateToken() throws Exception {
+		return validator.validateToken(samlToken);
+	}
+
+	@Benchmark
+	public List<STSClaim> getClaims() throws Exception {
+		return STSTokenValidator
+				.getClaims((org.opensaml.saml1.core.Assertion) samlToken);
+	}
+
+	@Benchmark
+	public boolean checkExpiration() {
+		return validator.checkExpiration(notBefore, notOnOrAfter);
+	}
+
+	/**
+	 * dataDir() - project directory with testToken.xml, benchmarks are run
+	 * from the benchmarks directory or from the project directory
+	 */
+	private static File dataDir() {
+		File dir = new File(System.getProperty("sts.benchmark.dir", ".."));
+		if (new File(dir, "testToken.xml").isFile())
+			return dir;
+		return new File(".");
+	}
+}
@@ -1,33 +1,285 @@
 package com.xwiki.authentication.sts;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.xpn.xwiki.XWikiContext;
 
 /**
- * This class have only one method which is loading certificate from filename in 
- * xwiki.authentication.sts.cert_filename METHADATA. 
+ * This class have only one method which is loading certificate from filename in
+ * xwiki.authentication.sts.cert_filename METHADATA.
  * It is using to load - serificate from file opposite to first implemented method,
  * which was loading certificate from metadata. It trays to find filename stored in
  * xwiki.authentication.sts.cert_filename and then to load it. If succeed - returns X509Certificate
  * else returns null value. Class extends XWikiSTSAuthenticatorProperties to add getCertificate
  * to standart implamentation.
- * 
+ *
+ * Loaded certificate is kept in memory. File modification time and size are checked
+ * not more often than every CERT_CHECK_INTERVAL milliseconds, and certificate is
+ * loaded again only if they have changed, so certificate can be rotated without restart.
+ * getTrustStore() returns all trusted certificates from xwiki.authentication.sts.trust_store
+ * (directory or keystore) in the same way, or the single certificate if trust store isn't set.
+ * If configured trust store or certificate can't be read or has no certificates, the last
+ * loaded one is kept, or no certificate is trusted, so logins are rejected and not checked
+ * by issuer DN.
+ *
  * @version 1.0
  */
 
 class Props extends XWikiSTSAuthenticatorProperties {
+	/**
+	 * CERT_CHECK_INTERVAL - how often certificate file is checked for changes
+	 */
+	static final long CERT_CHECK_INTERVAL = 10 * 1000L;
+
+	/**
+	 * Loaded value and state of the file it was loaded from
+	 */
+	private static final class Loaded<T> {
+		final String filename;
+		final long lastModified;
+		final long length;
+		final long checkedAt;
+		final T value;
+
+		Loaded(String filename, long lastModified, long length,
+				long checkedAt, T value) {
+			this.filename = filename;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.checkedAt = checkedAt;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * certState - last loaded certificate, replaced as a whole
+	 */
+	private volatile Loaded<X509Certificate> certState;
+	/**
+	 * trustStoreState - last loaded trust store, replaced as a whole
+	 */
+	private volatile Loaded<STSTrustStore> trustStoreState;
+	/**
+	 * lastGoodTrustStore - last trust store loaded with certificates, used
+	 * while trust store files are broken. Kept by reloadCertificate().
+	 */
+	private volatile Loaded<STSTrustStore> lastGoodTrustStore;
+	/**
+	 * certTrustStore - trust store made of the last good certificate, kept
+	 * by reloadCertificate() and used while certificate file is broken
+	 */
+	private volatile Loaded<STSTrustStore> certTrustStore;
+	/**
+	 * certHits - certificate and trust store requests served from memory
+	 */
+	private final AtomicLong certHits = new AtomicLong();
+	/**
+	 * certLoads - certificate and trust store loads from files
+	 */
+	private final AtomicLong certLoads = new AtomicLong();
 
 	X509Certificate getCertificate(XWikiContext context) {
-	    /**
-		* filename - String contaings loaded from "xwiki.authentication.sts.cert_filename" parametr
-		*/
-		String filename = null;
+		return getCertificate(getCertFilename(context));
+	}
+
+	/**
+	 * getCertificate(String filename) - certificate from the given file,
+	 * loaded again only if the file is changed
+	 *
+	 * @param filename String - certificate file name, can be null
+	 * @return X509Certificate or null if file is not set or not valid
+	 */
+	X509Certificate getCertificate(String filename) {
+		if (filename == null)
+			return null;
+		long now = System.currentTimeMillis();
+		Loaded<X509Certificate> state = certState;
+		if (state != null && filename.equals(state.filename)
+				&& now - state.checkedAt < CERT_CHECK_INTERVAL) {
+			certHits.incrementAndGet();
+			return state.value;
+		}
+		File file = new File(filename);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (state != null && filename.equals(state.filename)
+				&& lastModified == state.lastModified && length == state.length) {
+			certState = new Loaded<X509Certificate>(filename, lastModified,
+					length, now, state.value);
+			certHits.incrementAndGet();
+			return state.value;
+		}
+		certLoads.incrementAndGet();
+		X509Certificate cert = loadCertificate(filename);
+		certState = new Loaded<X509Certificate>(filename, lastModified, length,
+				now, cert);
+		return cert;
+	}
+
+	/**
+	 * getTrustStore(XWikiContext context) - trusted certificates from
+	 * xwiki.authentication.sts.trust_store directory or keystore. If it isn't
+	 * set, trust store has only the certificate from cert_filename. Returns
+	 * the same instance while files are not changed.
+	 *
+	 * @param context XWikiContext
+	 * @return STSTrustStore - last good or empty store if trust store or
+	 *         certificate is set but broken, null if neither is set
+	 */
+	STSTrustStore getTrustStore(XWikiContext context) {
+		return getTrustStore(getTrustStore(context), getTrustStoreType(context),
+				getTrustStorePassword(context), getCertFilename(context));
+	}
+
+	/**
+	 * getTrustStore(String path, String type, String password, String certFilename) -
+	 * trusted certificates from the given directory or keystore, or from the
+	 * single certificate file if path isn't set
+	 *
+	 * @param path String - directory or keystore, can be null
+	 * @param type String - keystore type, can be null
+	 * @param password String - keystore password, can be null
+	 * @param certFilename String - single certificate file, can be null
+	 * @return STSTrustStore - last good or empty store if trust store or
+	 *         certificate is set but broken, null if neither is set
+	 */
+	STSTrustStore getTrustStore(String path, String type, String password,
+			String certFilename) {
+		if (path == null || path.length() == 0)
+			return getCertificateTrustStore(certFilename);
+		long now = System.currentTimeMillis();
+		Loaded<STSTrustStore> state = trustStoreState;
+		if (state != null && path.equals(state.filename)
+				&& now - state.checkedAt < CERT_CHECK_INTERVAL) {
+			certHits.incrementAndGet();
+			return state.value;
+		}
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		File[] files = file.isDirectory() ? file.listFiles() : null;
+		if (files != null) {
+			// directory mtime doesn't change when file is overwritten
+			length = files.length;
+			for (File f : files) {
+				lastModified = Math.max(lastModified, f.lastModified());
+				length += f.length();
+			}
+		}
+		if (state != null && path.equals(state.filename)
+				&& lastModified == state.lastModified && length == state.length) {
+			trustStoreState = new Loaded<STSTrustStore>(path, lastModified,
+					length, now, state.value);
+			certHits.incrementAndGet();
+			return state.value;
+		}
+		certLoads.incrementAndGet();
+		STSTrustStore store = null;
+		try {
+			store = STSTrustStore.load(path, type, password);
+			log.debug("XWikiSTSAuthenticatorProperties: " + store.size()
+					+ " trusted certificates loaded from '" + path + "'");
+			if (store.isEmpty()) {
+				log.error("XWikiSTSAuthenticatorProperties: no certificates in trust store '"
+						+ path + "'");
+				store = null;
+			}
+		} catch (IOException e) {
+			log.error("XWikiSTSAuthenticatorProperties: could not read trust store '"
+					+ path + "': " + e);
+		} catch (GeneralSecurityException e) {
+			log.error("XWikiSTSAuthenticatorProperties: could not load trust store '"
+					+ path + "': " + e);
+		}
+		if (store != null) {
+			lastGoodTrustStore = new Loaded<STSTrustStore>(path,
+					lastModified, length, now, store);
+		} else {
+			// fail closed: never fall back to issuer and DN checks
+			Loaded<STSTrustStore> good = lastGoodTrustStore;
+			if (good != null && path.equals(good.filename)) {
+				log.error("XWikiSTSAuthenticatorProperties: keeping "
+						+ good.value.size()
+						+ " previously loaded certificates of '" + path + "'");
+				store = good.value;
+			} else {
+				log.error("XWikiSTSAuthenticatorProperties: no certificates are trusted, STS logins are rejected");
+				store = STSTrustStore.NONE;
+			}
+		}
+		trustStoreState = new Loaded<STSTrustStore>(path, lastModified,
+				length, now, store);
+		return store;
+	}
+
+	private STSTrustStore getCertificateTrustStore(String certFilename) {
+		if (certFilename == null || certFilename.length() == 0)
+			return null;
+		X509Certificate cert = getCertificate(certFilename);
+		Loaded<STSTrustStore> state = certTrustStore;
+		boolean sameFile = state != null
+				&& certFilename.equals(state.filename);
+		if (cert == null) {
+			// fail closed: never fall back to issuer and DN checks
+			return sameFile ? state.value : STSTrustStore.NONE;
+		}
+		if (sameFile && state.value.getCertificates().iterator().next() == cert)
+			return state.value;
+		STSTrustStore store;
+		try {
+			store = STSTrustStore.fromCertificate(cert);
+		} catch (CertificateException e) {
+			log.error("XWikiSTSAuthenticatorProperties: could not encode cert: "
+					+ e);
+			return sameFile ? state.value : STSTrustStore.NONE;
+		}
+		certTrustStore = new Loaded<STSTrustStore>(certFilename, 0, 0, 0,
+				store);
+		return store;
+	}
+
+	/**
+	 * reloadCertificate() - forgets loaded certificates, so they are loaded
+	 * from files on the next getCertificate() or getTrustStore() call
+	 */
+	void reloadCertificate() {
+		certState = null;
+		trustStoreState = null;
+	}
+
+	/**
+	 * getLoadedCertificateCount() - number of trusted certificates currently
+	 * kept in memory
+	 *
+	 * @return int
+	 */
+	int getLoadedCertificateCount() {
+		Loaded<STSTrustStore> state = trustStoreState;
+		if (state != null && state.value != null)
+			return state.value.size();
+		Loaded<STSTrustStore> cert = certTrustStore;
+		if (cert != null)
+			return cert.value.size();
+		return certState != null && certState.value != null ? 1 : 0;
+	}
+
+	long getCertHits() {
+		return certHits.get();
+	}
+
+	long getCertLoads() {
+		return certLoads.get();
+	}
+
+	private X509Certificate loadCertificate(String filename) {
 		/**
 		* File Input stream - to read our certificate
 		*/
@@ -37,8 +289,6 @@ class Props extends XWikiSTSAuthenticatorProperties {
 		*/
 		X509Certificate cert = null;
 		try {
-			filename = context.getWiki().Param(
-					"xwiki.authentication.sts.cert_filename");
 			fr = new FileInputStream(filename);
 			CertificateFactory cf;
 			cf = CertificateFactory.getInstance("X509");
@@ -47,13 +297,11 @@ class Props extends XWikiSTSAuthenticatorProperties {
 			cert = (X509Certificate) cf.generateCertificate(fr);
 
 		} catch (FileNotFoundException e) {
-			log.debug("\n");
-			log.debug("XWikiSTSAuthenticatorProperties: cert '" + filename
-					+ "' not found: " + e);
+			log.error("XWikiSTSAuthenticatorProperties: cert '" + filename
+					+ "' not found, trusted certificate is not changed: " + e);
 		} catch (CertificateException e) {
-			log.debug("\n");
-			log.debug("XWikiSTSAuthenticatorProperties: Could not create cert from '"
-					+ filename + "': " + e);
+			log.error("XWikiSTSAuthenticatorProperties: Could not create cert from '"
+					+ filename + "', trusted certificate is not changed: " + e);
 		} finally {
 			if (fr != null)
 				try {
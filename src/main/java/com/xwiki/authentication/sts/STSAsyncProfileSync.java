@@ -0,0 +1,301 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Runs profile updates of returning users in background threads, so login
+ * is not blocked by saveDocument(). Pending updates are kept by user, so
+ * several logins of the same user before the update runs give one save
+ * with the latest claims. Updates of one user never run at the same time:
+ * the worker which applies them keeps the user marked as running and
+ * applies updates submitted meanwhile itself. Executor queue is bounded;
+ * when it is full the update runs in the request thread, which slows down
+ * logins instead of piling up work. Updates run with their own
+ * ExecutionContext (see STSBackgroundContext); update run in the request
+ * thread uses ExecutionContext of the request. Executors are stopped by
+ * shutdownAll() when web application stops (see STSBootstrapListener).
+ *
+ * @version 1.0
+ */
+final class STSAsyncProfileSync {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSAsyncProfileSync.class);
+	/**
+	 * DEFAULT_THREADS - default number of background threads
+	 */
+	static final int DEFAULT_THREADS = 2;
+	/**
+	 * DEFAULT_QUEUE_SIZE - default max number of queued users
+	 */
+	static final int DEFAULT_QUEUE_SIZE = 1000;
+	/**
+	 * INSTANCES - created and not shut down instances
+	 */
+	private static final List<STSAsyncProfileSync> INSTANCES = new ArrayList<STSAsyncProfileSync>();
+
+	/**
+	 * Pending profile update of one user
+	 */
+	private static final class Update {
+		final Map<String, String> userData;
+		final String authType;
+		final String claimHash;
+		final XWikiContext context;
+		final Runnable onSaved;
+
+		Update(Map<String, String> userData, String authType,
+				String claimHash, XWikiContext context, Runnable onSaved) {
+			this.userData = userData;
+			this.authType = authType;
+			this.claimHash = claimHash;
+			this.context = context;
+			this.onSaved = onSaved;
+		}
+	}
+
+	/**
+	 * profiles - applies updates and remembers synchronized claims
+	 */
+	private final STSProfileSynchronizer profiles;
+	/**
+	 * pending - user document full name => latest not applied update
+	 */
+	private final ConcurrentMap<String, Update> pending = new ConcurrentHashMap<String, Update>();
+	/**
+	 * running - users whose updates are being applied by a worker
+	 */
+	private final ConcurrentMap<String, Boolean> running = new ConcurrentHashMap<String, Boolean>();
+	/**
+	 * executor - background threads with bounded queue
+	 */
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong callerRuns = new AtomicLong();
+
+	/**
+	 * <b>STSAsyncProfileSync</b>
+	 *
+	 * @param profiles STSProfileSynchronizer - applies updates
+	 * @param threads int - number of background threads
+	 * @param queueSize int - max number of queued users
+	 */
+	STSAsyncProfileSync(STSProfileSynchronizer profiles, int threads,
+			int queueSize) {
+		this.profiles = profiles;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "sts-profile-sync-"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor e) {
+						callerRuns.incrementAndGet();
+						if (!e.isShutdown())
+							r.run();
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		synchronized (INSTANCES) {
+			INSTANCES.add(this);
+		}
+	}
+
+	/**
+	 * submit(String fullName, Map<String, String> userData, String authType,
+	 * String claimHash, XWikiContext context, Runnable onSaved) - queues
+	 * profile update. If update of the same user is already queued, it is
+	 * replaced.
+	 *
+	 * @param fullName String - user document full name
+	 * @param userData Map<String, String> - XWiki user field values
+	 * @param authType String - authentication method
+	 * @param claimHash String - hash of the claims
+	 * @param context XWikiContext - context from STSBackgroundContext.detach()
+	 * @param onSaved Runnable - called after user document is saved, can be
+	 *            null
+	 */
+	void submit(final String fullName, Map<String, String> userData,
+			String authType, String claimHash, XWikiContext context,
+			Runnable onSaved) {
+		submitted.incrementAndGet();
+		if (pending.put(fullName, new Update(userData, authType, claimHash,
+				context, onSaved)) != null) {
+			coalesced.incrementAndGet();
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				drain(fullName);
+			}
+		});
+	}
+
+	/**
+	 * drain(String fullName) - applies pending updates of the user unless
+	 * other worker already does it. The user is checked for pending update
+	 * again after it is unmarked, so update submitted at that moment isn't
+	 * left behind.
+	 */
+	private void drain(String fullName) {
+		while (running.putIfAbsent(fullName, Boolean.TRUE) == null) {
+			try {
+				Update update;
+				while ((update = pending.remove(fullName)) != null)
+					apply(fullName, update);
+			} finally {
+				running.remove(fullName);
+			}
+			if (!pending.containsKey(fullName))
+				return;
+		}
+	}
+
+	private void apply(String fullName, Update update) {
+		XWikiContext context = update.context;
+		String database = context.getDatabase();
+		boolean executionContext = STSBackgroundContext.begin(context);
+		try {
+			context.setDatabase(context.getMainXWiki());
+			XWikiDocument userDoc = context.getWiki().getDocument(fullName,
+					context);
+			if (profiles.update(userDoc, update.userData, update.authType,
+					update.claimHash, context)) {
+				STSProfileSynchronizer.save(userDoc, context);
+				if (update.onSaved != null)
+					update.onSaved.run();
+				log.info("Existing user " + fullName
+						+ " has been successfully updated in background");
+			}
+			profiles.markSynced(fullName, update.claimHash);
+			completed.incrementAndGet();
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			log.error("Failed to update user " + fullName + "\n" + e);
+		} finally {
+			context.setDatabase(database);
+			if (executionContext)
+				STSBackgroundContext.end();
+		}
+	}
+
+	/**
+	 * shutdown() - stops background threads, queued updates are still run
+	 */
+	void shutdown() {
+		synchronized (INSTANCES) {
+			INSTANCES.remove(this);
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * shutdownAll(long millis) - stops background threads of all instances
+	 * and waits till queued updates are run
+	 *
+	 * @param millis long - max time to wait
+	 * @return boolean - false if some updates were still running
+	 * @throws InterruptedException - if waiting was interrupted
+	 */
+	static boolean shutdownAll(long millis) throws InterruptedException {
+		List<STSAsyncProfileSync> instances;
+		synchronized (INSTANCES) {
+			instances = new ArrayList<STSAsyncProfileSync>(INSTANCES);
+		}
+		for (STSAsyncProfileSync instance : instances)
+			instance.shutdown();
+		long deadline = System.currentTimeMillis() + millis;
+		boolean terminated = true;
+		for (STSAsyncProfileSync instance : instances)
+			terminated &= instance.awaitTermination(Math.max(0, deadline
+					- System.currentTimeMillis()));
+		return terminated;
+	}
+
+	boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	boolean awaitTermination(long millis) throws InterruptedException {
+		return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+	}
+
+	int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	int getPendingCount() {
+		return pending.size();
+	}
+
+	int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	long getSubmitted() {
+		return submitted.get();
+	}
+
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	long getCompleted() {
+		return completed.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+
+	long getCallerRuns() {
+		return callerRuns.get();
+	}
+}
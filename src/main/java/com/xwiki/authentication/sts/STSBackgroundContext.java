@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * XWiki context for work done outside of the request thread (background
+ * profile updates, bulk import). Request context can't be used there: its
+ * request and response are finished when the work runs, and the thread
+ * has no ExecutionContext, which saveDocument() and event listeners expect.
+ *
+ * @version 1.0
+ */
+final class STSBackgroundContext {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSBackgroundContext.class);
+	/**
+	 * EXECUTION_CONTEXT_KEY - ExecutionContext property with XWikiContext
+	 */
+	static final String EXECUTION_CONTEXT_KEY = "xwikicontext";
+	/**
+	 * REQUEST_KEYS - XWikiContext entries bound to the request
+	 */
+	private static final String[] REQUEST_KEYS = { "request", "response",
+			"vcontext", "gcontext", "action", "finished" };
+
+	private STSBackgroundContext() {
+	}
+
+	/**
+	 * detach(XWikiContext context) - copy of the context without request
+	 * bound entries, set to the main wiki
+	 *
+	 * @param context XWikiContext - request context
+	 * @return XWikiContext
+	 */
+	static XWikiContext detach(XWikiContext context) {
+		XWikiContext copy = (XWikiContext) context.clone();
+		for (String key : REQUEST_KEYS)
+			copy.remove(key);
+		copy.setDatabase(copy.getMainXWiki());
+		return copy;
+	}
+
+	/**
+	 * begin(XWikiContext context) - initializes ExecutionContext of the
+	 * current thread with the given context. Does nothing if the thread
+	 * already has ExecutionContext (e.g. request thread doing the work when
+	 * background queue is full), so context of the request is not replaced.
+	 * Should be followed by end() if true is returned.
+	 *
+	 * @param context XWikiContext - detached context
+	 * @return boolean - false if ExecutionContext wasn't set: the thread
+	 *         already has it or component manager isn't available (e.g.
+	 *         outside of XWiki), work still can be done
+	 */
+	static boolean begin(XWikiContext context) {
+		try {
+			Execution execution = Utils.getComponent(Execution.class);
+			if (execution.getContext() != null)
+				return false;
+			ExecutionContext executionContext = new ExecutionContext();
+			Utils.getComponent(ExecutionContextManager.class).initialize(
+					executionContext);
+			executionContext.setProperty(EXECUTION_CONTEXT_KEY, context);
+			execution.setContext(executionContext);
+			return true;
+		} catch (Exception e) {
+			log.debug("ExecutionContext is not initialized: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * end() - removes ExecutionContext of the current thread set by begin()
+	 */
+	static void end() {
+		try {
+			Utils.getComponent(Execution.class).removeContext();
+		} catch (Exception e) {
+			log.debug("ExecutionContext is not removed: " + e);
+		}
+	}
+}
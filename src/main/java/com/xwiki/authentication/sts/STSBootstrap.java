@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+
+/**
+ * Runs OpenSAML bootstrap exactly once per JVM. DefaultBootstrap.bootstrap()
+ * reloads all XML object providers and security configuration, so it must
+ * not be called on every request. warmUp() can be called at XWiki startup
+ * (see STSBootstrapListener) so the first login doesn't pay for it.
+ *
+ * @version 1.0
+ */
+public final class STSBootstrap {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSBootstrap.class);
+	/**
+	 * bootstrapped - true when OpenSAML is initialized
+	 */
+	private static volatile boolean bootstrapped;
+	/**
+	 * bootstrapTime - how long bootstrap took in milliseconds
+	 */
+	private static volatile long bootstrapTime = -1;
+
+	private STSBootstrap() {
+	}
+
+	/**
+	 * bootstrap() - initializes OpenSAML. Tokens are parsed with
+	 * STSParserPool, OpenSAML default parser pool is left as it is, because
+	 * it is shared by the whole JVM. Does nothing if it was already done,
+	 * safe to call from many threads.
+	 *
+	 * @throws ConfigurationException - exception of open SAML's configuration
+	 */
+	public static void bootstrap() throws ConfigurationException {
+		if (bootstrapped)
+			return;
+		synchronized (STSBootstrap.class) {
+			if (bootstrapped)
+				return;
+			long start = System.currentTimeMillis();
+			DefaultBootstrap.bootstrap();
+			bootstrapTime = System.currentTimeMillis() - start;
+			bootstrapped = true;
+			log.info("OpenSAML bootstrapped in " + bootstrapTime + " ms");
+		}
+	}
+
+	/**
+	 * warmUp() - eager initialization hook. Bootstraps OpenSAML and prepares
+	 * one XML parser. Errors are logged, not thrown, so startup isn't broken.
+	 */
+	public static void warmUp() {
+		try {
+			bootstrap();
+			STSParserPool.release(STSParserPool.borrow());
+		} catch (Exception e) {
+			log.error("Failed to warm up sts module: " + e);
+		}
+	}
+
+	public static boolean isBootstrapped() {
+		return bootstrapped;
+	}
+
+	public static long getBootstrapTime() {
+		return bootstrapTime;
+	}
+}
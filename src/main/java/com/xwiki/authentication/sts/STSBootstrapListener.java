@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Warms up STS module when web application starts. When web application
+ * stops, unregisters its JMX monitor and stops background profile updates.
+ * Register it in WEB-INF/web.xml:
+ * 
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;com.xwiki.authentication.sts.STSBootstrapListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * @version 1.0
+ */
+public class STSBootstrapListener implements ServletContextListener {
+	/**
+	 * SHUTDOWN_TIMEOUT - max time to wait for queued profile updates
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10 * 1000L;
+
+	public void contextInitialized(ServletContextEvent event) {
+		STSMonitor.setWebapp(event.getServletContext().getContextPath());
+		STSBootstrap.warmUp();
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		STSMonitor.unregister();
+		try {
+			STSAsyncProfileSync.shutdownAll(SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,715 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Creates XWiki users of known persons before they log in, so first login
+ * finds the user instead of creating it. Input is a CSV file with a header
+ * row or a JSONL file with one flat JSON object per line. Column (key) names
+ * are STS attribute names, the same as in field_mapping and id_field, and
+ * optional "authtype" column. Users are created with the same mapping and
+ * user name rules as on login.
+ *
+ * Input is read record by record and handed to parallel workers in
+ * batches; only a few batches per worker are read ahead, so input of any
+ * size doesn't need to fit in memory. Workers run with their own
+ * ExecutionContext (see STSBackgroundContext). Person IDs of
+ * finished batches are appended to a journal file, so after a crash the
+ * import can be started again with the same journal and finished records
+ * are skipped. Records already having a user are skipped as well, so
+ * running import twice doesn't create duplicates.
+ *
+ * Usage from a Groovy page with programming rights:
+ * <pre>
+ * def importer = new com.xwiki.authentication.sts.STSBulkImporter(xcontext.context)
+ * importer.setJournal(new File("/tmp/sts-import.journal"))
+ * def result = importer.run(new File("/tmp/persons.csv"))
+ * </pre>
+ *
+ * @version 1.0
+ */
+public final class STSBulkImporter {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSBulkImporter.class);
+	/**
+	 * AUTH_TYPE_COLUMN - optional column with authentication method
+	 */
+	public static final String AUTH_TYPE_COLUMN = "authtype";
+	/**
+	 * DEFAULT_WORKERS - default number of parallel workers
+	 */
+	public static final int DEFAULT_WORKERS = 4;
+	/**
+	 * DEFAULT_BATCH_SIZE - default number of records journaled at once
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	/**
+	 * LOCK_TIMEOUT - max time to wait for login creating the same user
+	 */
+	private static final long LOCK_TIMEOUT = 30 * 1000L;
+	/**
+	 * BATCHES_PER_WORKER - max number of batches read ahead for one worker
+	 */
+	private static final int BATCHES_PER_WORKER = 2;
+
+	/**
+	 * Counts of processed records
+	 */
+	public static final class Result {
+		private final AtomicInteger created = new AtomicInteger();
+		private final AtomicInteger existing = new AtomicInteger();
+		private final AtomicInteger skipped = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * @return int - number of created users
+		 */
+		public int getCreated() {
+			return created.get();
+		}
+
+		/**
+		 * @return int - number of persons who already had a user
+		 */
+		public int getExisting() {
+			return existing.get();
+		}
+
+		/**
+		 * @return int - number of records finished in earlier run
+		 */
+		public int getSkipped() {
+			return skipped.get();
+		}
+
+		/**
+		 * @return int - number of records which failed and are not journaled
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		@Override
+		public String toString() {
+			return "created: " + created + ", existing: " + existing
+					+ ", skipped: " + skipped + ", failed: " + failed;
+		}
+	}
+
+	private final XWikiContext context;
+	private final STSConfig cfg;
+	private final STSProvisioningLocks locks = STSProvisioningLocks.SHARED;
+	private int workers = DEFAULT_WORKERS;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private File journal;
+
+	/**
+	 * <b>STSBulkImporter</b> - uses xwiki.authentication.sts.* settings of
+	 * the given context
+	 *
+	 * @param context XWikiContext - context to read settings from, it is
+	 *            detached for every batch
+	 */
+	public STSBulkImporter(XWikiContext context) {
+		this(context, new STSConfig(new XWikiSTSAuthenticatorProperties(),
+				context));
+	}
+
+	STSBulkImporter(XWikiContext context, STSConfig cfg) {
+		this.context = context;
+		this.cfg = cfg;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * setJournal(File journal) - file with person IDs of finished records.
+	 * Without journal import can't be resumed, but it is still safe to run
+	 * it again.
+	 *
+	 * @param journal File
+	 */
+	public void setJournal(File journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * run(File input) - imports CSV or JSONL file, format is detected by the
+	 * first character of the file
+	 *
+	 * @param input File - UTF-8 encoded input
+	 * @return Result - counts of processed records
+	 * @throws IOException - if input or journal can't be read or written
+	 * @throws InterruptedException - if import was interrupted
+	 */
+	public Result run(File input) throws IOException, InterruptedException {
+		Reader reader = new InputStreamReader(new FileInputStream(input),
+				"UTF-8");
+		try {
+			return run(recordReader(reader));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * run(List<Map<String, String>> records) - imports records
+	 *
+	 * @param records List<Map<String, String>> - STS attributes by name
+	 * @return Result - counts of processed records
+	 * @throws IOException - if journal can't be read or written
+	 * @throws InterruptedException - if import was interrupted
+	 */
+	public Result run(List<Map<String, String>> records) throws IOException,
+			InterruptedException {
+		final Iterator<Map<String, String>> it = records.iterator();
+		return run(new RecordReader() {
+			Map<String, String> next() {
+				return it.hasNext() ? it.next() : null;
+			}
+		});
+	}
+
+	private Result run(RecordReader records) throws IOException,
+			InterruptedException {
+		final Result result = new Result();
+		final Set<String> done = readJournal();
+		log.info("Importing STS users, " + done.size()
+				+ " persons already done");
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "sts-import-"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// reading waits while workers are busy with batches read ahead
+		Semaphore readAhead = new Semaphore(workers * BATCHES_PER_WORKER);
+		try {
+			List<Map<String, String>> batch = new ArrayList<Map<String, String>>(
+					batchSize);
+			Map<String, String> record;
+			while ((record = records.next()) != null) {
+				batch.add(record);
+				if (batch.size() == batchSize) {
+					submit(executor, readAhead, batch, done, result);
+					batch = new ArrayList<Map<String, String>>(batchSize);
+				}
+			}
+			if (!batch.isEmpty())
+				submit(executor, readAhead, batch, done, result);
+		} finally {
+			executor.shutdown();
+		}
+		while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			log.info("Import progress: " + result);
+		log.info("Import finished: " + result);
+		return result;
+	}
+
+	private void submit(ExecutorService executor, final Semaphore readAhead,
+			final List<Map<String, String>> batch, final Set<String> done,
+			final Result result) throws InterruptedException {
+		readAhead.acquire();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					importBatch(batch, done, result);
+				} finally {
+					readAhead.release();
+				}
+			}
+		});
+	}
+
+	private void importBatch(List<Map<String, String>> batch, Set<String> done,
+			Result result) {
+		// users are global, created in the main wiki
+		XWikiContext workerContext = STSBackgroundContext.detach(context);
+		boolean executionContext = STSBackgroundContext.begin(workerContext);
+		try {
+			List<String> finished = new ArrayList<String>(batch.size());
+			for (Map<String, String> attributes : batch) {
+				String personId = STSUserProvisioner
+						.normalizePersonId(cfg.dataTransform.apply(attributes
+								.get(cfg.idField)));
+				if (personId == null || personId.length() == 0) {
+					log.error("Record without " + cfg.idField + ": "
+							+ attributes);
+					result.failed.incrementAndGet();
+					continue;
+				}
+				synchronized (done) {
+					if (done.contains(personId)) {
+						result.skipped.incrementAndGet();
+						continue;
+					}
+				}
+				if (importRecord(personId, attributes, workerContext, result))
+					finished.add(personId);
+				else
+					result.failed.incrementAndGet();
+			}
+			try {
+				appendJournal(finished, done);
+			} catch (IOException e) {
+				log.error("Failed to write import journal " + journal + "\n"
+						+ e);
+			}
+		} finally {
+			if (executionContext)
+				STSBackgroundContext.end();
+		}
+	}
+
+	private boolean importRecord(String personId,
+			Map<String, String> attributes, XWikiContext workerContext,
+			Result result) {
+		Lock lock = null;
+		try {
+			lock = locks.tryLock(personId, LOCK_TIMEOUT);
+			if (lock == null) {
+				log.error("Timed out waiting for creation of user with Nameid: "
+						+ personId);
+				return false;
+			}
+			if (STSUserProvisioner.search(cfg.stsAuthClassIdField, personId,
+					workerContext) != null) {
+				result.existing.incrementAndGet();
+				return true;
+			}
+			Map<String, String> userData = cfg.fieldMapping.apply(attributes);
+			String authType = attributes.get(AUTH_TYPE_COLUMN);
+			if (authType == null)
+				authType = "";
+			String fullName = STSUserProvisioner.createUser(
+					STSUserProvisioner.generateUserName(userData,
+							cfg.usernameRule), userData, personId, authType,
+					STSProfileSynchronizer.claimHash(userData, authType),
+					workerContext);
+			if (fullName == null)
+				return false;
+			result.created.incrementAndGet();
+			log.debug("Imported user " + fullName + " Nameid: " + personId);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (Exception e) {
+			log.error("Failed to import user with Nameid: " + personId + "\n"
+					+ e);
+			return false;
+		} finally {
+			if (lock != null)
+				lock.unlock();
+		}
+	}
+
+	private Set<String> readJournal() throws IOException {
+		Set<String> done = new HashSet<String>();
+		if (journal == null || !journal.exists())
+			return done;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journal), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// last line can be cut by the crash
+				if (line.length() > 0)
+					done.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return done;
+	}
+
+	private void appendJournal(List<String> finished, Set<String> done)
+			throws IOException {
+		synchronized (done) {
+			done.addAll(finished);
+			if (journal == null || finished.isEmpty())
+				return;
+			FileOutputStream out = new FileOutputStream(journal, true);
+			try {
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				for (String personId : finished)
+					writer.write(personId + "\n");
+				writer.flush();
+				// batch is done only when it is on the disk
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * readRecords(Reader reader) - reads all records of CSV with header row
+	 * or JSONL input
+	 *
+	 * @param reader Reader
+	 * @return List<Map<String, String>> - records by column name
+	 * @throws IOException - if input can't be read or parsed
+	 */
+	static List<Map<String, String>> readRecords(Reader reader)
+			throws IOException {
+		List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+		RecordReader in = recordReader(reader);
+		Map<String, String> record;
+		while ((record = in.next()) != null)
+			records.add(record);
+		return records;
+	}
+
+	/**
+	 * recordReader(Reader reader) - reader of CSV with header row or JSONL,
+	 * depending on the first not blank character. Byte order mark is
+	 * skipped.
+	 *
+	 * @param reader Reader
+	 * @return RecordReader
+	 * @throws IOException - if input can't be read
+	 */
+	static RecordReader recordReader(Reader reader) throws IOException {
+		BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader
+				: new BufferedReader(reader);
+		int lines = 0;
+		int c;
+		do {
+			in.mark(1);
+			c = in.read();
+			if (c == '\n')
+				lines++;
+		} while (c == '\uFEFF' || (c != -1 && Character.isWhitespace(c)));
+		if (c != -1)
+			in.reset();
+		return c == '{' ? new JsonLinesReader(in, lines) : new CsvReader(in);
+	}
+
+	/**
+	 * Reader of input records one by one
+	 */
+	abstract static class RecordReader {
+		/**
+		 * next() - next record
+		 *
+		 * @return Map<String, String> - record by column name, null at the
+		 *         end of input
+		 * @throws IOException - if input can't be read or parsed
+		 */
+		abstract Map<String, String> next() throws IOException;
+	}
+
+	/**
+	 * Reader of comma separated values with header row. Values can be quoted
+	 * with ", quoted value can have commas and line breaks, quote inside
+	 * quoted value is "". Empty values are skipped, column names must be
+	 * unique.
+	 */
+	private static final class CsvReader extends RecordReader {
+		private static final int NONE = -2;
+		private final Reader in;
+		private List<String> header;
+		private int unread = NONE;
+
+		CsvReader(Reader in) {
+			this.in = in;
+		}
+
+		Map<String, String> next() throws IOException {
+			if (header == null) {
+				header = readRow();
+				if (header == null)
+					return null;
+				Set<String> names = new HashSet<String>();
+				for (String name : header) {
+					if (name.length() > 0 && !names.add(name))
+						throw new IOException("Duplicate CSV column " + name);
+				}
+			}
+			List<String> values = readRow();
+			if (values == null)
+				return null;
+			Map<String, String> record = new LinkedHashMap<String, String>();
+			for (int i = 0; i < header.size() && i < values.size(); i++) {
+				if (values.get(i).length() > 0)
+					record.put(header.get(i), values.get(i));
+			}
+			return record;
+		}
+
+		/**
+		 * readRow() - values of the next not empty row, null at the end of
+		 * input
+		 */
+		private List<String> readRow() throws IOException {
+			List<String> row = new ArrayList<String>();
+			StringBuilder value = new StringBuilder();
+			boolean quoted = false;
+			boolean rowStarted = false;
+			while (true) {
+				int c = read();
+				if (c == -1) {
+					if (quoted)
+						throw new IOException("Not closed quote in CSV input");
+					if (!rowStarted && value.length() == 0)
+						return null;
+					row.add(value.toString().trim());
+					return row;
+				}
+				if (quoted) {
+					if (c == '"') {
+						int n = read();
+						if (n == '"')
+							value.append('"');
+						else {
+							quoted = false;
+							unread = n;
+						}
+					} else
+						value.append((char) c);
+				} else if (c == '"') {
+					quoted = true;
+					rowStarted = true;
+				} else if (c == ',') {
+					row.add(value.toString().trim());
+					value.setLength(0);
+					rowStarted = true;
+				} else if (c == '\n' || c == '\r') {
+					if (rowStarted || value.length() > 0) {
+						row.add(value.toString().trim());
+						return row;
+					}
+				} else {
+					value.append((char) c);
+					rowStarted = true;
+				}
+			}
+		}
+
+		private int read() throws IOException {
+			if (unread == NONE)
+				return in.read();
+			int c = unread;
+			unread = NONE;
+			return c;
+		}
+	}
+
+	/**
+	 * Reader of one flat JSON object per line
+	 */
+	private static final class JsonLinesReader extends RecordReader {
+		private final BufferedReader in;
+		private int line;
+
+		JsonLinesReader(BufferedReader in, int skippedLines) {
+			this.in = in;
+			this.line = skippedLines;
+		}
+
+		Map<String, String> next() throws IOException {
+			String text;
+			while ((text = in.readLine()) != null) {
+				line++;
+				if (text.trim().length() == 0)
+					continue;
+				try {
+					return new JsonObjectParser(text).parse();
+				} catch (IOException e) {
+					throw new IOException("Line " + line + ": "
+							+ e.getMessage());
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Parser of one flat JSON object. Values can be strings, numbers, true,
+	 * false or null; null values are skipped. Keys must be unique.
+	 */
+	private static final class JsonObjectParser {
+		private final String s;
+		private int pos;
+
+		JsonObjectParser(String s) {
+			this.s = s;
+		}
+
+		Map<String, String> parse() throws IOException {
+			Map<String, String> record = new HashMap<String, String>();
+			Set<String> keys = new HashSet<String>();
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+				return end(record);
+			}
+			while (true) {
+				int start = pos;
+				String key = string();
+				if (!keys.add(key))
+					throw new IOException("Duplicate key " + key + " at "
+							+ start);
+				expect(':');
+				String value = value();
+				if (value != null)
+					record.put(key, value);
+				char c = next();
+				if (c == '}')
+					return end(record);
+				if (c != ',')
+					throw new IOException("Expected , or } at " + pos);
+			}
+		}
+
+		private Map<String, String> end(Map<String, String> record)
+				throws IOException {
+			if (peek() != 0)
+				throw new IOException("Unexpected text at " + pos);
+			return record;
+		}
+
+		private String value() throws IOException {
+			char c = peek();
+			if (c == '"')
+				return string();
+			int start = pos;
+			while (pos < s.length() && ",} \t".indexOf(s.charAt(pos)) < 0)
+				pos++;
+			String token = s.substring(start, pos);
+			if ("null".equals(token))
+				return null;
+			if ("true".equals(token) || "false".equals(token)
+					|| token.matches("-?[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?"))
+				return token;
+			throw new IOException("Not supported value at " + start);
+		}
+
+		private String string() throws IOException {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+			while (pos < s.length()) {
+				char c = s.charAt(pos++);
+				if (c == '"')
+					return value.toString();
+				if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+				if (pos >= s.length())
+					break;
+				char e = s.charAt(pos++);
+				switch (e) {
+				case 'n':
+					value.append('\n');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'u':
+					if (pos + 4 > s.length())
+						throw new IOException("Broken escape at " + pos);
+					try {
+						value.append((char) Integer.parseInt(
+								s.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException ex) {
+						throw new IOException("Broken escape at " + pos);
+					}
+					pos += 4;
+					break;
+				default:
+					value.append(e);
+				}
+			}
+			throw new IOException("Not closed string");
+		}
+
+		private void expect(char expected) throws IOException {
+			if (next() != expected)
+				throw new IOException("Expected " + expected + " at " + pos);
+		}
+
+		private char next() {
+			char c = peek();
+			if (c != 0)
+				pos++;
+			return c;
+		}
+
+		private char peek() {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+			return pos < s.length() ? s.charAt(pos) : 0;
+		}
+	}
+}
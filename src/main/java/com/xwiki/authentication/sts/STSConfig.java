@@ -0,0 +1,255 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Immutable snapshot of xwiki.authentication.sts.* configuration. All values
+ * are read from xwiki.cfg once, converted to their types and checked when the
+ * snapshot is loaded, so request code reads plain fields instead of calling
+ * XWiki.Param() and comparing strings. Wrong values are logged and replaced
+ * with safe defaults.
+ *
+ * @version 1.0
+ */
+final class STSConfig {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSConfig.class);
+
+	final String authUrl;
+	final String wtrealm;
+	final String wreplyHost;
+	final String wreplyPage;
+	/**
+	 * sendContext - wctx=1, request ID is sent and response is validated
+	 */
+	final boolean sendContext;
+	/**
+	 * sendTime - wct=1, request time is sent and token lifetime is validated
+	 */
+	final boolean sendTime;
+	/**
+	 * wfresh - max age of authentication in minutes, 0 if not set
+	 */
+	final int wfresh;
+	final String idField;
+	final String stsAuthClassIdField;
+	final String authField;
+	/**
+	 * sessionUserAttribute - session attribute with STSSessionUser of the
+	 * authenticated user
+	 */
+	final String sessionUserAttribute;
+	final String dataFormat;
+	/**
+	 * dataTransform - transformation of attribute values set by data_format
+	 */
+	final STSFieldMapping.Transform dataTransform;
+	/**
+	 * usernameRule - XWiki user fields used to generate user name
+	 */
+	final List<String> usernameRule;
+	/**
+	 * fieldMapping - compiled STS attribute to XWiki user field mapping
+	 */
+	final STSFieldMapping fieldMapping;
+	final String issuer;
+	final String entityId;
+	final String issuerDN;
+	final List<String> subjectDNs;
+	final List<URI> audienceUris;
+	final String certFilename;
+	final String trustStore;
+	final String trustStoreType;
+	final String trustStorePassword;
+	/**
+	 * parserPoolSize - size of the XML parser pool, 0 if not set
+	 */
+	final int parserPoolSize;
+	/**
+	 * replayCache - replay check is switched on (replay_cache isn't 0)
+	 */
+	final boolean replayCache;
+	final String replayCacheClass;
+	/**
+	 * collectAllErrors - validator makes all checks instead of stopping on
+	 * the first failed one
+	 */
+	final boolean collectAllErrors;
+	/**
+	 * logPayload - how much of tokens and certificates is written to debug
+	 * log
+	 */
+	final STSLogRedactor.Mode logPayload;
+	/**
+	 * userCacheSize - max number of cached users, 0 switches cache off
+	 */
+	final int userCacheSize;
+	/**
+	 * userCacheTtl - time to keep cached user, in seconds
+	 */
+	final int userCacheTtl;
+	/**
+	 * profileSyncAsync - profiles of returning users are updated in background
+	 */
+	final boolean profileSyncAsync;
+	final int profileSyncThreads;
+	final int profileSyncQueue;
+	/**
+	 * loadedAt - time when snapshot was loaded
+	 */
+	final long loadedAt;
+
+	/**
+	 * <b>STSConfig</b> - reads and converts all settings
+	 *
+	 * @param props XWikiSTSAuthenticatorProperties - raw settings
+	 * @param context XWikiContext - context to read settings from
+	 */
+	STSConfig(XWikiSTSAuthenticatorProperties props, XWikiContext context) {
+		authUrl = props.getAuthURL(context);
+		wtrealm = emptyToNull(props.getWtrealm(context));
+		wreplyHost = props.getWreplyHost(context);
+		wreplyPage = props.getWreplyPage(context);
+		sendContext = "1".equals(props.getWctx(context));
+		sendTime = "1".equals(props.getWct(context));
+		wfresh = toInt("wfresh", props.getWfresh(context));
+		idField = props.getIdField(context);
+		stsAuthClassIdField = props.getStsAuthClassIdField(context);
+		authField = props.getAuthField(context);
+		sessionUserAttribute = (authField == null ? "sts" : authField)
+				+ ".xwikiuser";
+		dataFormat = props.getDataFormat(context);
+		dataTransform = STSFieldMapping.Transform.fromDataFormat(dataFormat);
+		usernameRule = toList(props.getUsernameRule(context));
+		fieldMapping = STSFieldMapping.compile(props.getFieldMapping(context),
+				dataFormat);
+		issuer = props.getIssuer(context);
+		entityId = props.getEntityId(context);
+		issuerDN = props.getIssuerDN(context);
+		String subjectDNsValue = props.getSubjectDNs(context);
+		subjectDNs = subjectDNsValue == null ? Collections.<String> emptyList()
+				: Collections.singletonList(subjectDNsValue);
+		audienceUris = toUris(props.getAudienceURIs(context));
+		certFilename = emptyToNull(props.getCertFilename(context));
+		trustStore = emptyToNull(props.getTrustStore(context));
+		trustStoreType = emptyToNull(props.getTrustStoreType(context));
+		trustStorePassword = props.getTrustStorePassword(context);
+		parserPoolSize = toInt("parser_pool_size",
+				props.getParserPoolSize(context));
+		replayCache = !"0".equals(props.getReplayCache(context));
+		replayCacheClass = emptyToNull(props.getReplayCacheClass(context));
+		collectAllErrors = "1".equals(props.getCollectAllErrors(context));
+		logPayload = STSLogRedactor.Mode.fromValue(props
+				.getLogPayload(context));
+		userCacheSize = toInt("user_cache_size",
+				props.getUserCacheSize(context), STSUserCache.DEFAULT_SIZE);
+		userCacheTtl = toInt("user_cache_ttl", props.getUserCacheTtl(context),
+				STSUserCache.DEFAULT_TTL);
+		profileSyncAsync = "1".equals(props.getProfileSyncAsync(context));
+		profileSyncThreads = Math.max(1, toInt("profile_sync_threads",
+				props.getProfileSyncThreads(context),
+				STSAsyncProfileSync.DEFAULT_THREADS));
+		profileSyncQueue = Math.max(1, toInt("profile_sync_queue",
+				props.getProfileSyncQueue(context),
+				STSAsyncProfileSync.DEFAULT_QUEUE_SIZE));
+		loadedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * getMaxClockSkew() - allowed token clock difference in milliseconds,
+	 * used only if token lifetime is validated
+	 *
+	 * @return int
+	 */
+	int getMaxClockSkew() {
+		return sendTime ? wfresh * 60 * 1000 : 0;
+	}
+
+	/**
+	 * getReplayExpiration(long notOnOrAfter) - time till used assertion ID
+	 * must be remembered. Token is accepted till NotOnOrAfter plus allowed
+	 * clock skew, so the ID is kept as long.
+	 *
+	 * @param notOnOrAfter long - token NotOnOrAfter in milliseconds
+	 * @return long - time in milliseconds
+	 */
+	long getReplayExpiration(long notOnOrAfter) {
+		return notOnOrAfter + getMaxClockSkew();
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.trim().length() == 0 ? null : value
+				.trim();
+	}
+
+	private static int toInt(String name, String value) {
+		return toInt(name, value, 0);
+	}
+
+	private static int toInt(String name, String value, int defaultValue) {
+		if (emptyToNull(value) == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.error("Wrong xwiki.authentication.sts." + name + " value: "
+					+ value);
+			return defaultValue;
+		}
+	}
+
+	private static List<String> toList(String value) {
+		List<String> list = new ArrayList<String>();
+		if (value != null) {
+			for (String item : value.split(",")) {
+				if (item.trim().length() > 0)
+					list.add(item.trim());
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private static List<URI> toUris(String value) {
+		List<URI> list = new ArrayList<URI>();
+		if (value != null) {
+			try {
+				list.add(new URI(value.trim()));
+			} catch (URISyntaxException e) {
+				log.error("Wrong xwiki.authentication.sts.audience_uris value: "
+						+ value);
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+}
@@ -9,15 +9,27 @@ import java.util.List;
  * Have errorList, which is ArrayList<Throwable> in which are stored Errors.
  * You can easily add Throwable objects with void addError(Object obj). If will
  * be passed non-Throwable object to method - nothing will happen.
+ * Collector is made for one request and is not thread safe. It keeps at most
+ * MAX_ERRORS errors, others are only counted, so a broken request can't
+ * grow it without limit. Failures of all requests are kept in
+ * STSRecentErrors.
  * 
  * @version 1.0
  */
 public class STSErrorCollector {
+	/**
+	 * MAX_ERRORS - max number of kept errors
+	 */
+	public static final int MAX_ERRORS = 32;
 
 	/**
      * List of Throwable objects to store current errors
      */
 	private List<Throwable> errorList;
+	/**
+	 * Number of errors not kept because list was full
+	 */
+	private int dropped;
 
 	/**
      * Contructor - is making a 
@@ -33,8 +45,12 @@ public class STSErrorCollector {
 	 * @param obj Object - if Throwable - then - adding to List<Throwable>
 	 */
 	public void addError(Object obj) {
-		if (obj instanceof Throwable)
-			errorList.add((Throwable) obj);
+		if (obj instanceof Throwable) {
+			if (errorList.size() < MAX_ERRORS)
+				errorList.add((Throwable) obj);
+			else
+				dropped++;
+		}
 	}
 
 	/**
@@ -42,22 +58,28 @@ public class STSErrorCollector {
 	 * @return String error list line separated in a manual string format
 	 */
 	public String listErrors() {
-		String normalizedList = "";
-		if (errorList.size() > 0) {
-			normalizedList = "\n\n***** ERROR LIST *****\n";
-			for (Throwable currentThrowable : errorList) {
-				normalizedList = normalizedList + currentThrowable;
-				if (currentThrowable.getCause() == null)
-					normalizedList += "\n";
-				else
-					normalizedList = normalizedList
-							+ currentThrowable.getCause()
-							+ "\n";
-			}
-			normalizedList = normalizedList + "**********************"
-					+ "\n";
+		if (errorList.isEmpty())
+			return "";
+		StringBuilder normalizedList = new StringBuilder(
+				"\n\n***** ERROR LIST *****\n");
+		appendTo(normalizedList);
+		normalizedList.append("**********************\n");
+		return normalizedList.toString();
+	}
+
+	/**
+	 * <b>appendTo</b> - Writes errors to the builder, one per line
+	 * @param out StringBuilder - where errors are written
+	 */
+	public void appendTo(StringBuilder out) {
+		for (Throwable currentThrowable : errorList) {
+			out.append(currentThrowable);
+			if (currentThrowable.getCause() != null)
+				out.append(currentThrowable.getCause());
+			out.append('\n');
 		}
-		return normalizedList;
+		if (dropped > 0)
+			out.append("... ").append(dropped).append(" more\n");
 	}
 
 	/**
@@ -66,6 +88,7 @@ public class STSErrorCollector {
 	 */
 	public void clearErrorList() {
 		errorList.clear();
+		dropped = 0;
 	}
 	
 	/**
@@ -75,4 +98,12 @@ public class STSErrorCollector {
 	public int geterrorListLength() {
 		return errorList.size();
 	}
+
+	/**
+	 * <b>getDropped</b> - get number of errors not kept because list was full
+	 * @return number of dropped errors
+	 */
+	public int getDropped() {
+		return dropped;
+	}
 }
@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache where every entry has its own expiration time. When the cache
+ * is full, the least recently used entry is removed. Expired entries are
+ * removed when they are read. Counts hits and misses. Cache can keep index
+ * of keys by value, so removeValue() doesn't go through all entries.
+ *
+ * @version 1.0
+ */
+class STSExpiringCache<K, V> {
+	/**
+	 * Cache entry with value and expiration time
+	 */
+	private static final class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * maxSize - max number of entries
+	 */
+	private final int maxSize;
+	/**
+	 * entries - access ordered map, guarded by itself
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries;
+	/**
+	 * keysByValue - keys of every cached value, null if values are not
+	 * indexed. Guarded by entries.
+	 */
+	private final Map<V, Set<K>> keysByValue;
+	/**
+	 * hits - number of get() calls which found not expired value
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * misses - number of get() calls which didn't find value
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * <b>STSExpiringCache</b> - creates empty cache
+	 *
+	 * @param maxSize int - max number of entries
+	 */
+	STSExpiringCache(final int maxSize) {
+		this(maxSize, false);
+	}
+
+	/**
+	 * <b>STSExpiringCache</b> - creates empty cache
+	 *
+	 * @param maxSize int - max number of entries
+	 * @param indexValues boolean - keep index of keys by value for
+	 *            removeValue()
+	 */
+	STSExpiringCache(final int maxSize, boolean indexValues) {
+		this.maxSize = maxSize;
+		this.keysByValue = indexValues ? new HashMap<V, Set<K>>() : null;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() <= maxSize)
+					return false;
+				unindex(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * get(K key) - returns value or null if there is no value or it is
+	 * expired
+	 *
+	 * @param key K
+	 * @return V value
+	 */
+	V get(K key) {
+		Entry<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+				entries.remove(key);
+				unindex(key, entry);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * put(K key, V value, long expiresAt) - stores value till given time
+	 *
+	 * @param key K
+	 * @param value V
+	 * @param expiresAt long - time in milliseconds when value expires
+	 */
+	void put(K key, V value, long expiresAt) {
+		if (expiresAt <= System.currentTimeMillis())
+			return;
+		synchronized (entries) {
+			unindex(key, entries.put(key, new Entry<V>(value, expiresAt)));
+			// entry can be evicted at once if cache size is 0
+			if (keysByValue != null && entries.containsKey(key)) {
+				Set<K> keys = keysByValue.get(value);
+				if (keys == null) {
+					keys = new HashSet<K>(2);
+					keysByValue.put(value, keys);
+				}
+				keys.add(key);
+			}
+		}
+	}
+
+	V remove(K key) {
+		Entry<V> entry;
+		synchronized (entries) {
+			entry = entries.remove(key);
+			unindex(key, entry);
+		}
+		return entry == null ? null : entry.value;
+	}
+
+	/**
+	 * removeValue(V value) - removes all entries with given value. Without
+	 * index of values goes through all entries, so then it is meant for rare
+	 * invalidations.
+	 *
+	 * @param value V
+	 * @return int - number of removed entries
+	 */
+	int removeValue(V value) {
+		int removed = 0;
+		synchronized (entries) {
+			if (keysByValue != null) {
+				Set<K> keys = keysByValue.remove(value);
+				if (keys != null) {
+					for (K key : keys) {
+						if (entries.remove(key) != null)
+							removed++;
+					}
+				}
+				return removed;
+			}
+			Iterator<Entry<V>> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (value.equals(it.next().value)) {
+					it.remove();
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+	void clear() {
+		synchronized (entries) {
+			entries.clear();
+			if (keysByValue != null)
+				keysByValue.clear();
+		}
+	}
+
+	/**
+	 * unindex(K key, Entry<V> entry) - removes key of the removed entry from
+	 * index of values. Called holding entries lock.
+	 */
+	private void unindex(K key, Entry<V> entry) {
+		if (keysByValue == null || entry == null)
+			return;
+		Set<K> keys = keysByValue.get(entry.value);
+		if (keys != null && keys.remove(key) && keys.isEmpty())
+			keysByValue.remove(entry.value);
+	}
+
+	/**
+	 * indexedValueCount() - number of values in index, for tests
+	 */
+	int indexedValueCount() {
+		synchronized (entries) {
+			return keysByValue == null ? 0 : keysByValue.size();
+		}
+	}
+
+	int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Immutable mapping from STS attributes to XWiki user fields, compiled from
+ * xwiki.authentication.sts.field_mapping and data_format. Entries are kept
+ * in arrays, so mapping of a login is a plain loop. New mapping is created
+ * on configuration reload and replaced together with STSConfig.
+ *
+ * @version 1.0
+ */
+final class STSFieldMapping {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSFieldMapping.class);
+
+	/**
+	 * Value transformation set by xwiki.authentication.sts.data_format
+	 */
+	enum Transform {
+		NONE, CAPITAL, TITLE;
+
+		/**
+		 * fromDataFormat(String dataFormat) - CAPITAL, Title or NONE for
+		 * other values
+		 *
+		 * @param dataFormat String
+		 * @return Transform
+		 */
+		static Transform fromDataFormat(String dataFormat) {
+			if ("CAPITAL".equals(dataFormat))
+				return CAPITAL;
+			if ("Title".equals(dataFormat))
+				return TITLE;
+			return NONE;
+		}
+
+		String apply(String value) {
+			if (value == null || value.length() == 0)
+				return value;
+			switch (this) {
+			case CAPITAL:
+				return value.toUpperCase();
+			case TITLE:
+				return value.substring(0, 1).toUpperCase()
+						+ ((value.length() > 1) ? value.substring(1)
+								.toLowerCase() : "");
+			default:
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * stsAttributes - STS attribute names
+	 */
+	private final String[] stsAttributes;
+	/**
+	 * xwikiFields - XWiki user fields, same index as in stsAttributes
+	 */
+	private final String[] xwikiFields;
+	/**
+	 * transforms - value transformations, same index as in stsAttributes
+	 */
+	private final Transform[] transforms;
+
+	private STSFieldMapping(String[] stsAttributes, String[] xwikiFields,
+			Transform[] transforms) {
+		this.stsAttributes = stsAttributes;
+		this.xwikiFields = xwikiFields;
+		this.transforms = transforms;
+	}
+
+	/**
+	 * compile(String fieldMapping, String dataFormat) - parses
+	 * "xwiki_field=sts_attribute,..." mapping. Wrong entries are logged and
+	 * skipped.
+	 *
+	 * @param fieldMapping String - field_mapping value, can be null
+	 * @param dataFormat String - data_format value, can be null
+	 * @return STSFieldMapping
+	 */
+	static STSFieldMapping compile(String fieldMapping, String dataFormat) {
+		Transform transform = Transform.fromDataFormat(dataFormat);
+		List<String> attrs = new ArrayList<String>();
+		List<String> fields = new ArrayList<String>();
+		if (fieldMapping != null) {
+			String[] entries = fieldMapping.split(",");
+			for (int j = 0; j < entries.length; j++) {
+				String[] field = entries[j].split("=");
+				if (2 == field.length) {
+					fields.add(field[0].trim());
+					attrs.add(field[1].trim());
+				} else {
+					log.error("Error parsing STS fields_mapping attribute in xwiki.cfg: "
+							+ entries[j]);
+				}
+			}
+		}
+		Transform[] transforms = new Transform[attrs.size()];
+		for (int i = 0; i < transforms.length; i++)
+			transforms[i] = transform;
+		return new STSFieldMapping(attrs.toArray(new String[attrs.size()]),
+				fields.toArray(new String[fields.size()]), transforms);
+	}
+
+	/**
+	 * apply(Map<String, String> attributes) - maps STS attributes to XWiki
+	 * user fields. Attributes without value are skipped.
+	 *
+	 * @param attributes Map<String, String> - STS attributes
+	 * @return Map<String, String> - XWiki user field values
+	 */
+	Map<String, String> apply(Map<String, String> attributes) {
+		Map<String, String> extInfos = new HashMap<String, String>(
+				stsAttributes.length * 2);
+		for (int i = 0; i < stsAttributes.length; i++) {
+			String dataValue = attributes.get(stsAttributes[i]);
+			if (dataValue != null)
+				extInfos.put(xwikiFields[i], transforms[i].apply(dataValue));
+		}
+		return extInfos;
+	}
+
+	int size() {
+		return stsAttributes.length;
+	}
+
+	String getStsAttribute(int i) {
+		return stsAttributes[i];
+	}
+
+	String getXWikiField(int i) {
+		return xwikiFields[i];
+	}
+
+	Transform getTransform(int i) {
+		return transforms[i];
+	}
+}
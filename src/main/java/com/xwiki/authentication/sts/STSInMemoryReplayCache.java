@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory replay cache of one JVM. IDs are kept in a ConcurrentHashMap
+ * (lock striped) and are also put into time buckets by their expiration
+ * time. Expired buckets are dropped as a whole when time passes bucket
+ * border, so there is no sweep over all entries and every call is O(1)
+ * amortized.
+ *
+ * @version 1.0
+ */
+public class STSInMemoryReplayCache implements STSReplayCache {
+	/**
+	 * DEFAULT_BUCKET_MILLIS - length of one expiration bucket
+	 */
+	static final long DEFAULT_BUCKET_MILLIS = 60 * 1000L;
+	/**
+	 * MIN_RETENTION_MILLIS - IDs are kept at least this long, also when
+	 * token lifetime isn't checked or is already over
+	 */
+	static final long MIN_RETENTION_MILLIS = 5 * 60 * 1000L;
+	/**
+	 * bucketMillis - length of one expiration bucket
+	 */
+	private final long bucketMillis;
+	/**
+	 * seen - assertion ID => expiration time
+	 */
+	private final ConcurrentMap<String, Long> seen = new ConcurrentHashMap<String, Long>();
+	/**
+	 * buckets - bucket number => IDs expiring in that bucket
+	 */
+	private final ConcurrentMap<Long, Queue<String>> buckets = new ConcurrentHashMap<Long, Queue<String>>();
+	/**
+	 * purgedBucket - all buckets before this one are already dropped
+	 */
+	private final AtomicLong purgedBucket = new AtomicLong();
+
+	public STSInMemoryReplayCache() {
+		this(DEFAULT_BUCKET_MILLIS);
+	}
+
+	/**
+	 * @param bucketMillis long - length of one expiration bucket
+	 */
+	public STSInMemoryReplayCache(long bucketMillis) {
+		this.bucketMillis = bucketMillis;
+		this.purgedBucket.set(System.currentTimeMillis() / bucketMillis);
+	}
+
+	public boolean contains(String assertionId) {
+		long now = now();
+		purge(now);
+		Long expiresAt = seen.get(assertionId);
+		return expiresAt != null && expiresAt.longValue() > now;
+	}
+
+	public boolean markIfAbsent(String assertionId, long notOnOrAfter) {
+		long now = now();
+		purge(now);
+		Long expiresAt = Long.valueOf(Math.max(notOnOrAfter, now
+				+ MIN_RETENTION_MILLIS));
+		Long previous = seen.putIfAbsent(assertionId, expiresAt);
+		if (previous != null) {
+			// expired entry which is not purged yet can be replaced
+			if (previous.longValue() > now
+					|| !seen.replace(assertionId, previous, expiresAt))
+				return false;
+		}
+		bucket(expiresAt.longValue() / bucketMillis).add(assertionId);
+		return true;
+	}
+
+	public void forget(String assertionId) {
+		seen.remove(assertionId);
+	}
+
+	public int size() {
+		return seen.size();
+	}
+
+	public void clear() {
+		seen.clear();
+		buckets.clear();
+	}
+
+	/**
+	 * now() - current time in milliseconds, overridden in tests
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private Queue<String> bucket(long number) {
+		Long key = Long.valueOf(number);
+		Queue<String> bucket = buckets.get(key);
+		if (bucket == null) {
+			Queue<String> created = new ConcurrentLinkedQueue<String>();
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null)
+				bucket = created;
+		}
+		return bucket;
+	}
+
+	/**
+	 * purge(long now) - drops buckets which are fully expired. Only one
+	 * thread does it when time passes bucket border, others return at once.
+	 */
+	private void purge(long now) {
+		long current = now / bucketMillis;
+		long purged = purgedBucket.get();
+		if (current <= purged || !purgedBucket.compareAndSet(purged, current))
+			return;
+		Iterator<Long> numbers = buckets.keySet().iterator();
+		while (numbers.hasNext()) {
+			Long number = numbers.next();
+			if (number.longValue() >= current)
+				continue;
+			Queue<String> bucket = buckets.get(number);
+			numbers.remove();
+			if (bucket == null)
+				continue;
+			for (String id : bucket) {
+				Long expiresAt = seen.get(id);
+				if (expiresAt != null && expiresAt.longValue() <= now)
+					seen.remove(id, expiresAt);
+			}
+		}
+	}
+}
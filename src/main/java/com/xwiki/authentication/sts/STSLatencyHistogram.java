@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, like HdrHistogram:
+ * every power of two range is split into SUB_BUCKETS equal buckets, so the
+ * relative error of percentiles is below 1 / SUB_BUCKETS (about 3%)
+ * whatever the value is. Recording is a few atomic increments without
+ * allocation. Values are nanoseconds, longer than MAX_VALUE are counted
+ * as MAX_VALUE.
+ *
+ * @version 1.0
+ */
+final class STSLatencyHistogram {
+	/**
+	 * SUB_BUCKET_BITS - log2 of buckets per power of two
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * MAX_BITS - values up to 2^MAX_BITS ns (about 18 minutes)
+	 */
+	private static final int MAX_BITS = 40;
+	static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(
+			bucketIndex(MAX_VALUE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * record(long nanos) - adds value
+	 *
+	 * @param nanos long - latency in nanoseconds, negative is counted as 0
+	 */
+	void record(long nanos) {
+		long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+		counts.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * bucketUpperBound(int index) - highest value counted in the bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * getPercentile(double percentile) - value below or equal to which the
+	 * given percent of recorded values are
+	 *
+	 * @param percentile double - 0..100
+	 * @return long - nanoseconds, 0 if nothing is recorded
+	 */
+	long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long target = Math.max(1,
+				(long) Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(bucketUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * getMean() - average of recorded values in nanoseconds
+	 *
+	 * @return double
+	 */
+	double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	/**
+	 * reset() - drops recorded values. Values recorded at the same time
+	 * can be partly kept.
+	 */
+	void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
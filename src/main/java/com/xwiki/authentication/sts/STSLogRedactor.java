@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+/**
+ * Decides how much of STS tokens, certificates and other secrets gets into
+ * debug and trace logs. Callers check the log level first, so redacted text
+ * is built only when the message is really written. Mode is set from
+ * xwiki.authentication.sts.log_payload when configuration is loaded.
+ *
+ * @version 1.0
+ */
+final class STSLogRedactor {
+	/**
+	 * How payloads are written to the log
+	 */
+	enum Mode {
+		/**
+		 * only length of the payload
+		 */
+		NONE,
+		/**
+		 * first TRUNCATED_LENGTH characters and length
+		 */
+		TRUNCATED,
+		/**
+		 * whole payload
+		 */
+		FULL;
+
+		/**
+		 * fromValue(String value) - none, truncated or full, NONE for other
+		 * values
+		 *
+		 * @param value String - log_payload value, can be null
+		 * @return Mode
+		 */
+		static Mode fromValue(String value) {
+			if ("truncated".equalsIgnoreCase(value))
+				return TRUNCATED;
+			if ("full".equalsIgnoreCase(value))
+				return FULL;
+			return NONE;
+		}
+	}
+
+	/**
+	 * TRUNCATED_LENGTH - length of the payload start written in TRUNCATED
+	 * mode
+	 */
+	static final int TRUNCATED_LENGTH = 64;
+	/**
+	 * SECRET_PARAMETERS - request parameters holding tokens or passwords
+	 */
+	private static final String[] SECRET_PARAMETERS = { "wresult",
+			"password", "j_password" };
+
+	private static volatile Mode mode = Mode.NONE;
+
+	private STSLogRedactor() {
+	}
+
+	static void setMode(Mode newMode) {
+		mode = newMode == null ? Mode.NONE : newMode;
+	}
+
+	static Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * isFull() - true if payloads may be written to the log as they are
+	 *
+	 * @return boolean
+	 */
+	static boolean isFull() {
+		return mode == Mode.FULL;
+	}
+
+	/**
+	 * payload(Object payload) - token, certificate or other secret as it may
+	 * be written to the log
+	 *
+	 * @param payload Object - payload, can be null
+	 * @return String
+	 */
+	static String payload(Object payload) {
+		if (payload == null)
+			return "null";
+		Mode current = mode;
+		if (current == Mode.FULL)
+			return payload.toString();
+		String text = payload.toString();
+		if (current == Mode.TRUNCATED && text.length() > TRUNCATED_LENGTH)
+			return text.substring(0, TRUNCATED_LENGTH) + "... [" + text.length()
+					+ " chars]";
+		if (current == Mode.TRUNCATED)
+			return text;
+		return "[" + text.length() + " chars redacted]";
+	}
+
+	/**
+	 * parameter(String name, String value) - request parameter or header
+	 * value as it may be written to the log. Only known secret parameters
+	 * are redacted.
+	 *
+	 * @param name String - parameter name
+	 * @param value String - parameter value
+	 * @return String
+	 */
+	static String parameter(String name, String value) {
+		for (String secret : SECRET_PARAMETERS) {
+			if (secret.equalsIgnoreCase(name))
+				return payload(value);
+		}
+		if ("cookie".equalsIgnoreCase(name)
+				|| "authorization".equalsIgnoreCase(name))
+			return payload(value);
+		return value;
+	}
+}
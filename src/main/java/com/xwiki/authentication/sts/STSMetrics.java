@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of STS login stages and counts of logins and validation failures
+ * by reason. Stage timers are taken with System.nanoTime() and recorded
+ * into STSLatencyHistogram, so instrumentation doesn't allocate or lock.
+ *
+ * @version 1.0
+ */
+final class STSMetrics {
+	/**
+	 * Measured stages of login
+	 */
+	enum Stage {
+		/**
+		 * StAX pre-scan of the envelope
+		 */
+		PRESCAN,
+		/**
+		 * DOM parsing of the token
+		 */
+		PARSE,
+		/**
+		 * SAML token unmarshalling and attribute reading
+		 */
+		UNMARSHAL,
+		/**
+		 * context and lifetime checks
+		 */
+		PRECHECK,
+		/**
+		 * trusted certificate or issuer/subject DN match
+		 */
+		CERTIFICATE,
+		/**
+		 * signature verification
+		 */
+		SIGNATURE,
+		/**
+		 * claim extraction
+		 */
+		CLAIMS,
+		/**
+		 * user search by person ID
+		 */
+		USER_LOOKUP,
+		/**
+		 * user creation or profile update
+		 */
+		PROVISION,
+		/**
+		 * redirect after authentication
+		 */
+		REDIRECT,
+		/**
+		 * whole checkSTSResponse()
+		 */
+		LOGIN
+	}
+
+	/**
+	 * GLOBAL - metrics of all logins in this JVM
+	 */
+	static final STSMetrics GLOBAL = new STSMetrics();
+
+	private final STSLatencyHistogram[] stages = new STSLatencyHistogram[Stage
+			.values().length];
+	/**
+	 * failures - count by STSValidationError ordinal
+	 */
+	private final AtomicLongArray failures = new AtomicLongArray(
+			STSValidationError.values().length);
+	private final AtomicLong succeededLogins = new AtomicLong();
+	private final AtomicLong failedLogins = new AtomicLong();
+	/**
+	 * startedAt - time when counting was started or reset
+	 */
+	private volatile long startedAt = System.currentTimeMillis();
+
+	STSMetrics() {
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = new STSLatencyHistogram();
+	}
+
+	/**
+	 * record(Stage stage, long startNanos) - records time from startNanos
+	 * till now
+	 *
+	 * @param stage Stage
+	 * @param startNanos long - System.nanoTime() at the start of the stage
+	 */
+	void record(Stage stage, long startNanos) {
+		stages[stage.ordinal()].record(System.nanoTime() - startNanos);
+	}
+
+	void failed(STSValidationError error) {
+		failures.incrementAndGet(error.ordinal());
+	}
+
+	/**
+	 * login(boolean succeeded) - counts finished login
+	 *
+	 * @param succeeded boolean
+	 */
+	void login(boolean succeeded) {
+		if (succeeded)
+			succeededLogins.incrementAndGet();
+		else
+			failedLogins.incrementAndGet();
+	}
+
+	STSLatencyHistogram getHistogram(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	long getFailures(STSValidationError error) {
+		return failures.get(error.ordinal());
+	}
+
+	long getSucceededLogins() {
+		return succeededLogins.get();
+	}
+
+	long getFailedLogins() {
+		return failedLogins.get();
+	}
+
+	long getStartedAt() {
+		return startedAt;
+	}
+
+	void reset() {
+		for (STSLatencyHistogram histogram : stages)
+			histogram.reset();
+		for (int i = 0; i < failures.length(); i++)
+			failures.set(i, 0);
+		succeededLogins.set(0);
+		failedLogins.set(0);
+		startedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * toString() - stage latencies in milliseconds and failure counts
+	 *
+	 * @return String
+	 */
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append("logins: ").append(succeededLogins).append(" ok, ")
+				.append(failedLogins).append(" failed\n");
+		for (Stage stage : Stage.values()) {
+			STSLatencyHistogram histogram = getHistogram(stage);
+			if (histogram.getCount() == 0)
+				continue;
+			out.append(String.format(Locale.ROOT,
+					"%-12s n=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms%n",
+					stage, histogram.getCount(),
+					histogram.getPercentile(50) / 1e6,
+					histogram.getPercentile(99) / 1e6,
+					histogram.getPercentile(99.9) / 1e6,
+					histogram.getMax() / 1e6));
+		}
+		for (STSValidationError error : STSValidationError.values()) {
+			long n = getFailures(error);
+			if (n > 0)
+				out.append(error).append(": ").append(n).append('\n');
+		}
+		return out.toString();
+	}
+}
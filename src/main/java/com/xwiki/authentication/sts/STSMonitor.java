@@ -0,0 +1,303 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * STSMonitorMXBean of one XWikiSTSAuthenticator. Getters read counters
+ * which are already kept by metrics and caches, so monitoring adds no work
+ * to logins. Only the latest created authenticator of the web application
+ * is registered. Name of the monitor has the web application context path,
+ * if it is known from STSBootstrapListener, or the class loader ID, so
+ * several web applications in one JVM don't replace each other's monitor.
+ *
+ * @version 1.0
+ */
+final class STSMonitor implements STSMonitorMXBean {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSMonitor.class);
+	/**
+	 * OBJECT_NAME - JMX name of the monitor without web application key
+	 */
+	static final String OBJECT_NAME = "com.xwiki.authentication.sts:type=XWikiSTSAuthenticator";
+	/**
+	 * webapp - context path of the web application, null if unknown
+	 */
+	private static volatile String webapp;
+	/**
+	 * registered - name of the registered monitor, guarded by STSMonitor.class
+	 */
+	private static ObjectName registered;
+
+	private final XWikiSTSAuthenticator authenticator;
+	private final STSMetrics metrics;
+
+	/**
+	 * <b>STSMonitor</b>
+	 *
+	 * @param authenticator XWikiSTSAuthenticator - monitored authenticator
+	 * @param metrics STSMetrics - login metrics
+	 */
+	STSMonitor(XWikiSTSAuthenticator authenticator, STSMetrics metrics) {
+		this.authenticator = authenticator;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * register(XWikiSTSAuthenticator authenticator) - registers monitor in
+	 * the platform MBean server, replacing monitor of the previous
+	 * authenticator. Errors are logged, not thrown.
+	 *
+	 * @param authenticator XWikiSTSAuthenticator
+	 */
+	static synchronized void register(XWikiSTSAuthenticator authenticator) {
+		unregister();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getObjectName();
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new STSMonitor(authenticator,
+					STSMetrics.GLOBAL), name);
+			registered = name;
+		} catch (Exception e) {
+			log.warn("Can't register JMX monitor " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	/**
+	 * unregister() - removes registered monitor from the platform MBean
+	 * server, so the web application can be unloaded. Errors are logged, not
+	 * thrown.
+	 */
+	static synchronized void unregister() {
+		if (registered == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					registered);
+		} catch (Exception e) {
+			log.warn("Can't unregister JMX monitor " + registered + ": " + e);
+		}
+		registered = null;
+	}
+
+	/**
+	 * setWebapp(String contextPath) - sets web application used in the name
+	 * of monitors registered later
+	 *
+	 * @param contextPath String - servlet context path, "" for root
+	 */
+	static void setWebapp(String contextPath) {
+		webapp = contextPath;
+	}
+
+	/**
+	 * getObjectName() - JMX name of the monitor in this web application
+	 *
+	 * @return ObjectName
+	 * @throws MalformedObjectNameException
+	 */
+	static ObjectName getObjectName() throws MalformedObjectNameException {
+		String contextPath = webapp;
+		String key = contextPath == null ? "loader-"
+				+ Integer.toHexString(System.identityHashCode(STSMonitor.class
+						.getClassLoader())) : contextPath.length() == 0 ? "/"
+				: contextPath;
+		return new ObjectName(OBJECT_NAME + ",webapp="
+				+ ObjectName.quote(key));
+	}
+
+	public long getSucceededLogins() {
+		return metrics.getSucceededLogins();
+	}
+
+	public long getFailedLogins() {
+		return metrics.getFailedLogins();
+	}
+
+	public double getLoginsPerSecond() {
+		long millis = System.currentTimeMillis() - metrics.getStartedAt();
+		return millis <= 0 ? 0 : (metrics.getSucceededLogins() + metrics
+				.getFailedLogins()) * 1000.0 / millis;
+	}
+
+	public Map<String, Long> getFailuresByReason() {
+		Map<String, Long> failures = new LinkedHashMap<String, Long>();
+		for (STSValidationError error : STSValidationError.values())
+			failures.put(error.name(), metrics.getFailures(error));
+		return failures;
+	}
+
+	public Map<String, Double> getLatencyP50Millis() {
+		return percentiles(50);
+	}
+
+	public Map<String, Double> getLatencyP99Millis() {
+		return percentiles(99);
+	}
+
+	public Map<String, Double> getLatencyP999Millis() {
+		return percentiles(99.9);
+	}
+
+	public Map<String, Double> getLatencyMaxMillis() {
+		Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+		for (STSMetrics.Stage stage : STSMetrics.Stage.values())
+			latencies.put(stage.name(),
+					metrics.getHistogram(stage).getMax() / 1e6);
+		return latencies;
+	}
+
+	public Map<String, Long> getStageCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (STSMetrics.Stage stage : STSMetrics.Stage.values())
+			counts.put(stage.name(), metrics.getHistogram(stage).getCount());
+		return counts;
+	}
+
+	private Map<String, Double> percentiles(double percentile) {
+		Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+		for (STSMetrics.Stage stage : STSMetrics.Stage.values())
+			latencies.put(stage.name(), metrics.getHistogram(stage)
+					.getPercentile(percentile) / 1e6);
+		return latencies;
+	}
+
+	public int getUserCacheSize() {
+		STSUserCache users = authenticator.getCurrentUserCache();
+		return users == null ? 0 : users.size();
+	}
+
+	public double getUserCacheHitRate() {
+		STSUserCache users = authenticator.getCurrentUserCache();
+		return users == null ? 0 : users.getHitRate();
+	}
+
+	public int getProfileCacheSize() {
+		STSProfileSynchronizer profiles = authenticator
+				.getCurrentProfileSynchronizer();
+		return profiles == null ? 0 : profiles.size();
+	}
+
+	public double getProfileCacheHitRate() {
+		STSProfileSynchronizer profiles = authenticator
+				.getCurrentProfileSynchronizer();
+		return profiles == null ? 0 : hitRate(profiles.getHits(),
+				profiles.getMisses());
+	}
+
+	public int getCertificateCount() {
+		return XWikiSTSAuthenticator.getProps().getLoadedCertificateCount();
+	}
+
+	public double getCertificateCacheHitRate() {
+		Props props = XWikiSTSAuthenticator.getProps();
+		return hitRate(props.getCertHits(), props.getCertLoads());
+	}
+
+	public long getCertificateLoads() {
+		return XWikiSTSAuthenticator.getProps().getCertLoads();
+	}
+
+	public int getReplayCacheSize() {
+		STSReplayCache replays = authenticator.getCurrentReplayCache();
+		if (replays == null)
+			return 0;
+		try {
+			return replays.size();
+		} catch (RuntimeException e) {
+			log.debug("Can't get replay cache size: " + e);
+			return -1;
+		}
+	}
+
+	public long getReplayedTokens() {
+		return metrics.getFailures(STSValidationError.REPLAYED);
+	}
+
+	public int getParserPoolIdle() {
+		return STSParserPool.getIdleCount();
+	}
+
+	public double getParserPoolHitRate() {
+		return hitRate(STSParserPool.getHits(), STSParserPool.getMisses());
+	}
+
+	public int getProfileSyncQueueSize() {
+		STSAsyncProfileSync async = authenticator.getCurrentAsyncProfileSync();
+		return async == null ? 0 : async.getQueueSize();
+	}
+
+	public boolean isBootstrapped() {
+		return STSBootstrap.isBootstrapped();
+	}
+
+	public long getBootstrapTimeMillis() {
+		return STSBootstrap.getBootstrapTime();
+	}
+
+	public Date getConfigurationLoadedAt() {
+		STSConfig cfg = authenticator.getCurrentConfig();
+		return cfg == null ? null : new Date(cfg.loadedAt);
+	}
+
+	public List<String> getRecentErrors() {
+		return STSRecentErrors.RECENT.snapshot();
+	}
+
+	public void flushCaches() {
+		log.info("STS caches are flushed from JMX");
+		authenticator.flushCaches();
+	}
+
+	public void reloadCertificate() {
+		authenticator.reloadCertificate();
+	}
+
+	public void reloadConfiguration() {
+		authenticator.reloadConfiguration();
+	}
+
+	public void resetMetrics() {
+		metrics.reset();
+	}
+
+	private static double hitRate(long hits, long misses) {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
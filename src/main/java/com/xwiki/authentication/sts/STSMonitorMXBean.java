@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the STS authenticator, registered as
+ * com.xwiki.authentication.sts:type=XWikiSTSAuthenticator. Shows login
+ * counts and stage latencies from STSMetrics, state of the caches and
+ * OpenSAML bootstrap, and allows to flush caches and reload certificates
+ * or configuration without restart (e.g. from jconsole).
+ *
+ * @version 1.0
+ */
+public interface STSMonitorMXBean {
+	long getSucceededLogins();
+
+	long getFailedLogins();
+
+	/**
+	 * getLoginsPerSecond() - average login rate since start or last
+	 * resetMetrics()
+	 *
+	 * @return double
+	 */
+	double getLoginsPerSecond();
+
+	/**
+	 * getFailuresByReason() - token validation failures by STSValidationError
+	 *
+	 * @return Map<String, Long>
+	 */
+	Map<String, Long> getFailuresByReason();
+
+	/**
+	 * getLatencyP50Millis() - median latency of login stages
+	 *
+	 * @return Map<String, Double> - stage => milliseconds
+	 */
+	Map<String, Double> getLatencyP50Millis();
+
+	Map<String, Double> getLatencyP99Millis();
+
+	Map<String, Double> getLatencyP999Millis();
+
+	Map<String, Double> getLatencyMaxMillis();
+
+	/**
+	 * getStageCounts() - number of measurements of login stages
+	 *
+	 * @return Map<String, Long>
+	 */
+	Map<String, Long> getStageCounts();
+
+	int getUserCacheSize();
+
+	double getUserCacheHitRate();
+
+	int getProfileCacheSize();
+
+	double getProfileCacheHitRate();
+
+	/**
+	 * getCertificateCount() - number of trusted certificates in memory
+	 *
+	 * @return int
+	 */
+	int getCertificateCount();
+
+	/**
+	 * getCertificateCacheHitRate() - part of certificate requests served
+	 * without reading files
+	 *
+	 * @return double - 0..1
+	 */
+	double getCertificateCacheHitRate();
+
+	long getCertificateLoads();
+
+	/**
+	 * getReplayCacheSize() - number of remembered assertion IDs, -1 if
+	 * replay cache doesn't tell it
+	 *
+	 * @return int
+	 */
+	int getReplayCacheSize();
+
+	/**
+	 * getReplayedTokens() - number of tokens rejected as already used
+	 *
+	 * @return long
+	 */
+	long getReplayedTokens();
+
+	int getParserPoolIdle();
+
+	double getParserPoolHitRate();
+
+	int getProfileSyncQueueSize();
+
+	boolean isBootstrapped();
+
+	/**
+	 * getBootstrapTimeMillis() - how long OpenSAML bootstrap took, -1 if
+	 * it wasn't done
+	 *
+	 * @return long
+	 */
+	long getBootstrapTimeMillis();
+
+	/**
+	 * getConfigurationLoadedAt() - time when configuration was read, null
+	 * if it will be read on the next request
+	 *
+	 * @return Date
+	 */
+	Date getConfigurationLoadedAt();
+
+	/**
+	 * getRecentErrors() - latest login failures, oldest first
+	 *
+	 * @return List<String>
+	 */
+	List<String> getRecentErrors();
+
+	/**
+	 * flushCaches() - clears cached users and profile hashes
+	 */
+	void flushCaches();
+
+	/**
+	 * reloadCertificate() - trusted certificates are read again on the next
+	 * request
+	 */
+	void reloadCertificate();
+
+	/**
+	 * reloadConfiguration() - configuration snapshot, certificates and
+	 * validator are built again on the next request and caches are cleared.
+	 * Configuration is taken from xwiki.cfg as XWiki loaded it at startup,
+	 * so changes of xwiki.cfg still need restart.
+	 */
+	void reloadConfiguration();
+
+	/**
+	 * resetMetrics() - zeroes login counts and latencies
+	 */
+	void resetMetrics();
+}
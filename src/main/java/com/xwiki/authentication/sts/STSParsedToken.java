@@ -0,0 +1,398 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.Instant;
+import org.opensaml.Configuration;
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * STS token parsed once per request. Envelope values (RSTR Context,
+ * lifetime, assertion ID, Issuer and NotOnOrAfter) are read by a streaming StAX pre-scan when
+ * the object is created, so expired or foreign tokens can be rejected
+ * before any DOM is built. The DOM, the unmarshalled SAML token,
+ * saml:Attribute values and authentication method are parsed on first
+ * access and kept, so validation and attribute mapping don't need to parse
+ * the XML again.
+ *
+ * @version 1.0
+ */
+public class STSParsedToken {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSParsedToken.class);
+	/**
+	 * inputFactory - StAX factory used for the envelope pre-scan, thread
+	 * safe once configured
+	 */
+	private static final XMLInputFactory inputFactory = createInputFactory();
+	/**
+	 * envelopedToken - raw wresult value the token was parsed from
+	 */
+	private final String envelopedToken;
+	/**
+	 * document - namespace aware DOM of the enveloped token
+	 */
+	private Document document;
+	/**
+	 * samlToken - unmarshalled SAML assertion
+	 */
+	private SignableSAMLObject samlToken;
+	/**
+	 * context - Context attribute of t:RequestSecurityTokenResponse
+	 */
+	private String context;
+	/**
+	 * created - wsu:Created value of the token lifetime
+	 */
+	private Instant created;
+	/**
+	 * expires - wsu:Expires value of the token lifetime
+	 */
+	private Instant expires;
+	/**
+	 * issuer - Issuer attribute of saml:Assertion
+	 */
+	private String issuer;
+	/**
+	 * assertionId - AssertionID (SAML 1) or ID (SAML 2) of the assertion
+	 */
+	private String assertionId;
+	/**
+	 * notOnOrAfter - NotOnOrAfter of the assertion Conditions
+	 */
+	private Instant notOnOrAfter;
+	/**
+	 * attributes - saml:Attribute names and values as they came from STS
+	 */
+	private Map<String, String> attributes;
+	/**
+	 * authenticationMethod - AuthenticationMethod of
+	 * saml:AuthenticationStatement
+	 */
+	private String authenticationMethod;
+
+	/**
+	 * <b>STSParsedToken</b> - pre-scans enveloped token with StAX reader and
+	 * extracts envelope values. The DOM is not built here.
+	 *
+	 * @param envelopedToken String - wresult value received from STS
+	 * @throws STSException - if token is not well-formed XML
+	 */
+	public STSParsedToken(String envelopedToken) throws STSException {
+		this.envelopedToken = envelopedToken;
+		long start = System.nanoTime();
+		prescan();
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.PRESCAN, start);
+	}
+
+	public String getEnvelopedToken() {
+		return envelopedToken;
+	}
+
+	/**
+	 * Context, lifetime and issuer are available right after construction
+	 */
+	public String getContext() {
+		return context;
+	}
+
+	public Instant getCreated() {
+		return created;
+	}
+
+	public Instant getExpires() {
+		return expires;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public String getAssertionId() {
+		return assertionId;
+	}
+
+	public Instant getNotOnOrAfter() {
+		return notOnOrAfter;
+	}
+
+	/**
+	 * DOM based values - token is parsed on first call of any of them
+	 */
+	public Document getDocument() throws ParserConfigurationException,
+			SAXException, IOException, UnmarshallingException, STSException {
+		parse();
+		return document;
+	}
+
+	public SignableSAMLObject getSamlToken()
+			throws ParserConfigurationException, SAXException, IOException,
+			UnmarshallingException, STSException {
+		parse();
+		return samlToken;
+	}
+
+	public Map<String, String> getAttributes()
+			throws ParserConfigurationException, SAXException, IOException,
+			UnmarshallingException, STSException {
+		parse();
+		return attributes;
+	}
+
+	public String getAuthenticationMethod()
+			throws ParserConfigurationException, SAXException, IOException,
+			UnmarshallingException, STSException {
+		parse();
+		return authenticationMethod;
+	}
+
+	/**
+	 * prescan() - streams through the enveloped token and picks up Context
+	 * of RequestSecurityTokenResponse, Created and Expires of the lifetime,
+	 * ID and Issuer of the Assertion and NotOnOrAfter of its Conditions.
+	 * Stops as soon as all of them are found.
+	 *
+	 * @throws STSException - if token is not well-formed XML
+	 */
+	private void prescan() throws STSException {
+		String createdVal = null;
+		String expiresVal = null;
+		String notOnOrAfterVal = null;
+		boolean rstrFound = false;
+		boolean assertionFound = false;
+		boolean conditionsFound = false;
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(new StringReader(
+					envelopedToken));
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT)
+					continue;
+				String name = reader.getLocalName();
+				if (!rstrFound && "RequestSecurityTokenResponse".equals(name)) {
+					rstrFound = true;
+					context = reader.getAttributeValue(null, "Context");
+				} else if (createdVal == null && "Created".equals(name)) {
+					createdVal = reader.getElementText();
+				} else if (expiresVal == null && "Expires".equals(name)) {
+					expiresVal = reader.getElementText();
+				} else if (!assertionFound && "Assertion".equals(name)) {
+					assertionFound = true;
+					issuer = reader.getAttributeValue(null, "Issuer");
+					assertionId = reader.getAttributeValue(null, "AssertionID");
+					if (assertionId == null)
+						assertionId = reader.getAttributeValue(null, "ID");
+				} else if (assertionFound && !conditionsFound
+						&& "Conditions".equals(name)) {
+					conditionsFound = true;
+					notOnOrAfterVal = reader.getAttributeValue(null,
+							"NotOnOrAfter");
+				}
+				if (rstrFound && conditionsFound && createdVal != null
+						&& expiresVal != null)
+					break;
+			}
+		} catch (XMLStreamException e) {
+			throw new STSException("Token is not well-formed XML", e);
+		} finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					log.error(e);
+				}
+		}
+		try {
+			created = toInstant(createdVal);
+			expires = toInstant(expiresVal);
+			notOnOrAfter = toInstant(notOnOrAfterVal);
+		} catch (IllegalArgumentException e) {
+			throw new STSException("Wrong token lifetime format", e);
+		}
+	}
+
+	/**
+	 * parse() - builds DOM of the enveloped token, unmarshalls SAML token
+	 * and reads attributes. Does nothing if token is already parsed.
+	 */
+	private void parse() throws ParserConfigurationException, SAXException,
+			IOException, UnmarshallingException, STSException {
+		if (document != null)
+			return;
+		long start = System.nanoTime();
+		Document doc = getDocument(envelopedToken);
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.PARSE, start);
+
+		start = System.nanoTime();
+		if (envelopedToken.contains("RequestSecurityTokenResponse")) {
+			samlToken = getSamlTokenFromRstr(doc);
+		} else {
+			samlToken = getSamlTokenFromSamlResponse(doc);
+		}
+
+		attributes = Collections.unmodifiableMap(getAttributes(doc));
+		authenticationMethod = getAttrVal(doc,
+				"saml:AuthenticationStatement", "AuthenticationMethod");
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.UNMARSHAL, start);
+		document = doc;
+	}
+
+	/**
+	 * getSamlTokenFromSamlResponse (Document document)
+	 *
+	 * Gets SignableSAMLObject from a parsed SAML 2 Response - first assertion
+	 * of the response.
+	 *
+	 * @param document - parsed SAML Response
+	 * @return SignableSAMLObject (Security Assertion Markup Language)
+	 * @throws UnmarshallingException - thrown whenever an error occurs during
+	 *             the unmarshalling process
+	 */
+	static SignableSAMLObject getSamlTokenFromSamlResponse(Document document)
+			throws UnmarshallingException {
+		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
+				.getUnmarshaller(document.getDocumentElement());
+		org.opensaml.saml2.core.Response response = (org.opensaml.saml2.core.Response) unmarshaller
+				.unmarshall(document.getDocumentElement());
+		return response.getAssertions().get(0);
+	}
+
+	/**
+	 * getSamlTokenFromRstr (Document document) - get SAML Token from parsed
+	 * RSTR document. Throws new STSException("SAML token was not found") if
+	 * can't find SAML token.
+	 *
+	 * @param document - parsed RSTR from which will be extracted SamlToken
+	 * @return SignableSAMLObject - an instance of SAMLObject (Security
+	 *         Assertion Markup Language)
+	 * @throws UnmarshallingException, STSException
+	 */
+	static SignableSAMLObject getSamlTokenFromRstr(Document document)
+			throws UnmarshallingException, STSException {
+		String xpath = "//*[local-name() = 'Assertion']";
+
+		NodeList nodes = null;
+
+		try {
+			nodes = org.apache.xpath.XPathAPI.selectNodeList(document, xpath);
+		} catch (TransformerException e) {
+			log.error(e);
+		}
+
+		if (nodes == null || nodes.getLength() == 0) {
+			throw new STSException("SAML token was not found");
+		} else {
+			Element samlTokenElement = (Element) nodes.item(0);
+			Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
+					.getUnmarshaller(samlTokenElement);
+			return (SignableSAMLObject) unmarshaller
+					.unmarshall(samlTokenElement);
+		}
+	}
+
+	/**
+	 * getDocument(String doc) Parse document from string using pooled
+	 * DocumentBuilder
+	 *
+	 * @param doc String string containing info for document builder parser
+	 * @return Document - parsed from input string document
+	 */
+	static Document getDocument(String doc)
+			throws ParserConfigurationException, SAXException, IOException {
+		return STSParserPool.parse(doc);
+	}
+
+	/**
+	 * getAttributes(Document doc) Gets names and values of all saml:Attribute
+	 * elements
+	 *
+	 * @param doc Document - parsed token
+	 * @return Map<String, String> attribute name => first value
+	 */
+	private static Map<String, String> getAttributes(Document doc) {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		NodeList nodeList = doc.getElementsByTagName("saml:Attribute");
+		log.debug("Node list length:" + nodeList.getLength());
+		for (int i = 0; i < nodeList.getLength(); i++) {
+			Node node = nodeList.item(i);
+			Node name = node.getAttributes().getNamedItem("AttributeName");
+			Node value = node.getFirstChild();
+			if (name != null && value != null) {
+				attributes.put(name.getTextContent(), value.getTextContent());
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * getAttrVal(Document doc, String element, String attribute) Gets value
+	 * of the attribute of the first element with given name
+	 *
+	 * @param element String element to get value for
+	 * @param attribute String attribute to get value for
+	 * @return value String of element's attribute or null if not found
+	 */
+	private static String getAttrVal(Document doc, String element,
+			String attribute) {
+		Node node = doc.getElementsByTagName(element).item(0);
+		if (node == null)
+			return null;
+		Node attr = node.getAttributes().getNamedItem(attribute);
+		return attr == null ? null : attr.getNodeValue();
+	}
+
+	private static Instant toInstant(String value) {
+		return value == null ? null : new Instant(value.trim());
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Bounded pool of namespace aware DocumentBuilders used to parse STS tokens.
+ * Secure processing and external entity settings are applied once to the
+ * shared factory, builders are reset before they are returned to the pool.
+ * Hit and miss counters show if the pool is big enough. OpenSAML parser
+ * pool in OpenSAML Configuration is not replaced, it is shared by the whole
+ * JVM.
+ *
+ * @version 1.0
+ */
+final class STSParserPool {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSParserPool.class);
+	/**
+	 * DEFAULT_POOL_SIZE - max number of idle builders kept in the pool
+	 */
+	static final int DEFAULT_POOL_SIZE = 32;
+	/**
+	 * features - secure parser features
+	 */
+	private static final Map<String, Boolean> features = createFeatures();
+	/**
+	 * factory - shared factory, configured once
+	 */
+	private static final DocumentBuilderFactory factory = createFactory();
+	/**
+	 * pool - idle builders
+	 */
+	private static volatile BlockingQueue<DocumentBuilder> pool = new ArrayBlockingQueue<DocumentBuilder>(
+			DEFAULT_POOL_SIZE);
+	/**
+	 * hits - number of builders taken from the pool
+	 */
+	private static final AtomicLong hits = new AtomicLong();
+	/**
+	 * misses - number of builders created because the pool was empty
+	 */
+	private static final AtomicLong misses = new AtomicLong();
+
+	private STSParserPool() {
+	}
+
+	/**
+	 * parse(String doc) Parse document from string with pooled builder
+	 *
+	 * @param doc String string containing XML document
+	 * @return Document - parsed from input string document
+	 */
+	static Document parse(String doc) throws ParserConfigurationException,
+			SAXException, IOException {
+		DocumentBuilder builder = borrow();
+		try {
+			return builder.parse(new InputSource(new StringReader(doc)));
+		} finally {
+			release(builder);
+		}
+	}
+
+	/**
+	 * borrow() - takes idle builder from the pool or creates a new one
+	 *
+	 * @return DocumentBuilder
+	 */
+	static DocumentBuilder borrow() throws ParserConfigurationException {
+		DocumentBuilder builder = pool.poll();
+		if (builder != null) {
+			hits.incrementAndGet();
+			return builder;
+		}
+		misses.incrementAndGet();
+		synchronized (factory) {
+			return factory.newDocumentBuilder();
+		}
+	}
+
+	/**
+	 * release(DocumentBuilder builder) - resets builder and returns it to the
+	 * pool. Builder is dropped if the pool is full.
+	 *
+	 * @param builder DocumentBuilder got from borrow()
+	 */
+	static void release(DocumentBuilder builder) {
+		try {
+			builder.reset();
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+		pool.offer(builder);
+	}
+
+	/**
+	 * setMaxPoolSize(int size) - changes number of idle builders kept in the
+	 * pool. Does nothing if size is not changed.
+	 *
+	 * @param size int - new pool size, should be positive
+	 */
+	static synchronized void setMaxPoolSize(int size) {
+		if (size <= 0 || size == getMaxPoolSize())
+			return;
+		BlockingQueue<DocumentBuilder> newPool = new ArrayBlockingQueue<DocumentBuilder>(
+				size);
+		pool.drainTo(newPool, size);
+		pool = newPool;
+		log.debug("Parser pool size set to " + size);
+	}
+
+	static int getMaxPoolSize() {
+		BlockingQueue<DocumentBuilder> current = pool;
+		return current.size() + current.remainingCapacity();
+	}
+
+	static int getIdleCount() {
+		return pool.size();
+	}
+
+	static long getHits() {
+		return hits.get();
+	}
+
+	static long getMisses() {
+		return misses.get();
+	}
+
+	private static Map<String, Boolean> createFeatures() {
+		Map<String, Boolean> map = new HashMap<String, Boolean>();
+		map.put(XMLConstants.FEATURE_SECURE_PROCESSING, Boolean.TRUE);
+		map.put("http://apache.org/xml/features/disallow-doctype-decl",
+				Boolean.TRUE);
+		map.put("http://xml.org/sax/features/external-general-entities",
+				Boolean.FALSE);
+		map.put("http://xml.org/sax/features/external-parameter-entities",
+				Boolean.FALSE);
+		map.put("http://apache.org/xml/features/nonvalidating/load-external-dtd",
+				Boolean.FALSE);
+		return map;
+	}
+
+	private static DocumentBuilderFactory createFactory() {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		dbf.setXIncludeAware(false);
+		dbf.setExpandEntityReferences(false);
+		for (Map.Entry<String, Boolean> feature : features.entrySet()) {
+			try {
+				dbf.setFeature(feature.getKey(), feature.getValue()
+						.booleanValue());
+			} catch (ParserConfigurationException e) {
+				log.warn("XML parser doesn't support feature "
+						+ feature.getKey() + ": " + e);
+			}
+		}
+		return dbf;
+	}
+}
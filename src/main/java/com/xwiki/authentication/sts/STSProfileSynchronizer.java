@@ -0,0 +1,257 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.DocumentDeleteEvent;
+import org.xwiki.observation.event.DocumentSaveEvent;
+import org.xwiki.observation.event.DocumentUpdateEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * Synchronizes XWiki user profile with STS claims of returning users. Hash
+ * of the last synchronized claims is kept in memory; if claims didn't
+ * change, user document is not loaded at all. Hashes are dropped when user
+ * document is changed by someone else, then claims are compared with the
+ * current profile fields, so local edits of synchronized fields are
+ * replaced by the claims. Changed fields are saved as a minor edit without
+ * new document version. The optional "claimhash" field of XWiki.STSAuthClass
+ * records hash of the last saved claims, it is not used to skip updates.
+ *
+ * @version 1.0
+ */
+class STSProfileSynchronizer implements EventListener {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSProfileSynchronizer.class);
+	/**
+	 * CLAIM_HASH_FIELD - STSAuthClass field with hash of synchronized claims
+	 */
+	static final String CLAIM_HASH_FIELD = "claimhash";
+	/**
+	 * SAVE_COMMENT - comment of profile update
+	 */
+	static final String SAVE_COMMENT = "STS profile synchronization";
+	/**
+	 * EVENTS - document events which drop remembered hashes
+	 */
+	private static final List<Event> EVENTS = Arrays.<Event> asList(
+			new DocumentSaveEvent(), new DocumentUpdateEvent(),
+			new DocumentDeleteEvent());
+	/**
+	 * synced - user document full name => hash of synchronized claims
+	 */
+	private final STSExpiringCache<String, String> synced;
+	/**
+	 * ttlMillis - time to remember synchronized claims
+	 */
+	private final long ttlMillis;
+	/**
+	 * listening - true when registered for document events, remembered
+	 * hashes are used only then
+	 */
+	private volatile boolean listening;
+
+	/**
+	 * <b>STSProfileSynchronizer</b>
+	 *
+	 * @param maxSize int - max number of remembered users
+	 * @param ttlSeconds int - time to remember synchronized claims
+	 */
+	STSProfileSynchronizer(int maxSize, int ttlSeconds) {
+		this.synced = new STSExpiringCache<String, String>(Math.max(maxSize,
+				1));
+		this.ttlMillis = ttlSeconds * 1000L;
+	}
+
+	/**
+	 * claimHash(Map<String, String> userData, String authType) - SHA-256 of
+	 * mapped user fields and authentication type, independent of map order
+	 *
+	 * @param userData Map<String, String> - XWiki user field values
+	 * @param authType String - authentication method
+	 * @return String - hex encoded hash
+	 */
+	static String claimHash(Map<String, String> userData, String authType) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Map.Entry<String, String> entry : new TreeMap<String, String>(
+					userData).entrySet()) {
+				digest.update(entry.getKey().getBytes("UTF-8"));
+				digest.update((byte) 0);
+				if (entry.getValue() != null)
+					digest.update(entry.getValue().getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			if (authType != null)
+				digest.update(authType.getBytes("UTF-8"));
+			return new String(Hex.encodeHex(digest.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * isSynced(String fullName, String claimHash) - true if these claims
+	 * were already synchronized to the user document
+	 *
+	 * @param fullName String - user document full name
+	 * @param claimHash String - hash from claimHash()
+	 * @return boolean
+	 */
+	boolean isSynced(String fullName, String claimHash) {
+		return listening && claimHash.equals(synced.get(fullName));
+	}
+
+	/**
+	 * markSynced(String fullName, String claimHash) - remembers synchronized
+	 * claims. Should be called after user document is saved.
+	 *
+	 * @param fullName String - user document full name
+	 * @param claimHash String - hash from claimHash()
+	 */
+	void markSynced(String fullName, String claimHash) {
+		if (listening)
+			synced.put(fullName, claimHash, System.currentTimeMillis()
+					+ ttlMillis);
+	}
+
+	/**
+	 * update(XWikiDocument userDoc, Map<String, String> userData, String authType,
+	 * String claimHash, XWikiContext context) - sets user fields and
+	 * authentication type which differ from the claims, and claim hash.
+	 * Current field values are compared, not the stored claim hash, so
+	 * fields edited locally are set back. Document is not saved.
+	 *
+	 * @param userDoc XWikiDocument - user document
+	 * @param userData Map<String, String> - XWiki user field values
+	 * @param authType String - authentication method
+	 * @param claimHash String - hash from claimHash()
+	 * @param context XWikiContext
+	 * @return boolean - true if document was changed and should be saved
+	 */
+	boolean update(XWikiDocument userDoc, Map<String, String> userData,
+			String authType, String claimHash, XWikiContext context) {
+		BaseObject stsObj = userDoc.getObject("XWiki.STSAuthClass");
+		BaseObject userObj = userDoc.getObject("XWiki.XWikiUsers");
+		boolean updated = false;
+		for (Map.Entry<String, String> entry : userData.entrySet()) {
+			String field = entry.getKey();
+			String value = entry.getValue();
+			String currentValue = getString(userObj, field);
+			if (value != null && !value.equals(currentValue)) {
+				userObj.set(field, value, context);
+				updated = true;
+			}
+		}
+		String currenAuthType = getString(stsObj, "authtype");
+		log.debug("currenAuthType: " + currenAuthType);
+		if (!authType.equals(currenAuthType)) {
+			stsObj.set("authtype", authType, context);
+			updated = true;
+		}
+		// claim hash alone isn't worth a save, it is written with the next
+		// real change
+		if (updated)
+			stsObj.set(CLAIM_HASH_FIELD, claimHash, context);
+		return updated;
+	}
+
+	/**
+	 * save(XWikiDocument userDoc, XWikiContext context) - saves synchronized
+	 * profile as a minor edit without new document version
+	 *
+	 * @param userDoc XWikiDocument - user document
+	 * @param context XWikiContext
+	 * @throws XWikiException - if document can't be saved
+	 */
+	static void save(XWikiDocument userDoc, XWikiContext context)
+			throws XWikiException {
+		userDoc.setContentDirty(false);
+		userDoc.setMetaDataDirty(false);
+		context.getWiki().saveDocument(userDoc, SAVE_COMMENT, true, context);
+	}
+
+	void setListening(boolean listening) {
+		this.listening = listening;
+	}
+
+	boolean isListening() {
+		return listening;
+	}
+
+	void clear() {
+		synced.clear();
+	}
+
+	int size() {
+		return synced.size();
+	}
+
+	long getHits() {
+		return synced.getHits();
+	}
+
+	long getMisses() {
+		return synced.getMisses();
+	}
+
+	public String getName() {
+		return "STSProfileSynchronizer@" + System.identityHashCode(this);
+	}
+
+	public List<Event> getEvents() {
+		return EVENTS;
+	}
+
+	public void onEvent(Event event, Object source, Object data) {
+		if (source instanceof XWikiDocument)
+			synced.remove(((XWikiDocument) source).getFullName());
+	}
+
+	private static String getString(BaseObject obj, String field) {
+		if (obj == null)
+			return null;
+		BaseProperty prop = (BaseProperty) obj.get(field);
+		return (prop == null || prop.getValue() == null) ? null : prop
+				.getValue().toString();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks for first login of a person. Logins of the same person ID
+ * always get the same lock, so only one of concurrent first logins searches
+ * and creates the user, others wait and then find the created user. Logins
+ * of different persons mostly get different locks. Locks work inside one
+ * JVM only.
+ *
+ * @version 1.0
+ */
+final class STSProvisioningLocks {
+	/**
+	 * DEFAULT_STRIPES - default number of locks
+	 */
+	static final int DEFAULT_STRIPES = 64;
+	/**
+	 * SHARED - locks used by logins and bulk import in this JVM
+	 */
+	static final STSProvisioningLocks SHARED = new STSProvisioningLocks();
+	/**
+	 * locks - lock stripes, length is power of two
+	 */
+	private final Lock[] locks;
+	/**
+	 * waits - number of times lock was busy
+	 */
+	private final AtomicLong waits = new AtomicLong();
+
+	STSProvisioningLocks() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripes int - number of locks, rounded up to power of two
+	 */
+	STSProvisioningLocks(int stripes) {
+		int size = 1;
+		while (size < stripes)
+			size <<= 1;
+		locks = new Lock[size];
+		for (int i = 0; i < size; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * tryLock(String personId, long timeoutMillis) - locks stripe of the
+	 * person ID
+	 *
+	 * @param personId String - person ID, null uses the first stripe
+	 * @param timeoutMillis long - max time to wait
+	 * @return Lock - locked lock, should be unlocked by caller, or null if
+	 *         it wasn't got in time
+	 * @throws InterruptedException - if thread was interrupted while waiting
+	 */
+	Lock tryLock(String personId, long timeoutMillis)
+			throws InterruptedException {
+		Lock lock = lockFor(personId);
+		if (lock.tryLock())
+			return lock;
+		waits.incrementAndGet();
+		return lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS) ? lock
+				: null;
+	}
+
+	Lock lockFor(String personId) {
+		int h = personId == null ? 0 : personId.hashCode();
+		// spread bits like HashMap does
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return locks[h & (locks.length - 1)];
+	}
+
+	int getStripes() {
+		return locks.length;
+	}
+
+	long getWaits() {
+		return waits.get();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of the latest login failures. Writers take the next slot
+ * with one atomic increment and overwrite the oldest entry, so adding never
+ * blocks and memory doesn't grow whatever number of bad tokens arrives.
+ * Entries are truncated to MAX_ENTRY_LENGTH characters.
+ *
+ * @version 1.0
+ */
+final class STSRecentErrors {
+	/**
+	 * DEFAULT_CAPACITY - default number of kept failures
+	 */
+	static final int DEFAULT_CAPACITY = 64;
+	/**
+	 * MAX_ENTRY_LENGTH - max length of one failure description
+	 */
+	static final int MAX_ENTRY_LENGTH = 2000;
+	/**
+	 * RECENT - failures of all logins in this JVM
+	 */
+	static final STSRecentErrors RECENT = new STSRecentErrors(DEFAULT_CAPACITY);
+
+	/**
+	 * One failure
+	 */
+	private static final class Entry {
+		final long time;
+		final String message;
+
+		Entry(long time, String message) {
+			this.time = time;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * entries - ring slots, entry n is in slot n % capacity
+	 */
+	private final AtomicReferenceArray<Entry> entries;
+	/**
+	 * next - number of failures ever added
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * @param capacity int - number of kept failures
+	 */
+	STSRecentErrors(int capacity) {
+		entries = new AtomicReferenceArray<Entry>(Math.max(1, capacity));
+	}
+
+	/**
+	 * add(String message) - stores failure, overwriting the oldest one
+	 *
+	 * @param message String - failure description
+	 */
+	void add(String message) {
+		if (message == null)
+			return;
+		if (message.length() > MAX_ENTRY_LENGTH)
+			message = message.substring(0, MAX_ENTRY_LENGTH) + "...";
+		long n = next.getAndIncrement();
+		entries.set((int) (n % entries.length()), new Entry(
+				System.currentTimeMillis(), message));
+	}
+
+	/**
+	 * add(STSErrorCollector errors) - stores errors of one request as one
+	 * failure
+	 *
+	 * @param errors STSErrorCollector - errors of the request
+	 */
+	void add(STSErrorCollector errors) {
+		if (errors.geterrorListLength() == 0)
+			return;
+		StringBuilder message = new StringBuilder();
+		errors.appendTo(message);
+		add(message.toString());
+	}
+
+	/**
+	 * snapshot() - kept failures, the oldest first. Failures added at the
+	 * same time can be missed or reordered.
+	 *
+	 * @return List<String> - failures with time
+	 */
+	List<String> snapshot() {
+		long end = next.get();
+		int capacity = entries.length();
+		long start = Math.max(0, end - capacity);
+		List<String> list = new ArrayList<String>((int) (end - start));
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss.SSS");
+		for (long n = start; n < end; n++) {
+			Entry entry = entries.get((int) (n % capacity));
+			if (entry != null)
+				list.add(format.format(new Date(entry.time)) + " "
+						+ entry.message);
+		}
+		return list;
+	}
+
+	/**
+	 * appendTo(StringBuilder out) - writes kept failures, one per line
+	 *
+	 * @param out StringBuilder
+	 */
+	void appendTo(StringBuilder out) {
+		for (String entry : snapshot())
+			out.append(entry).append('\n');
+	}
+
+	/**
+	 * getTotal() - number of failures ever added, including overwritten
+	 *
+	 * @return long
+	 */
+	long getTotal() {
+		return next.get();
+	}
+
+	int getCapacity() {
+		return entries.length();
+	}
+
+	void clear() {
+		for (int i = 0; i < entries.length(); i++)
+			entries.set(i, null);
+	}
+}
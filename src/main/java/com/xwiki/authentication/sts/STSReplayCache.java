@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+/**
+ * Remembers IDs of assertions which were already used to log in, so the same
+ * wresult can't be posted again while the token is still valid. Default
+ * implementation is STSInMemoryReplayCache; other implementation (e.g. shared
+ * by cluster nodes) can be set with xwiki.authentication.sts.replay_cache_class.
+ * Implementations must be thread safe and have public no argument constructor.
+ *
+ * @version 1.0
+ */
+public interface STSReplayCache {
+
+	/**
+	 * contains(String assertionId) - checks if assertion was already used
+	 *
+	 * @param assertionId String - ID of the assertion
+	 * @return true if assertion was used and is not expired yet
+	 */
+	boolean contains(String assertionId);
+
+	/**
+	 * markIfAbsent(String assertionId, long notOnOrAfter) - atomically
+	 * remembers assertion ID if it isn't remembered yet
+	 *
+	 * @param assertionId String - ID of the assertion
+	 * @param notOnOrAfter long - time in milliseconds till assertion is
+	 *            accepted, token NotOnOrAfter plus allowed clock skew
+	 * @return true if assertion was not used before, false if it is replay
+	 */
+	boolean markIfAbsent(String assertionId, long notOnOrAfter);
+
+	/**
+	 * forget(String assertionId) - removes assertion ID, used when login
+	 * fails after the assertion was marked, so user can try again
+	 *
+	 * @param assertionId String - ID of the assertion
+	 */
+	void forget(String assertionId);
+
+	/**
+	 * @return number of remembered assertions
+	 */
+	int size();
+
+	/**
+	 * clear() - removes all remembered assertions
+	 */
+	void clear();
+}
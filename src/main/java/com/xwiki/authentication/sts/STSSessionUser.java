@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.io.Serializable;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.user.api.XWikiUser;
+
+/**
+ * Authenticated user kept in the HTTP session, so checkAuth() of the
+ * following requests returns the same XWikiUser objects without reading
+ * configuration or creating new objects. XWikiUser objects aren't
+ * serialized, they are created again after session is restored.
+ *
+ * @version 1.0
+ */
+final class STSSessionUser implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/**
+	 * name - user document full name in the main wiki
+	 */
+	private final String name;
+	/**
+	 * localUser - user for requests to the main wiki
+	 */
+	private transient volatile XWikiUser localUser;
+	/**
+	 * globalUser - user for requests to other wikis, with main wiki prefix
+	 */
+	private transient volatile XWikiUser globalUser;
+
+	STSSessionUser(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * get(XWikiContext context) - user for the wiki of the request
+	 *
+	 * @param context XWikiContext
+	 * @return XWikiUser
+	 */
+	XWikiUser get(XWikiContext context) {
+		if (context.isMainWiki()) {
+			XWikiUser user = localUser;
+			if (user == null) {
+				user = new XWikiUser(name);
+				localUser = user;
+			}
+			return user;
+		}
+		XWikiUser user = globalUser;
+		if (user == null) {
+			user = new XWikiUser(context.getMainXWiki() + ":" + name);
+			globalUser = user;
+		}
+		return user;
+	}
+}
@@ -26,51 +26,53 @@ package com.xwiki.authentication.sts;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
-import org.opensaml.Configuration;
-import org.opensaml.DefaultBootstrap;
 import org.opensaml.common.SignableSAMLObject;
 import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.XMLObject;
-import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
-import org.opensaml.xml.security.SecurityTestHelper;
 import org.opensaml.xml.security.credential.CollectionCredentialResolver;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.keyinfo.BasicProviderKeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.security.keyinfo.KeyInfoProvider;
+import org.opensaml.xml.security.keyinfo.provider.DSAKeyValueProvider;
+import org.opensaml.xml.security.keyinfo.provider.InlineX509DataProvider;
+import org.opensaml.xml.security.keyinfo.provider.RSAKeyValueProvider;
 import org.opensaml.xml.security.x509.BasicX509Credential;
 import org.opensaml.xml.signature.KeyInfo;
 import org.opensaml.xml.signature.Signature;
 import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.opensaml.xml.util.XMLConstants;
 import org.opensaml.xml.validation.ValidationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /*
@@ -98,6 +100,9 @@ import org.xml.sax.SAXException;
  * Have main method which, validates token and have some utility private methods helping to
  * validation process
  * 
+ * Validator is immutable - it is built once from configuration values and can be shared
+ * by all request threads. Request context and error collector are passed to validate().
+ * 
  * @version 1.0
  */
 @SuppressWarnings("deprecation")
@@ -109,77 +114,198 @@ public class STSTokenValidator {
 	/**
      * max ClockSkew - using to check time intervals / Before / After as a deviation
      */
-	private int maxClockSkew;
+	private final int maxClockSkew;
 	/**
-     * max ClockSkew - max time interval in which may be a value
+     * trustedSubjectDNs - subject DNs of trusted certificates
      */
-	private List<String> trustedSubjectDNs;
+	private final List<String> trustedSubjectDNs;
 	/**
-     * max ClockSkew - http/https urls - 
+     * audienceUris - http/https urls - 
      */
-	private List<URI> audienceUris;
+	private final List<URI> audienceUris;
 	/**
-     * max ClockSkew - http/https urls - 
+     * validateExpiration - check token lifetime if true
      */
-	private boolean validateExpiration = true;
+	private final boolean validateExpiration;
 	/**
 	* entityId - ID of the entity used for set entity id of the sertificate
 	*/
-	private static String entityId;
+	private final String entityId;
 	/**
 	* IssuerDN value from the certificate (will be extracted from samlToken)
 	*/
-	private String issuerDN;
-	/**
-	 * context - containng data for validation
-	 */
-	private String context;
+	private final String issuerDN;
 	/** 
-	 * Name of Issuer DN - getIssuerDN
+	 * Issuer of the saml:Assertion
 	 */
-	private String issuer;
+	private final String issuer;
 	/** 
-	 * Name of Issuer DN - getIssuerDN
+	 * trustStore - local trusted certificates, if null - issuer and DNs are checked,
+	 * if empty - no token is trusted
 	 */
-	X509Certificate certificate;
-	/** 
-	 * Collecting errors in Array - save, convert to string error list. Checking if passed object is Throwable class or something else.
+	private final STSTrustStore trustStore;
+	/**
+	 * collectAllErrors - all checks are made and all failures are reported,
+	 * otherwise validation stops on the first failed check
+	 */
+	private final boolean collectAllErrors;
+	/**
+	 * MAX_TRUST_ENGINES - max number of cached trust engines of token certificates
+	 */
+	private static final int MAX_TRUST_ENGINES = 16;
+	/**
+	 * keyInfoResolver - resolves signing key from KeyInfo (inline RSA/DSA key values and X509 data)
+	 */
+	private static final KeyInfoCredentialResolver keyInfoResolver = createKeyInfoResolver();
+	/**
+	 * trustEngine - trust engine of the local certificates, null if trust store isn't set
+	 */
+	private final ExplicitKeySignatureTrustEngine trustEngine;
+	/**
+	 * trustEngines - trust engines of token certificates (when trust store isn't set)
+	 * by certificate thumbprint
+	 */
+	private final ConcurrentMap<String, ExplicitKeySignatureTrustEngine> trustEngines = new ConcurrentHashMap<String, ExplicitKeySignatureTrustEngine>();
+	/**
+	 * SIGNATURE_CACHE_SIZE - max number of remembered verified signatures
 	 */
-	STSErrorCollector errorCollector;
+	static final int SIGNATURE_CACHE_SIZE = 4096;
+	/**
+	 * verifiedSignatures - keys of tokens with verified signature, kept till token NotOnOrAfter.
+	 * Only a token validated again hits it, so it helps only callers without replay check:
+	 * with replay check the same token is rejected before validate().
+	 */
+	private final STSExpiringCache<String, Boolean> verifiedSignatures = new STSExpiringCache<String, Boolean>(
+			SIGNATURE_CACHE_SIZE);
+	/**
+	 * signatureCacheEnabled - verified signatures are remembered if true
+	 */
+	private volatile boolean signatureCacheEnabled = true;
+
+	/**
+	 * <b>STSTokenValidator</b> - constructor for making  STSTokenValidator
+	 *
+	 * @param trustedSubjectDNs List<String>,
+	 * @param audienceUris List<URI>
+	 * @param issuer String - Issuer of saml:Assertion
+	 * @param issuerDN String - IssuerDN of the certificate
+	 * @param entityId String - entity ID of the certificate
+	 * @param certificate X509Certificate - local trusted certificate, can be null
+	 * @param validateExpiration boolean - check token lifetime
+	 * @param maxClockSkew int - allowed clock difference in milliseconds
+	 * @throws ConfigurationException - exception of open SAML's configuration
+	 */
+	public STSTokenValidator(List<String> trustedSubjectDNs,
+			List<URI> audienceUris, String issuer, String issuerDN,
+			String entityId, X509Certificate certificate,
+			boolean validateExpiration, int maxClockSkew)
+			throws ConfigurationException {
+		this(trustedSubjectDNs, audienceUris, issuer, issuerDN, entityId,
+				toTrustStore(certificate), validateExpiration, maxClockSkew);
+	}
 
-	public STSTokenValidator() throws ConfigurationException {
-		this(new ArrayList<String>(), new ArrayList<URI>());
+	/**
+	 * <b>STSTokenValidator</b> - constructor for making  STSTokenValidator
+	 * trusting several local certificates
+	 *
+	 * @param trustedSubjectDNs List<String>,
+	 * @param audienceUris List<URI>
+	 * @param issuer String - Issuer of saml:Assertion
+	 * @param issuerDN String - IssuerDN of the certificate
+	 * @param entityId String - entity ID of the certificate
+	 * @param trustStore STSTrustStore - local trusted certificates, if null
+	 *            issuer and DNs are checked, if empty no token is trusted
+	 * @param validateExpiration boolean - check token lifetime
+	 * @param maxClockSkew int - allowed clock difference in milliseconds
+	 * @throws ConfigurationException - exception of open SAML's configuration
+	 */
+	public STSTokenValidator(List<String> trustedSubjectDNs,
+			List<URI> audienceUris, String issuer, String issuerDN,
+			String entityId, STSTrustStore trustStore,
+			boolean validateExpiration, int maxClockSkew)
+			throws ConfigurationException {
+		this(trustedSubjectDNs, audienceUris, issuer, issuerDN, entityId,
+				trustStore, validateExpiration, maxClockSkew, false);
 	}
 
 	/**
 	 * <b>STSTokenValidator</b> - constructor for making  STSTokenValidator
+	 * trusting several local certificates
 	 *
 	 * @param trustedSubjectDNs List<String>,
 	 * @param audienceUris List<URI>
+	 * @param issuer String - Issuer of saml:Assertion
+	 * @param issuerDN String - IssuerDN of the certificate
+	 * @param entityId String - entity ID of the certificate
+	 * @param trustStore STSTrustStore - local trusted certificates, if null
+	 *            issuer and DNs are checked, if empty no token is trusted
+	 * @param validateExpiration boolean - check token lifetime
+	 * @param maxClockSkew int - allowed clock difference in milliseconds
+	 * @param collectAllErrors boolean - make all checks and report all
+	 *            failures instead of stopping on the first one
 	 * @throws ConfigurationException - exception of open SAML's configuration
 	 */
 	public STSTokenValidator(List<String> trustedSubjectDNs,
-			List<URI> audienceUris) throws ConfigurationException {
+			List<URI> audienceUris, String issuer, String issuerDN,
+			String entityId, STSTrustStore trustStore,
+			boolean validateExpiration, int maxClockSkew,
+			boolean collectAllErrors) throws ConfigurationException {
 		super();
-		this.trustedSubjectDNs = trustedSubjectDNs;
-		this.audienceUris = audienceUris;
-		DefaultBootstrap.bootstrap();
+		this.collectAllErrors = collectAllErrors;
+		this.trustedSubjectDNs = Collections
+				.unmodifiableList(new ArrayList<String>(trustedSubjectDNs));
+		this.audienceUris = Collections.unmodifiableList(new ArrayList<URI>(
+				audienceUris));
+		this.issuer = issuer;
+		this.issuerDN = issuerDN;
+		this.entityId = entityId;
+		// empty store is kept, so broken trust store never falls back to DNs
+		this.trustStore = trustStore;
+		this.validateExpiration = validateExpiration;
+		this.maxClockSkew = maxClockSkew;
+		STSBootstrap.bootstrap();
+		this.trustEngine = this.trustStore == null ? null
+				: buildTrustEngine(this.trustStore.getCertificates());
 	}
 
-	public void setSubjectDNs(List<String> subjectDNs) {
-		this.trustedSubjectDNs = subjectDNs;
+	/**
+	 * getTrustStore() - local trusted certificates the validator was built with
+	 *
+	 * @return STSTrustStore, null if trust store isn't set
+	 */
+	public STSTrustStore getTrustStore() {
+		return trustStore;
 	}
 
-	public void setAudienceUris(List<URI> audienceUris) {
-		this.audienceUris = audienceUris;
+	public boolean isCollectAllErrors() {
+		return collectAllErrors;
 	}
 
-	public void setValidateExpiration(boolean value) {
-		this.validateExpiration = value;
+	public boolean isSignatureCacheEnabled() {
+		return signatureCacheEnabled;
 	}
 
-	public static void setEntityId(String value) {
-		entityId = value;
+	/**
+	 * setSignatureCacheEnabled(boolean enabled) - switches signature cache on
+	 * or off. Switching off forgets verified signatures.
+	 * @param enabled boolean - remember verified signatures if true
+	 */
+	public void setSignatureCacheEnabled(boolean enabled) {
+		signatureCacheEnabled = enabled;
+		if (!enabled)
+			verifiedSignatures.clear();
+	}
+
+	private static STSTrustStore toTrustStore(X509Certificate certificate)
+			throws ConfigurationException {
+		if (certificate == null)
+			return null;
+		try {
+			return STSTrustStore.fromCertificate(certificate);
+		} catch (CertificateException e) {
+			throw new ConfigurationException(
+					"Trusted certificate can't be encoded", e);
+		}
 	}
 
 		
@@ -190,102 +316,99 @@ public class STSTokenValidator {
      * And mothods from other auxiliary classes.
      * 
      * @param envelopedToken String
+     * @param context String - expected Context of the token
+     * @param errorCollector STSErrorCollector - collects errors of this call
      * @return List<STSClaim> 
      * @throws ParserConfigurationException, SAXException, IOException, STSException, ConfigurationException, CertificateException, KeyException, SecurityException, ValidationException, UnmarshallingException, URISyntaxException, NoSuchAlgorithmException
      */
-	public List<STSClaim> validate(String envelopedToken)
+	public List<STSClaim> validate(String envelopedToken, String context,
+			STSErrorCollector errorCollector)
 			throws ParserConfigurationException, SAXException, IOException,
 			STSException, ConfigurationException, CertificateException,
 			KeyException, SecurityException, ValidationException,
 			UnmarshallingException, URISyntaxException,
 			NoSuchAlgorithmException {
+		return validate(new STSParsedToken(envelopedToken), context,
+				errorCollector);
+	}
 
-		SignableSAMLObject samlToken;
-		boolean trusted = false;
-		STSException stsException = null;
-
-		// Check token metadata
-		if (envelopedToken.contains("RequestSecurityTokenResponse")) {
-			samlToken = getSamlTokenFromRstr(envelopedToken);
-		} else {
-			samlToken = getSamlTokenFromSamlResponse(envelopedToken);
-		}
-
-		log.debug("\n===== envelopedToken ========\n"
-				+ samlToken.getDOM().getTextContent() + "\n==========");
-		String currentContext = getAttrVal(envelopedToken,
-				"t:RequestSecurityTokenResponse", "Context");
-		if (!context.equals(currentContext)) {
-			errorCollector.addError(new Throwable(
-					"Wrong token Context. Suspected: " + context + " got: "
-							+ currentContext));
-			stsException = new STSException("Wrong token Context. Suspected: " + context
-					+ " got: " + currentContext);
-		}
+	/**
+	 * validate - Validate already parsed token. Context, lifetime and issuer
+	 * are checked first using values from the StAX pre-scan, so such tokens
+	 * are rejected before DOM is built and SAML token is unmarshalled. All
+	 * other checks read values from the parsed token, so the enveloped token
+	 * is not parsed again.
+	 * 
+	 * @param token STSParsedToken
+	 * @param context String - expected Context of the token
+	 * @param errorCollector STSErrorCollector - collects errors of this call
+	 * @return List<STSClaim>
+	 * @throws ParserConfigurationException, SAXException, IOException, STSException, ConfigurationException, CertificateException, KeyException, SecurityException, ValidationException, UnmarshallingException, URISyntaxException, NoSuchAlgorithmException
+	 */
+	public List<STSClaim> validate(STSParsedToken token, String context,
+			STSErrorCollector errorCollector)
+			throws ParserConfigurationException, SAXException, IOException,
+			STSException, ConfigurationException, CertificateException,
+			KeyException, SecurityException, ValidationException,
+			UnmarshallingException, URISyntaxException,
+			NoSuchAlgorithmException {
+		STSValidationResult result = check(token, context);
+		if (!result.isValid())
+			throw result.toException(errorCollector);
+		return result.getClaims();
+	}
 
-		if (this.validateExpiration) {
-			Instant created = new Instant(getElementVal(envelopedToken,
-					"wsu:Created"));
-			Instant expires = new Instant(getElementVal(envelopedToken,
-					"wsu:Expires"));
-			if (!checkExpiration(created, expires)) {
-				errorCollector.addError(new Throwable(
-						"Token Created or Expires elements have been expired"));
-				stsException =  new STSException(
-						"Token Created or Expires elements have been expired");
-			}
-		} else {
-			log.warn("Token time was not validated. To validate, set xwiki.authentication.sts.wct=1");
+	/**
+	 * check - Validate already parsed token without throwing exceptions for
+	 * failed checks. Validation stops on the first failed check unless
+	 * validator collects all errors. Context, lifetime and issuer are checked
+	 * first using values from the StAX pre-scan, so such tokens are rejected
+	 * before SAML token is unmarshalled.
+	 *
+	 * @param token STSParsedToken
+	 * @param context String - expected Context of the token
+	 * @return STSValidationResult - claims or failed checks
+	 * @throws ParserConfigurationException, SAXException, IOException, ConfigurationException, CertificateException, KeyException, SecurityException, ValidationException, UnmarshallingException, URISyntaxException, NoSuchAlgorithmException
+	 */
+	public STSValidationResult check(STSParsedToken token, String context)
+			throws ParserConfigurationException, SAXException, IOException,
+			ConfigurationException, CertificateException, KeyException,
+			SecurityException, ValidationException, UnmarshallingException,
+			URISyntaxException, NoSuchAlgorithmException {
+		STSValidationResult result = checkToken(token, context);
+		if (!result.isValid()) {
+			for (STSValidationError error : result.getErrors())
+				STSMetrics.GLOBAL.failed(error);
 		}
+		return result;
+	}
 
-		if (certificate == null) {
-			log.debug("\n");
-			log.debug("STSTokenValidator: cert is null, using old method");
-
-			if (issuer != null && issuerDN != null
-					&& !trustedSubjectDNs.isEmpty()) {
-
-				if (!issuer.equals(getAttrVal(envelopedToken, "saml:Assertion",
-						"Issuer"))) {
-					errorCollector
-							.addError(new Throwable("Wrong token Issuer"));
-					stsException = new STSException("Wrong token Issuer");
-				}
-
-				// Check SAML assertions
-				if (!validateIssuerDN(samlToken, issuerDN)) {
-					errorCollector.addError(new Throwable(
-							"Wrong token IssuerDN"));
-					stsException = new STSException("Wrong token IssuerDN");
-				}
-
-				for (String subjectDN : this.trustedSubjectDNs) {
-					trusted |= validateSubjectDN(samlToken, subjectDN);
-				}
-
-				if (!trusted) {
-					errorCollector.addError(new Throwable(
-							"Wrong token SubjectDN"));
-					stsException = new STSException("Wrong token SubjectDN");
-				}
-			} else {
-				log.debug("\n");
-				log.debug("STSTokenValidator: Nothing to validate against");
-				errorCollector.addError(new Throwable(
-						"Nothing to validate against"));
-				stsException = new STSException("Nothing to validate against");
-			}
-
-		} else {
-			log.debug("\n");
-			log.debug("STSTokenValidator: Using cert equals");
-			if (!certificate.equals(certFromToken(samlToken))) {
-				errorCollector.addError(new Throwable(
-						"Local certificate didn't match the user suplied one"));
-				stsException = new STSException(
-						"Local certificate didn't match the user suplied one");
-			}
-		}
+	private STSValidationResult checkToken(STSParsedToken token,
+			String context) throws ParserConfigurationException,
+			SAXException, IOException, ConfigurationException,
+			CertificateException, KeyException, SecurityException,
+			ValidationException, UnmarshallingException, URISyntaxException,
+			NoSuchAlgorithmException {
+		STSValidationResult result = new STSValidationResult();
+
+		// Cheap checks of the envelope values
+		long start = System.nanoTime();
+		boolean passed = precheck(token, context, result);
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.PRECHECK, start);
+		if (!passed)
+			return result;
+
+		SignableSAMLObject samlToken = token.getSamlToken();
+		if (log.isDebugEnabled())
+			log.debug("\n===== envelopedToken ========\n"
+					+ STSLogRedactor.payload(samlToken.getDOM()
+							.getTextContent()) + "\n==========");
+
+		start = System.nanoTime();
+		boolean stop = checkTrust(samlToken, result);
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.CERTIFICATE, start);
+		if (stop)
+			return result;
 
 		String address = null;
 		if (samlToken instanceof org.opensaml.saml1.core.Assertion) {
@@ -299,17 +422,16 @@ public class STSTokenValidator {
 			validAudience |= audience.equals(audienceUri);
 		}
 
-		if (!validAudience) {
-			errorCollector.addError(new Throwable(
-					"The token applies to an untrusted audience"));
-			stsException = new STSException(String.format(
-					"The token applies to an untrusted audience: %s",
-					new Object[] { audience }));
-		}
+		if (!validAudience
+				&& failed(result, STSValidationError.AUDIENCE,
+						STSValidationError.AUDIENCE.getMessage() + ": "
+								+ audience))
+			return result;
 
-		List<STSClaim> claims = null;
 		if (samlToken instanceof org.opensaml.saml1.core.Assertion) {
-			claims = getClaims((org.opensaml.saml1.core.Assertion) samlToken);
+			start = System.nanoTime();
+			result.setClaims(getClaims((org.opensaml.saml1.core.Assertion) samlToken));
+			STSMetrics.GLOBAL.record(STSMetrics.Stage.CLAIMS, start);
 		}
 
 		if (this.validateExpiration
@@ -318,89 +440,121 @@ public class STSTokenValidator {
 					.getConditions().getNotBefore().toInstant();
 			Instant notOnOrAfter = ((org.opensaml.saml1.core.Assertion) samlToken)
 					.getConditions().getNotOnOrAfter().toInstant();
-			if (!checkExpiration(notBefore, notOnOrAfter)) {
-				errorCollector
-						.addError(new Throwable(
-								"Token Created or Expires elements have been expired"));
-				stsException = new STSException(
-						"Token Created or Expires elements have been expired");
-			}
+			if (!checkExpiration(notBefore, notOnOrAfter)
+					&& failed(result, STSValidationError.EXPIRED, null))
+				return result;
 		}
 
 		// Check token certificate and signature
-		boolean valid = validateToken(samlToken);
-		if (!valid) {
-			errorCollector.addError(new Throwable("Invalid signature"));
-			stsException = new STSException("Invalid signature");
-		}
-		
-		if(!(stsException==null)) throw stsException;
-		
-		return claims;
+		start = System.nanoTime();
+		boolean valid = isSignatureValid(token, samlToken);
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.SIGNATURE, start);
+		if (!valid)
+			failed(result, STSValidationError.SIGNATURE, null);
+
+		return result;
 	}
 
 	/**
-     * getSamlTokenFromSamlResponse (String samlResponse)
-     * 
-     * Function is getting samlResponse String - 
-     * SAML - Object is object of Security Assertion Markup Languages type is an XML-based, 
-     * open-standard data format for exchanging authentication and authorization data between parties
-     * And is returning SignableSAMLObject on success or throws exception on fault.
-     *      
-     * @param samlResponse - SAML Text Response (String)
-     * 
-     * @return SignableSAMLObject (Security Assertion Markup Language) 
-     * @throws ParserConfigurationException - Indicates a serious configuration error,
-     * @throws SAXException - Encapsulate a general SAX error or warning, IOException, 
-     * @throws UnmarshallingException - thrown whenever an IOException is thrown during the unmarshalling process of request/response from the wire. 
-     */
-	private static SignableSAMLObject getSamlTokenFromSamlResponse(
-			String samlResponse) throws ParserConfigurationException,
-			SAXException, IOException, UnmarshallingException {
-		Document document = getDocument(samlResponse);
-
-		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
-				.getUnmarshaller(document.getDocumentElement());
-		org.opensaml.saml2.core.Response response = (org.opensaml.saml2.core.Response) unmarshaller
-				.unmarshall(document.getDocumentElement());
-		return response.getAssertions().get(0);
-	}
+	 * checkTrust(SignableSAMLObject samlToken, STSValidationResult result) -
+	 * checks token certificate against trusted certificates or issuer and
+	 * subject DNs
+	 *
+	 * @return boolean - true if validation should stop
+	 */
+	private boolean checkTrust(SignableSAMLObject samlToken,
+			STSValidationResult result) throws UnmarshallingException,
+			ValidationException, CertificateException {
+		if (trustStore == null) {
+			log.debug("\n");
+			log.debug("STSTokenValidator: cert is null, using old method");
 
-	 /**
-     * getSamlTokenFromRstr (String rstr) - get SAML Token from some XML Document.
-     * First of all - there is creating a document from rstr - parametr - then - 
-     * it is parsing it to extract a SingableSAMLObject.
-     * it is using try/catch construction and throws new STSException("SAML token was not found");
-     * if can't find SAML token.
-     *  
-     * @param rstr - String -  XML - Document's string from which will be extracted an information of a SamlToken
-     * @return SignableSAMLObject - an instance of SAMLObject (Security Assertion Markup Language) 
-     * @throws ParserConfigurationException, SAXException, IOException, UnmarshallingException, STSException 
-     */
-	private static SignableSAMLObject getSamlTokenFromRstr(String rstr)
-			throws ParserConfigurationException, SAXException, IOException,
-			UnmarshallingException, STSException {
-		Document document = getDocument(rstr);
+			if (issuer != null && issuerDN != null
+					&& !trustedSubjectDNs.isEmpty()) {
 
-		String xpath = "//*[local-name() = 'Assertion']";
+				// Check SAML assertions
+				if (!validateIssuerDN(samlToken, issuerDN)
+						&& failed(result, STSValidationError.ISSUER_DN, null))
+					return true;
 
-		NodeList nodes = null;
+				boolean trusted = false;
+				for (String subjectDN : this.trustedSubjectDNs) {
+					trusted |= validateSubjectDN(samlToken, subjectDN);
+				}
 
-		try {
-			nodes = org.apache.xpath.XPathAPI.selectNodeList(document, xpath);
-		} catch (TransformerException e) {
-			log.error(e);
+				if (!trusted
+						&& failed(result, STSValidationError.SUBJECT_DN, null))
+					return true;
+			} else {
+				log.debug("\n");
+				log.debug("STSTokenValidator: Nothing to validate against");
+				if (failed(result, STSValidationError.NOTHING_TO_VALIDATE, null))
+					return true;
+			}
+
+		} else {
+			log.debug("\n");
+			log.debug("STSTokenValidator: Using trusted cert thumbprints");
+			if (!trustStore.isTrusted(certFromToken(samlToken))
+					&& failed(result, STSValidationError.CERTIFICATE, null))
+				return true;
 		}
+		return false;
+	}
+
+
+	/**
+	 * failed(STSValidationResult result, STSValidationError error, String message) -
+	 * records failed check
+	 *
+	 * @return boolean - true if validation should stop
+	 */
+	private boolean failed(STSValidationResult result,
+			STSValidationError error, String message) {
+		if (log.isDebugEnabled())
+			log.debug("Token check failed: " + error);
+		result.fail(error, message);
+		return !collectAllErrors;
+	}
 
-		if (nodes == null || nodes.getLength() == 0) {
-			throw new STSException("SAML token was not found");
+	/**
+	 * precheck(STSParsedToken token, String context, STSValidationResult result) -
+	 * checks Context, lifetime and Issuer of the token, which are known from
+	 * the StAX pre-scan. Stops on the first failed check unless all errors
+	 * are collected.
+	 * 
+	 * @param token STSParsedToken - pre-scanned token
+	 * @param context String - expected Context of the token
+	 * @param result STSValidationResult - gets failed check
+	 * @return boolean - false if validation should stop
+	 */
+	private boolean precheck(STSParsedToken token, String context,
+			STSValidationResult result) {
+		String currentContext = token.getContext();
+		if (!context.equals(currentContext)
+				&& failed(result, STSValidationError.CONTEXT,
+						"Wrong token Context. Suspected: " + context
+								+ " got: " + currentContext))
+			return false;
+
+		if (this.validateExpiration) {
+			Instant created = token.getCreated();
+			Instant expires = token.getExpires();
+			if ((created == null || expires == null || !checkExpiration(
+					created, expires))
+					&& failed(result, STSValidationError.EXPIRED, null))
+				return false;
 		} else {
-			Element samlTokenElement = (Element) nodes.item(0);
-			Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory()
-					.getUnmarshaller(samlTokenElement);
-			return (SignableSAMLObject) unmarshaller
-					.unmarshall(samlTokenElement);
+			log.warn("Token time was not validated. To validate, set xwiki.authentication.sts.wct=1");
 		}
+
+		// Issuer is checked only if it is not validated by local certificates
+		if (trustStore == null && issuer != null && issuerDN != null
+				&& !trustedSubjectDNs.isEmpty()
+				&& !issuer.equals(token.getIssuer())
+				&& failed(result, STSValidationError.ISSUER, null))
+			return false;
+		return true;
 	}
 
 	 /**
@@ -417,7 +571,8 @@ public class STSTokenValidator {
 				.getConditions().getAudienceRestrictionConditions().get(0)
 				.getAudiences().get(0);
 		String audienceUriStr = audienceUri.getUri();
-		log.trace("AudienceUri: " + audienceUriStr);
+		if (log.isTraceEnabled())
+			log.trace("AudienceUri: " + audienceUriStr);
 		return audienceUriStr;
 	}
 
@@ -430,12 +585,14 @@ public class STSTokenValidator {
      * @param notOnOrAfter Instant now is before notOnOrAfter (minus skew)
      * @return true - if check  - is ok, or false if check is fault
      */
-	private boolean checkExpiration(Instant notBefore, Instant notOnOrAfter) {
+	boolean checkExpiration(Instant notBefore, Instant notOnOrAfter) {
 		Instant now = new Instant();
 		Duration skew = new Duration(maxClockSkew);
-		log.debug("Time expiration. Now:" + now + " now+sqew: "
-				+ now.plus(skew) + " now-sqew: " + now.minus(skew)
-				+ " notBefore: " + notBefore + " notAfter: " + notOnOrAfter);
+		if (log.isDebugEnabled())
+			log.debug("Time expiration. Now:" + now + " now+sqew: "
+					+ now.plus(skew) + " now-sqew: " + now.minus(skew)
+					+ " notBefore: " + notBefore + " notAfter: "
+					+ notOnOrAfter);
 		if (now.plus(skew).isAfter(notBefore)
 				&& now.minus(skew).isBefore(notOnOrAfter)) {
 			log.debug("Time is in range");
@@ -452,7 +609,7 @@ public class STSTokenValidator {
      * @param samlToken SignableSAMLObject
      * @return boolean valid => true, not valid => false
      */
-	private static boolean validateToken(SignableSAMLObject samlToken)
+	boolean validateToken(SignableSAMLObject samlToken)
 			throws SecurityException, ValidationException,
 			ConfigurationException, UnmarshallingException,
 			CertificateException, KeyException {
@@ -464,56 +621,35 @@ public class STSTokenValidator {
 		X509Certificate certificate = certFromToken(samlToken);
 
 		// Certificate data
-		log.debug("certificate issuerDN: " + certificate.getIssuerDN());
-		log.debug("certificate issuerUniqueID: "
-				+ certificate.getIssuerUniqueID());
-		log.debug("certificate issuerX500Principal: "
-				+ certificate.getIssuerX500Principal());
-		log.debug("certificate notBefore: " + certificate.getNotBefore());
-		log.debug("certificate notAfter: " + certificate.getNotAfter());
-		log.debug("certificate serialNumber: " + certificate.getSerialNumber());
-		log.debug("certificate sigAlgName: " + certificate.getSigAlgName());
-		log.debug("certificate sigAlgOID: " + certificate.getSigAlgOID());
-		log.debug("certificate signature: "
-				+ new String(certificate.getSignature()));
-		log.debug("certificate issuerX500Principal: "
-				+ certificate.getIssuerX500Principal().toString());
-		log.debug("certificate publicKey: " + certificate.getPublicKey());
-		log.debug("certificate subjectDN: " + certificate.getSubjectDN());
-		log.debug("certificate sigAlgOID: " + certificate.getSigAlgOID());
-		log.debug("certificate version: " + certificate.getVersion());
-
-		BasicX509Credential cred = new BasicX509Credential();
-		cred.setEntityCertificate(certificate);
-
-		// Credential data
-		cred.setEntityId(entityId);
-		log.debug("cred entityId: " + cred.getEntityId());
-		log.debug("cred usageType: " + cred.getUsageType());
-		log.debug("cred credentalContextSet: " + cred.getCredentalContextSet());
-		log.debug("cred hashCode: " + cred.hashCode());
-		log.debug("cred privateKey: " + cred.getPrivateKey());
-		log.debug("cred publicKey: " + cred.getPublicKey());
-		log.debug("cred secretKey: " + cred.getSecretKey());
-		log.debug("cred entityCertificateChain: "
-				+ cred.getEntityCertificateChain());
-
-		ArrayList<Credential> trustedCredentials = new ArrayList<Credential>();
-		trustedCredentials.add(cred);
+		if (log.isDebugEnabled()) {
+			log.debug("certificate issuerDN: " + certificate.getIssuerDN());
+			log.debug("certificate issuerUniqueID: "
+					+ certificate.getIssuerUniqueID());
+			log.debug("certificate issuerX500Principal: "
+					+ certificate.getIssuerX500Principal());
+			log.debug("certificate notBefore: " + certificate.getNotBefore());
+			log.debug("certificate notAfter: " + certificate.getNotAfter());
+			log.debug("certificate serialNumber: "
+					+ certificate.getSerialNumber());
+			log.debug("certificate sigAlgName: " + certificate.getSigAlgName());
+			log.debug("certificate sigAlgOID: " + certificate.getSigAlgOID());
+			log.debug("certificate signature: "
+					+ STSLogRedactor.payload(new String(certificate
+							.getSignature())));
+			log.debug("certificate publicKey: "
+					+ STSLogRedactor.payload(certificate.getPublicKey()));
+			log.debug("certificate subjectDN: " + certificate.getSubjectDN());
+			log.debug("certificate version: " + certificate.getVersion());
+		}
 
-		CollectionCredentialResolver credResolver = new CollectionCredentialResolver(
-				trustedCredentials);
-		KeyInfoCredentialResolver kiResolver = SecurityTestHelper
-				.buildBasicInlineKeyInfoResolver();
-		ExplicitKeySignatureTrustEngine engine = new ExplicitKeySignatureTrustEngine(
-				credResolver, kiResolver);
+		ExplicitKeySignatureTrustEngine engine = getTrustEngine(certificate);
 
 		CriteriaSet criteriaSet = new CriteriaSet();
 		criteriaSet.add(new EntityIDCriteria(entityId));
 
-		Base64 decoder = new Base64();
-		// In trace mode write certificate in the file
-		if (log.isTraceEnabled()) {
+		// In trace mode with full payload logging write certificate in the file
+		if (log.isTraceEnabled() && STSLogRedactor.isFull()) {
+			Base64 decoder = new Base64();
 			String certEncoded = new String(decoder.encode(certificate
 					.getEncoded()));
 			try {
@@ -528,6 +664,145 @@ public class STSTokenValidator {
 		return engine.validate(signature, criteriaSet);
 	}
 
+	/**
+	 * isSignatureValid(STSParsedToken token, SignableSAMLObject samlToken) - returns
+	 * cached result if the same token was already verified, otherwise verifies signature
+	 * with validateToken() and remembers positive result till token NotOnOrAfter.
+	 * Only signature result is cached, token lifetime is checked by validate() every time.
+	 * If signature cache is switched off signature is always verified.
+	 * @param token STSParsedToken - parsed token
+	 * @param samlToken SignableSAMLObject - SAML token of the parsed token
+	 * @return boolean valid => true, not valid => false
+	 */
+	private boolean isSignatureValid(STSParsedToken token,
+			SignableSAMLObject samlToken) throws SecurityException,
+			ValidationException, ConfigurationException,
+			UnmarshallingException, CertificateException, KeyException,
+			NoSuchAlgorithmException {
+		if (!signatureCacheEnabled)
+			return validateToken(samlToken);
+		String key = signatureCacheKey(token, samlToken);
+		if (key != null && verifiedSignatures.get(key) != null) {
+			log.debug("Token signature was verified before: " + key);
+			return true;
+		}
+		boolean valid = validateToken(samlToken);
+		if (valid && key != null
+				&& samlToken instanceof org.opensaml.saml1.core.Assertion) {
+			org.opensaml.saml1.core.Conditions conditions = ((org.opensaml.saml1.core.Assertion) samlToken)
+					.getConditions();
+			if (conditions != null && conditions.getNotOnOrAfter() != null)
+				verifiedSignatures.put(key, Boolean.TRUE, conditions
+						.getNotOnOrAfter().getMillis());
+		}
+		return valid;
+	}
+
+	/**
+	 * signatureCacheKey(STSParsedToken token, SignableSAMLObject samlToken) - assertion ID
+	 * and SHA-256 of SignatureValue and of the whole token text. SignatureValue alone
+	 * doesn't prove that signed content wasn't changed, so the token text is digested too.
+	 * @return String key or null if the token has no ID or signature
+	 */
+	static String signatureCacheKey(STSParsedToken token,
+			SignableSAMLObject samlToken) throws NoSuchAlgorithmException {
+		String id = samlToken.getSignatureReferenceID();
+		Signature signature = samlToken.getSignature();
+		if (id == null || signature == null || signature.getDOM() == null)
+			return null;
+		NodeList values = signature.getDOM().getElementsByTagNameNS(
+				XMLConstants.XMLSIG_NS, "SignatureValue");
+		if (values.getLength() == 0)
+			return null;
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try {
+			digest.update(values.item(0).getTextContent().getBytes("UTF-8"));
+			digest.update(token.getEnvelopedToken().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		return id + ":" + new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * getTrustEngine(X509Certificate tokenCert) - returns trust engine of the local
+	 * certificates, or cached engine for the certificate from the token if trust
+	 * store isn't set
+	 * @param tokenCert X509Certificate - certificate from the token
+	 * @return ExplicitKeySignatureTrustEngine
+	 */
+	private ExplicitKeySignatureTrustEngine getTrustEngine(
+			X509Certificate tokenCert) throws CertificateException {
+		if (trustEngine != null)
+			return trustEngine;
+		String key = thumbprint(tokenCert);
+		ExplicitKeySignatureTrustEngine engine = trustEngines.get(key);
+		if (engine == null) {
+			if (trustEngines.size() >= MAX_TRUST_ENGINES)
+				trustEngines.clear();
+			engine = buildTrustEngine(Collections.singletonList(tokenCert));
+			ExplicitKeySignatureTrustEngine existing = trustEngines.putIfAbsent(
+					key, engine);
+			if (existing != null)
+				engine = existing;
+		}
+		return engine;
+	}
+
+	/**
+	 * buildTrustEngine(Collection<X509Certificate> certs) - builds trust engine which
+	 * trusts given certificates for configured entity ID
+	 * @param certs Collection<X509Certificate> - trusted certificates
+	 * @return ExplicitKeySignatureTrustEngine
+	 */
+	private ExplicitKeySignatureTrustEngine buildTrustEngine(
+			Collection<X509Certificate> certs) {
+		ArrayList<Credential> trustedCredentials = new ArrayList<Credential>();
+		for (X509Certificate cert : certs) {
+			BasicX509Credential cred = new BasicX509Credential();
+			cred.setEntityCertificate(cert);
+			cred.setEntityId(entityId);
+			if (log.isDebugEnabled()) {
+				log.debug("cred entityId: " + cred.getEntityId());
+				log.debug("cred publicKey: "
+						+ STSLogRedactor.payload(cred.getPublicKey()));
+			}
+			trustedCredentials.add(cred);
+		}
+
+		CollectionCredentialResolver credResolver = new CollectionCredentialResolver(
+				trustedCredentials);
+		return new ExplicitKeySignatureTrustEngine(credResolver,
+				keyInfoResolver);
+	}
+
+	/**
+	 * createKeyInfoResolver() - KeyInfo resolver supporting RSAKeyValue,
+	 * DSAKeyValue and inline X509Data
+	 * @return KeyInfoCredentialResolver
+	 */
+	private static KeyInfoCredentialResolver createKeyInfoResolver() {
+		List<KeyInfoProvider> providers = new ArrayList<KeyInfoProvider>();
+		providers.add(new RSAKeyValueProvider());
+		providers.add(new DSAKeyValueProvider());
+		providers.add(new InlineX509DataProvider());
+		return new BasicProviderKeyInfoCredentialResolver(providers);
+	}
+
+	/**
+	 * thumbprint(X509Certificate cert) - SHA-256 of the DER encoded certificate
+	 * @param cert X509Certificate
+	 * @return String - hex encoded thumbprint
+	 */
+	static String thumbprint(X509Certificate cert) throws CertificateException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new String(Hex.encodeHex(digest.digest(cert.getEncoded())));
+		} catch (NoSuchAlgorithmException e) {
+			throw new CertificateException(e);
+		}
+	}
+
 	/**
     * validateSubjectDN(SignableSAMLObject samlToken, String subjectName)
     * Validates the subject (subject distinguished name) value from the certificate. 
@@ -542,8 +817,9 @@ public class STSTokenValidator {
 		KeyInfo keyInfo = signature.getKeyInfo();
 		X509Certificate pubKey = KeyInfoHelper.getCertificates(keyInfo).get(0);
 		String subjectDN = pubKey.getSubjectDN().getName();
-		log.trace("passed subjectName: '" + subjectName
-				+ "' certificate SubjectDN: '" + subjectDN);
+		if (log.isTraceEnabled())
+			log.trace("passed subjectName: '" + subjectName
+					+ "' certificate SubjectDN: '" + subjectDN);
 		return subjectDN.equals(subjectName);
 	}
 	
@@ -563,8 +839,9 @@ public class STSTokenValidator {
 		KeyInfo keyInfo = signature.getKeyInfo();
 		X509Certificate pubKey = KeyInfoHelper.getCertificates(keyInfo).get(0);
 		String issuer = pubKey.getIssuerDN().getName();
-		log.trace("passed issuerName: '" + issuerName
-				+ "' certificate IssuerDN: '" + issuer + "'");
+		if (log.isTraceEnabled())
+			log.trace("passed issuerName: '" + issuerName
+					+ "' certificate IssuerDN: '" + issuer + "'");
 		return issuer.equals(issuerName);
 	}
 	
@@ -576,7 +853,7 @@ public class STSTokenValidator {
     * @throws SecurityException, ValidationException, ConfigurationException, UnmarshallingException, CertificateException, KeyException
     * @throws UnmarshallingException, ValidationException, CertificateExceptio @throws UnmarshallingException, ValidationException, CertificateException n 
     */
-	private static List<STSClaim> getClaims(
+	static List<STSClaim> getClaims(
 			org.opensaml.saml1.core.Assertion samlAssertion)
 			throws SecurityException, ValidationException,
 			ConfigurationException, UnmarshallingException,
@@ -598,7 +875,8 @@ public class STSTokenValidator {
 				claims.add(new STSClaim(claimType, claimValue));
 			}
 		}
-		log.trace("Claims: " + claims.toString());
+		if (log.isTraceEnabled())
+			log.trace("Claims: " + claims);
 		return claims;
 	}
 
@@ -617,73 +895,11 @@ public class STSTokenValidator {
 				buffer.append(',');
 			buffer.append(value.getDOM().getTextContent());
 		}
-		log.trace("attributeValues: " + buffer.toString());
+		if (log.isTraceEnabled())
+			log.trace("attributeValues: " + buffer);
 		return buffer.toString();
 	}
 
-	/**
-    * getDocument(String doc)
-    * Parse document from string
-    * @param doc String string containing info for document builder parser
-    * @return Document - parsed from input string document 
-    */
-	private static Document getDocument(String doc)
-			throws ParserConfigurationException, SAXException, IOException {
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		DocumentBuilder documentbuilder = factory.newDocumentBuilder();
-		return documentbuilder.parse(new InputSource(new StringReader(doc)));
-	}
-
-	/**
-    * getAttrVal(String envelopedToken, String element, String attribute)
-    * Gets value of Document value contained in evelopedToken
-    * @param element String element to get value for
-    * @param attribute String attribute to get value for
-    * @return value String of element's attribute
-    */
-	private String getAttrVal(String envelopedToken, String element,
-			String attribute) throws ParserConfigurationException,
-			SAXException, IOException {
-		Document doc = getDocument(envelopedToken);
-		return doc.getElementsByTagName(element).item(0).getAttributes()
-				.getNamedItem(attribute).getNodeValue();
-	}
-
-	/**
-    * getElementVal(String envelopedToken, String element)
-    * Gets value of Document value contained in evelopedToken
-    * @param element String  element to get value for
-    * @param envelopedToken enveloped Token
-    * @throws throws ParserConfigurationException, SAXException, IOException 
-    * @return String - value of element's attribute
-    */
-	private String getElementVal(String envelopedToken, String element)
-			throws ParserConfigurationException, SAXException, IOException {
-		Document doc = getDocument(envelopedToken);
-		return doc.getElementsByTagName(element).item(0).getTextContent();
-	}
-
-	public void setIssuerDN(String issuerDN) {
-		this.issuerDN = issuerDN;
-	}
-
-	public void setContext(String context) {
-		this.context = context;
-	}
-
-	public void setIssuer(String issuer) {
-		this.issuer = issuer;
-	}
-
-	public void setMaxClockSkew(int maxClockSkew) {
-		this.maxClockSkew = maxClockSkew;
-	}
-
-	public void setCertificate(X509Certificate cert) {
-		this.certificate = cert;
-	}
-
 	/**
     * X509Certificate certFromToken(SignableSAMLObject token)
     * @param token SignableSAMLObject input token with sertificate inside
@@ -699,11 +915,4 @@ public class STSTokenValidator {
 			return null;
 		}
 	}
-
-	/**
-    * Activizate STSErrorCollector - for error preserving
-    */
-	public void setSTSErrorCollector(STSErrorCollector errorCollector) {
-		this.errorCollector = errorCollector;
-	}
 }
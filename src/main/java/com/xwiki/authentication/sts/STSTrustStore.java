@@ -0,0 +1,238 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Set of trusted STS signing certificates indexed by SHA-256 thumbprint.
+ * Several certificates can be trusted at once, so old and new certificate
+ * both work during signing key rollover. Lookup by token certificate is a
+ * single hash map get, whatever number of certificates is configured.
+ *
+ * Trust store is immutable. It can be loaded from a single certificate file,
+ * from a directory with certificate files (*.cer, *.crt, *.pem, *.der) or
+ * from a JKS/PKCS12 keystore.
+ *
+ * @version 1.0
+ */
+public final class STSTrustStore {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSTrustStore.class);
+	/**
+	 * CERT_EXTENSIONS - extensions of certificate files read from directory
+	 */
+	private static final String[] CERT_EXTENSIONS = { ".cer", ".crt",
+			".pem", ".der" };
+	/**
+	 * NONE - trust store without certificates, tokens are not trusted
+	 */
+	static final STSTrustStore NONE = new STSTrustStore(
+			new HashMap<String, X509Certificate>());
+	/**
+	 * certificates - trusted certificates by thumbprint
+	 */
+	private final Map<String, X509Certificate> certificates;
+
+	private STSTrustStore(Map<String, X509Certificate> certificates) {
+		this.certificates = Collections.unmodifiableMap(certificates);
+	}
+
+	/**
+	 * fromCertificates(Collection<X509Certificate> certs) - creates trust
+	 * store trusting given certificates
+	 *
+	 * @param certs Collection<X509Certificate>
+	 * @return STSTrustStore
+	 * @throws CertificateException - if certificate can't be encoded
+	 */
+	public static STSTrustStore fromCertificates(
+			Collection<X509Certificate> certs) throws CertificateException {
+		Map<String, X509Certificate> map = new HashMap<String, X509Certificate>();
+		for (X509Certificate cert : certs) {
+			if (cert != null)
+				map.put(STSTokenValidator.thumbprint(cert), cert);
+		}
+		return new STSTrustStore(map);
+	}
+
+	/**
+	 * fromCertificate(X509Certificate cert) - creates trust store with one
+	 * certificate
+	 *
+	 * @param cert X509Certificate
+	 * @return STSTrustStore
+	 * @throws CertificateException - if certificate can't be encoded
+	 */
+	public static STSTrustStore fromCertificate(X509Certificate cert)
+			throws CertificateException {
+		return fromCertificates(Collections.singletonList(cert));
+	}
+
+	/**
+	 * load(String path, String type, String password) - loads trust store from
+	 * directory, keystore or certificate file. Path is read as keystore if type
+	 * is set or file name ends with .jks, .p12 or .pfx.
+	 *
+	 * @param path String - directory, keystore or certificate file
+	 * @param type String - keystore type (JKS, PKCS12), can be null
+	 * @param password String - keystore password, can be null
+	 * @return STSTrustStore
+	 * @throws IOException - if file can't be read
+	 * @throws GeneralSecurityException - if certificate or keystore is broken
+	 */
+	public static STSTrustStore load(String path, String type, String password)
+			throws IOException, GeneralSecurityException {
+		File file = new File(path);
+		if (file.isDirectory())
+			return loadDirectory(file);
+		String keyStoreType = type;
+		if (keyStoreType == null || keyStoreType.length() == 0) {
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".jks"))
+				keyStoreType = "JKS";
+			else if (name.endsWith(".p12") || name.endsWith(".pfx"))
+				keyStoreType = "PKCS12";
+		}
+		if (keyStoreType != null && keyStoreType.length() > 0)
+			return loadKeyStore(file, keyStoreType, password);
+		return fromCertificates(loadCertificates(file));
+	}
+
+	private static STSTrustStore loadDirectory(File dir) throws IOException,
+			CertificateException {
+		Map<String, X509Certificate> map = new HashMap<String, X509Certificate>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Can't list directory " + dir);
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.isFile() || !isCertificateFile(file.getName()))
+				continue;
+			try {
+				for (X509Certificate cert : loadCertificates(file))
+					map.put(STSTokenValidator.thumbprint(cert), cert);
+			} catch (CertificateException e) {
+				log.warn("Could not read certificate from '" + file + "': "
+						+ e);
+			}
+		}
+		return new STSTrustStore(map);
+	}
+
+	private static STSTrustStore loadKeyStore(File file, String type,
+			String password) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(file);
+		try {
+			keyStore.load(in, password == null ? null : password.toCharArray());
+		} finally {
+			in.close();
+		}
+		Map<String, X509Certificate> map = new HashMap<String, X509Certificate>();
+		Enumeration<String> aliases = keyStore.aliases();
+		while (aliases.hasMoreElements()) {
+			Certificate cert = keyStore.getCertificate(aliases.nextElement());
+			if (cert instanceof X509Certificate)
+				map.put(STSTokenValidator.thumbprint((X509Certificate) cert),
+						(X509Certificate) cert);
+		}
+		return new STSTrustStore(map);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Collection<X509Certificate> loadCertificates(File file)
+			throws IOException, CertificateException {
+		InputStream in = new FileInputStream(file);
+		try {
+			CertificateFactory cf = CertificateFactory.getInstance("X509");
+			return (Collection<X509Certificate>) cf.generateCertificates(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean isCertificateFile(String name) {
+		String lower = name.toLowerCase();
+		for (String extension : CERT_EXTENSIONS) {
+			if (lower.endsWith(extension))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * get(X509Certificate cert) - returns trusted certificate with the same
+	 * thumbprint as given one
+	 *
+	 * @param cert X509Certificate - certificate from the token
+	 * @return X509Certificate - trusted certificate or null if not trusted
+	 * @throws CertificateException - if certificate can't be encoded
+	 */
+	public X509Certificate get(X509Certificate cert)
+			throws CertificateException {
+		return cert == null ? null : certificates.get(STSTokenValidator
+				.thumbprint(cert));
+	}
+
+	/**
+	 * isTrusted(X509Certificate cert) - checks if certificate is in the store
+	 *
+	 * @param cert X509Certificate
+	 * @return boolean
+	 * @throws CertificateException - if certificate can't be encoded
+	 */
+	public boolean isTrusted(X509Certificate cert) throws CertificateException {
+		return get(cert) != null;
+	}
+
+	public Collection<X509Certificate> getCertificates() {
+		return certificates.values();
+	}
+
+	public int size() {
+		return certificates.size();
+	}
+
+	public boolean isEmpty() {
+		return certificates.isEmpty();
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.DocumentDeleteEvent;
+import org.xwiki.observation.event.DocumentSaveEvent;
+import org.xwiki.observation.event.DocumentUpdateEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Cache of user documents found by person ID, so repeated logins don't run
+ * the user search query. Cache is bounded by size and entries expire after
+ * TTL. Only found users are cached. Cache listens to document save, update
+ * and delete events and drops all entries pointing to the changed document,
+ * so changed person ID or deleted user is never served from the cache.
+ * Entries are indexed by document name, so events of other documents cost a
+ * single map lookup.
+ *
+ * @version 1.0
+ */
+final class STSUserCache implements EventListener {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSUserCache.class);
+	/**
+	 * DEFAULT_SIZE - default max number of cached users
+	 */
+	static final int DEFAULT_SIZE = 10000;
+	/**
+	 * DEFAULT_TTL - default time to keep cached user, in seconds
+	 */
+	static final int DEFAULT_TTL = 3600;
+	/**
+	 * EVENTS - document events which invalidate cached users
+	 */
+	private static final List<Event> EVENTS = Arrays.<Event> asList(
+			new DocumentSaveEvent(), new DocumentUpdateEvent(),
+			new DocumentDeleteEvent());
+	/**
+	 * users - "id field:person ID" => user document full name
+	 */
+	private final STSExpiringCache<String, String> users;
+	/**
+	 * ttlMillis - time to keep cached user
+	 */
+	private final long ttlMillis;
+
+	/**
+	 * <b>STSUserCache</b> - creates empty cache
+	 *
+	 * @param maxSize int - max number of cached users
+	 * @param ttlSeconds int - time to keep cached user
+	 */
+	STSUserCache(int maxSize, int ttlSeconds) {
+		this.users = new STSExpiringCache<String, String>(maxSize, true);
+		this.ttlMillis = ttlSeconds * 1000L;
+	}
+
+	/**
+	 * get(String idField, String personId) - cached user document name
+	 *
+	 * @param idField String - STSAuthClass field with person ID
+	 * @param personId String - person ID
+	 * @return String full name of user document or null if not cached
+	 */
+	String get(String idField, String personId) {
+		return users.get(key(idField, personId));
+	}
+
+	/**
+	 * put(String idField, String personId, String fullName) - remembers
+	 * found user document
+	 *
+	 * @param idField String - STSAuthClass field with person ID
+	 * @param personId String - person ID
+	 * @param fullName String - full name of user document
+	 */
+	void put(String idField, String personId, String fullName) {
+		users.put(key(idField, personId), fullName, System.currentTimeMillis()
+				+ ttlMillis);
+	}
+
+	/**
+	 * invalidate(String fullName) - drops all entries pointing to the user
+	 * document
+	 *
+	 * @param fullName String - full name of user document
+	 */
+	void invalidate(String fullName) {
+		int removed = users.removeValue(fullName);
+		if (removed > 0)
+			log.debug("Removed " + removed + " cached entries of user "
+					+ fullName);
+	}
+
+	void clear() {
+		users.clear();
+	}
+
+	int size() {
+		return users.size();
+	}
+
+	int getMaxSize() {
+		return users.getMaxSize();
+	}
+
+	long getHits() {
+		return users.getHits();
+	}
+
+	long getMisses() {
+		return users.getMisses();
+	}
+
+	/**
+	 * getHitRate() - part of lookups served from the cache
+	 *
+	 * @return double - 0..1, 0 if there were no lookups
+	 */
+	double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public String getName() {
+		return "STSUserCache@" + System.identityHashCode(this);
+	}
+
+	public List<Event> getEvents() {
+		return EVENTS;
+	}
+
+	public void onEvent(Event event, Object source, Object data) {
+		if (source instanceof XWikiDocument)
+			invalidate(((XWikiDocument) source).getFullName());
+	}
+
+	private static String key(String idField, String personId) {
+		return idField + ':' + personId;
+	}
+}
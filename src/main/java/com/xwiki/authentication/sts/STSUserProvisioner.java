@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package com.xwiki.authentication.sts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * User search and creation shared by login and bulk import, so both create
+ * the same user documents from the same mapping rules.
+ *
+ * @version 1.0
+ */
+final class STSUserProvisioner {
+	/**
+	 * Log log - log - from LogFactory
+	 */
+	private static Log log = LogFactory.getLog(STSUserProvisioner.class);
+	/**
+	 * Where clause of the user search by person ID. Values are bound as
+	 * parameters, so the statement is the same for all users.
+	 */
+	static final String USER_SEARCH_WHERE = ", BaseObject as obj, StringProperty as nameidprop where"
+			+ " doc.fullName=obj.name and obj.className='XWiki.STSAuthClass' and obj.id=nameidprop.id.id"
+			+ " and nameidprop.id.name=? and nameidprop.value=?";
+	/**
+	 * CREATE_ATTEMPTS - attempts to create user when generated name is taken
+	 * by other user created at the same time
+	 */
+	static final int CREATE_ATTEMPTS = 3;
+
+	private STSUserProvisioner() {
+	}
+
+	/**
+	 * normalizePersonId(String personID) - sets conventional person code
+	 * format for NORDEA, PAREX, SEB banks (123456-12345)
+	 *
+	 * @param personID String - person ID from STS
+	 * @return String - person ID with dash
+	 */
+	static String normalizePersonId(String personID) {
+		if (personID != null && personID.indexOf('-') < 0
+				&& personID.length() == 11) {
+			String person_ID = personID.substring(0, 6) + "-"
+					+ personID.substring(6);
+			log.debug("Changed person ID from " + personID + " to "
+					+ person_ID);
+			return person_ID;
+		}
+		return personID;
+	}
+
+	/**
+	 * search(String stsAuthClassIdField, String personId, XWikiContext context) -
+	 * finds user document by person ID in STSAuthClass
+	 *
+	 * @param stsAuthClassIdField String - STSAuthClass field with person ID
+	 * @param personId String - person ID
+	 * @param context XWikiContext
+	 * @return String - user document full name or null if not found
+	 * @throws XWikiException - if search fails
+	 */
+	static String search(String stsAuthClassIdField, String personId,
+			XWikiContext context) throws XWikiException {
+		List<Object> params = new ArrayList<Object>(2);
+		params.add(stsAuthClassIdField);
+		params.add(personId);
+		log.debug("XWiki search where clause: " + USER_SEARCH_WHERE
+				+ " parameters: " + params);
+		List<String> list = context.getWiki().searchDocuments(
+				USER_SEARCH_WHERE, 1, 0, params, context);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	/**
+	 * generateUserName(Map<String, String> userData, List<String> usernameRule) -
+	 * user name from values of the user fields listed in the rule
+	 *
+	 * @param userData Map<String, String> - XWiki user field values
+	 * @param usernameRule List<String> - XWiki user fields
+	 * @return String - user name, "User" if fields have no values
+	 */
+	static String generateUserName(Map<String, String> userData,
+			List<String> usernameRule) {
+		StringBuilder userName = new StringBuilder("");
+		for (String field : usernameRule) {
+			String value = userData.get(field);
+			if (value != null && value.length() > 0) {
+				userName.append(value);
+			}
+		}
+		log.debug("XWikiUsername: " + userName);
+		return userName.length() == 0 ? "User" : userName.toString();
+	}
+
+	/**
+	 * createUser(String userName, Map<String, String> userData, String personId,
+	 * String authType, String claimHash, XWikiContext context) - creates user
+	 * with unique page name made from userName, read only profile and
+	 * STSAuthClass object. Should be called in the main wiki.
+	 *
+	 * @param userName String - wanted user name, from generateUserName()
+	 * @param userData Map<String, String> - XWiki user field values
+	 * @param personId String - person ID
+	 * @param authType String - authentication method
+	 * @param claimHash String - hash of the claims, can be null
+	 * @param context XWikiContext
+	 * @return String - full name of created user or null if it wasn't created
+	 * @throws XWikiException - if user document can't be saved
+	 */
+	static String createUser(String userName, Map<String, String> userData,
+			String personId, String authType, String claimHash,
+			XWikiContext context) throws XWikiException {
+		Map<String, String> data = new HashMap<String, String>(userData);
+		data.put("active", "1");
+		for (int attempt = 1; attempt <= CREATE_ATTEMPTS; attempt++) {
+			String validUserName = context.getWiki().getUniquePageName("XWiki",
+					userName, context);
+			String validFullUserName = "XWiki." + validUserName;
+			log.debug("Need to create user " + validFullUserName);
+			int result = context.getWiki().createUser(validUserName, data,
+					"XWiki.XWikiUsers",
+					"#includeForm(\"XWiki.XWikiUserSheet\")", "edit", context);
+			if (result < 0) {
+				// name could be taken by user created at the same time
+				log.warn("Failed to create user " + validFullUserName
+						+ " with code " + result + ", attempt " + attempt);
+				continue;
+			}
+			XWikiDocument userDoc = context.getWiki().getDocument(
+					validFullUserName, context);
+			BaseObject userObj = userDoc.getObject("XWiki.XWikiUsers");
+			// Fix bug for e-mail field where "$email" value is set on
+			// creation
+			userObj.set("email", "", context);
+			// set user profile to read only with explicit view to not
+			// allow changing his name, surname and password
+			BaseObject rightsObj = userDoc.getObject("XWiki.XWikiRights", 1);
+			rightsObj.set("allow", 1, context);
+			rightsObj.set("levels", "view", context);
+			// set person ID and authentication type
+			BaseObject stsObj = userDoc.newObject("XWiki.STSAuthClass",
+					context);
+			stsObj.set("nameid", personId, context);
+			stsObj.set("authtype", authType, context);
+			if (claimHash != null)
+				stsObj.set(STSProfileSynchronizer.CLAIM_HASH_FIELD, claimHash,
+						context);
+			context.getWiki().saveDocument(userDoc, context);
+			return validFullUserName;
+		}
+		log.error("Failed to create user " + userName + " for Nameid: "
+				+ personId);
+		return null;
+	}
+}
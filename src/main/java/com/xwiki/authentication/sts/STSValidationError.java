@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+/**
+ * Reasons why STS token was rejected. Constants are in the order the checks
+ * are made.
+ *
+ * @version 1.0
+ */
+public enum STSValidationError {
+	CONTEXT("Wrong token Context"),
+	EXPIRED("Token Created or Expires elements have been expired"),
+	ISSUER("Wrong token Issuer"),
+	ISSUER_DN("Wrong token IssuerDN"),
+	SUBJECT_DN("Wrong token SubjectDN"),
+	NOTHING_TO_VALIDATE("Nothing to validate against"),
+	CERTIFICATE("Local certificate didn't match the user suplied one"),
+	AUDIENCE("The token applies to an untrusted audience"),
+	SIGNATURE("Invalid signature"),
+	NOT_REPLAY_SAFE("Token has no AssertionID or NotOnOrAfter, replay can't be checked"),
+	REPLAYED("Token was already used");
+
+	private final String message;
+
+	private STSValidationError(String message) {
+		this.message = message;
+	}
+
+	/**
+	 * getMessage() - default description of the error
+	 *
+	 * @return String
+	 */
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+/**
+ * Token validation failure. Validation failures are expected results, not
+ * program errors, so the exception doesn't fill in stack trace, which is
+ * the most expensive part of creating an exception.
+ *
+ * @version 1.0
+ */
+public class STSValidationException extends STSException {
+	private static final long serialVersionUID = 1L;
+	/**
+	 * error - reason of the failure
+	 */
+	private final STSValidationError error;
+
+	/**
+	 * @param error STSValidationError - reason of the failure
+	 */
+	public STSValidationException(STSValidationError error) {
+		this(error, error.getMessage());
+	}
+
+	/**
+	 * @param error STSValidationError - reason of the failure
+	 * @param message String - description with details
+	 */
+	public STSValidationException(STSValidationError error, String message) {
+		super(message);
+		this.error = error;
+	}
+
+	public STSValidationError getError() {
+		return error;
+	}
+
+	/**
+	 * fillInStackTrace() - stack trace is not filled in
+	 *
+	 * @return Throwable - this exception
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of STS token validation: claims of the valid token or failed
+ * checks with their descriptions. Failed checks are kept in the order the
+ * checks are made; the same check can fail more than once (e.g. EXPIRED
+ * for the envelope lifetime and for assertion Conditions).
+ *
+ * @version 1.0
+ */
+public final class STSValidationResult {
+	/**
+	 * Failed check and its description
+	 */
+	private static final class Failure {
+		final STSValidationError error;
+		final String message;
+
+		Failure(STSValidationError error, String message) {
+			this.error = error;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * failures - failed checks in the order they are made
+	 */
+	private final List<Failure> failures = new ArrayList<Failure>();
+	private List<STSClaim> claims;
+
+	STSValidationResult() {
+	}
+
+	/**
+	 * fail(STSValidationError error, String message) - records failed check
+	 *
+	 * @param error STSValidationError
+	 * @param message String - description, default message of the error if
+	 *            null
+	 */
+	void fail(STSValidationError error, String message) {
+		failures.add(new Failure(error, message == null ? error.getMessage()
+				: message));
+	}
+
+	void setClaims(List<STSClaim> claims) {
+		this.claims = claims;
+	}
+
+	/**
+	 * isValid() - true if no check has failed
+	 *
+	 * @return boolean
+	 */
+	public boolean isValid() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * getErrors() - failed checks in the order they are made
+	 *
+	 * @return List<STSValidationError>
+	 */
+	public List<STSValidationError> getErrors() {
+		List<STSValidationError> errors = new ArrayList<STSValidationError>(
+				failures.size());
+		for (Failure failure : failures)
+			errors.add(failure.error);
+		return Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * getMessage(STSValidationError error) - description of failed check
+	 *
+	 * @param error STSValidationError
+	 * @return String - description of its first failure or null if check
+	 *         didn't fail
+	 */
+	public String getMessage(STSValidationError error) {
+		for (Failure failure : failures) {
+			if (failure.error == error)
+				return failure.message;
+		}
+		return null;
+	}
+
+	/**
+	 * getClaims() - claims of the token
+	 *
+	 * @return List<STSClaim> - claims, null if they were not read
+	 */
+	public List<STSClaim> getClaims() {
+		return claims;
+	}
+
+	/**
+	 * toException(STSErrorCollector errorCollector) - exceptions of failed
+	 * checks are added to the collector, the one of the last made check is
+	 * returned, as validator used to throw it
+	 *
+	 * @param errorCollector STSErrorCollector - can be null
+	 * @return STSValidationException - null if token is valid
+	 */
+	public STSValidationException toException(STSErrorCollector errorCollector) {
+		STSValidationException exception = null;
+		for (Failure failure : failures) {
+			exception = new STSValidationException(failure.error,
+					failure.message);
+			if (errorCollector != null)
+				errorCollector.addError(exception);
+		}
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		if (isValid())
+			return "valid";
+		StringBuilder out = new StringBuilder("[");
+		for (Failure failure : failures) {
+			if (out.length() > 1)
+				out.append(", ");
+			out.append(failure.error).append('=').append(failure.message);
+		}
+		return out.append(']').toString();
+	}
+}
@@ -24,29 +24,27 @@ import com.xpn.xwiki.doc.*;
 import com.xpn.xwiki.objects.*;
 import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
+import com.xpn.xwiki.web.Utils;
 import com.xpn.xwiki.web.XWikiRequest;
 import java.io.*;
-import java.net.URI;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.locks.Lock;
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.servlet.http.HttpSession;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opensaml.*;
 import org.opensaml.xml.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 
 import static org.apache.commons.lang.StringEscapeUtils.escapeHtml;
 
@@ -64,18 +62,57 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	 * props - Props Variable - Holding method to load Certificate from file
 	 */
 	private static Log log = LogFactory.getLog(XWikiSTSAuthenticator.class);
-	/**
-	* Holds the mapping between HTTP header fields names and XWiki user
-	*/
-	private static Map<String, String> userMappings;
 	/** 
 	 * props - Props Variable - Holding method to load Certificate from file
 	 */
 	private static Props props = new Props();
 	/**
-	*  Error collector - collecting errors in a List. Converting to strings
-	*/
-	private STSErrorCollector errorCollector = new STSErrorCollector();
+	 * Max time to wait while other request creates the same user
+	 */
+	private static final long PROVISIONING_LOCK_TIMEOUT = 30 * 1000L;
+	/**
+	 * Locks of first logins by person ID, shared with bulk import
+	 */
+	private final STSProvisioningLocks provisioningLocks = STSProvisioningLocks.SHARED;
+	/**
+	 * Configuration snapshot - read from xwiki.cfg once, replaced on reload
+	 */
+	private volatile STSConfig config;
+	/**
+	 * Token validator - built once from configuration and shared by all requests
+	 */
+	private volatile STSTokenValidator validator;
+	/**
+	 * Replay cache - IDs of assertions already used to log in
+	 */
+	private volatile STSReplayCache replayCache;
+	/**
+	 * User cache - user documents by person ID, null until the first login
+	 */
+	private volatile STSUserCache userCache;
+	/**
+	 * userCacheDisabled - set when cache can't listen to document changes
+	 */
+	private volatile boolean userCacheDisabled;
+	/**
+	 * Profile synchronizer - skips profile update of returning users with
+	 * unchanged claims, null until the first login
+	 */
+	private volatile STSProfileSynchronizer profileSync;
+	/**
+	 * Background profile updates, null until needed
+	 */
+	private volatile STSAsyncProfileSync asyncProfileSync;
+
+	/**
+	 * Bootstraps OpenSAML when authenticator is created by XWiki, so the
+	 * first login doesn't pay for it, and publishes its JMX monitor
+	 */
+	public XWikiSTSAuthenticator() {
+		super();
+		STSBootstrap.warmUp();
+		STSMonitor.register(this);
+	}
 	
 	 /**
      * showLogin - Makes appropriate url and sends request to the STS (Security Token Service)  
@@ -88,23 +125,21 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	public void showLogin(XWikiContext context) throws XWikiException {
 		log.trace("showLogin()");
 		XWikiRequest request = context.getRequest();
+		STSConfig cfg = getConfig(context);
 		try {
-			DefaultBootstrap.bootstrap();
+			STSBootstrap.bootstrap();
 		} catch (ConfigurationException e) {
 			log.error("Failed to bootstrap sts module" + e);
-			errorCollector.addError(new Throwable(
-					"Failed to bootstrap sts module: ", e));
+			STSRecentErrors.RECENT.add("Failed to bootstrap sts module: " + e);
 		}
 
 		// STS provider URL
-		String url = props.getAuthURL(context) + "?wa=wsignin1.0";
+		String url = cfg.authUrl + "?wa=wsignin1.0";
 		// Request realm
-		String wtrealm = props.getWtrealm(context);
-		if (wtrealm != null && wtrealm != "")
-			url += "&wtrealm=" + escapeHtml(wtrealm);
+		if (cfg.wtrealm != null)
+			url += "&wtrealm=" + escapeHtml(cfg.wtrealm);
 		// Request ID
-		String wctx = props.getWctx(context);
-		if (wctx != null && "1".equals(wctx)) {
+		if (cfg.sendContext) {
 			String randId = RandomStringUtils.randomAlphanumeric(42);
 			log.debug("Request ID: " + randId);
 			request.getSession().setAttribute("saml_id", randId);
@@ -112,8 +147,8 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 		}
 		// Host is set manually, because XWiki is behind proxy server
 		// and simple XWiki.getRequestURL(request) returns localhost
-		String wreplyHost = props.getWreplyHost(context);
-		String wreplyPage = props.getWreplyPage(context);
+		String wreplyHost = cfg.wreplyHost;
+		String wreplyPage = cfg.wreplyPage;
 		String page = "/";
 		if (wreplyHost != null && !"0".equals(wreplyHost)) {
 			if ("1".equals(wreplyPage) || "shorten".equals(wreplyPage)) {
@@ -134,18 +169,16 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 		request.getSession().setAttribute("saml_url", wreplyHost + page);
 
 		// Auth request time
-		String wct = props.getWct(context);
-		if (wct != null && "1".equals(wct)) {
+		if (cfg.sendTime) {
 			SimpleDateFormat dateFormatGmt = new SimpleDateFormat(
 					"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 			dateFormatGmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-			wct = dateFormatGmt.format(new Date());
+			String wct = dateFormatGmt.format(new Date());
 			url += "&wct=" + wct;
 		}
 		// maximum age of authentication
-		String wfresh = props.getWfresh(context);
-		if (wfresh != null && wfresh != "" && Integer.parseInt(wfresh) > 0) {
-			url += "&wfresh=" + wfresh;
+		if (cfg.wfresh > 0) {
+			url += "&wfresh=" + cfg.wfresh;
 		}
 		// Send request to the STS service
 		log.info("SAML STS request sent to " + url);
@@ -169,145 +202,135 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	 * @throws ConfigurationException
 	 */
 	public boolean checkSTSResponse(XWikiContext context) throws XWikiException {
+		// errors of this request only, logged and kept in recent failures
+		STSErrorCollector errorCollector = new STSErrorCollector();
+		long start = System.nanoTime();
+		boolean authenticated = false;
+		try {
+			authenticated = checkSTSResponse(context, errorCollector);
+			return authenticated;
+		} finally {
+			STSMetrics.GLOBAL.record(STSMetrics.Stage.LOGIN, start);
+			STSMetrics.GLOBAL.login(authenticated);
+			if (errorCollector.geterrorListLength() > 0) {
+				log.error(errorCollector.listErrors());
+				STSRecentErrors.RECENT.add(errorCollector);
+			}
+		}
+	}
+
+	/**
+	 * checkSTSResponse(XWikiContext context, STSErrorCollector errorCollector) -
+	 * checks response, errors of the request are added to errorCollector
+	 */
+	private boolean checkSTSResponse(XWikiContext context,
+			STSErrorCollector errorCollector) throws XWikiException {
 		// read from STSResponse
 		log.trace("checkSTSResponse()");
 		XWikiRequest request = context.getRequest();
+		STSConfig cfg = getConfig(context);
 		Map<String, String> attributes = new HashMap<String, String>();
 		String authType = "";
-		try {
-			Enumeration<String> headerNames = request.getHeaderNames();
-			while (headerNames.hasMoreElements()) {
-				String headerName = headerNames.nextElement();
-				log.trace(headerName + ": " + request.getHeader(headerName));
-			}
-			Enumeration<String> paramNames = request.getParameterNames();
-			while (paramNames.hasMoreElements()) {
-				String paramName = paramNames.nextElement();
-				log.trace(paramName + ": " + request.getParameter(paramName));
-			}
-		} catch (Exception e) {
-			log.error("Failed to read request headers or parameters: " + e);
-			errorCollector.addError(new Throwable(
-					"Failed to read request headers or parameters: ", e));
-		}
+		if (log.isTraceEnabled())
+			traceRequest(context);
 
 		String stsResponse = request.getParameter("wresult");
 		if (stsResponse == null) {
 			log.debug("Didn't get wresult from request!");
-			log.error(errorCollector.listErrors());
-			errorCollector.clearErrorList();
-			
 			return false;
 		}
 
-		log.debug("\n***** STS Response: *****\n" + stsResponse + "\n*****");
 		HttpServletRequest myRequest = context.getRequest()
 				.getHttpServletRequest();
-		try {
-			log.debug("request.getParameter('wresult') is "
-					+ myRequest.getParameter("wresult"));
+		if (log.isDebugEnabled()) {
+			log.debug("\n***** STS Response: *****\n"
+					+ STSLogRedactor.payload(stsResponse) + "\n*****");
 			log.debug("request.getParameter('wct') is "
 					+ myRequest.getParameter("wct"));
 			log.debug("request.getParameter('wctx') is "
 					+ myRequest.getParameter("wctx"));
 			log.debug("request.getParameter('wa') is "
 					+ myRequest.getParameter("wa"));
-		} catch (Exception e) {
-			log.error("Failed to read response request parameters" + e);
-			errorCollector.addError(new Throwable(
-					"Failed to read response request parameters: ", e));
 		}
 
 		// Get Context ID from the user session
 		String prevId = (String) request.getSession().getAttribute("saml_id");
 		String curId = myRequest.getParameter("wctx");
-		String wctx = props.getWctx(context);
+		// Assertion marked as used by this request, forgotten if login fails
+		String replayId = null;
 		// Check response and token
-		if (wctx != null && "1".equals(wctx)) {
+		if (cfg.sendContext) {
+			STSParsedToken token;
 			try { // Check token validity
 				if (!prevId.equals(curId)) {
 					log.debug("Retrieved wctx parameter value doesn't match passed value. Passed: "
 							+ prevId + " retrieved: " + curId);
 					return false;
 				}
-				STSTokenValidator validator = new STSTokenValidator();
-				validator.setSTSErrorCollector(errorCollector);
-				validator.setContext(prevId);
-				// Get parameters from Xwiki configuration
-				validator.setIssuer(props.getIssuer(context));
-				log.debug("props.getIssuer(context) "
-						+ props.getIssuer(context));
-				log.debug("checkSTSResponse(props.getIssuer(context)) "
-						+ props.getIssuer(context));
-				STSTokenValidator.setEntityId(props.getEntityId(context));
-				validator.setIssuerDN(props.getIssuerDN(context));
-				List<String> subjectDNs = new ArrayList<String>();
-				subjectDNs.add(props.getSubjectDNs(context));
-				validator.setSubjectDNs(subjectDNs);
-				List<URI> audienceURIs = new ArrayList<URI>();
-				audienceURIs.add(new URI(props.getAudienceURIs(context)));
-				validator.setAudienceUris(audienceURIs);
-				String wct = props.getWct(context);
-				validator.setCertificate(props.getCertificate(context));
-				// If time control is set, use time validation
-				if (wct != null && "1".equals(wct)) {
-					int maxClockSkew = Integer.parseInt(props
-							.getWfresh(context)) * 60 * 1000;
-					validator.setMaxClockSkew(maxClockSkew);
-					validator.setValidateExpiration(true);
-				} else
-					validator.setValidateExpiration(false);
-				List<STSClaim> claims = validator.validate(myRequest
-						.getParameter("wresult"));
-				log.trace("Token claims: " + claims);
+				STSTokenValidator validator = getValidator(cfg);
+				// Token is parsed only once and reused for attribute mapping
+				token = new STSParsedToken(stsResponse);
+				// Replayed token is rejected before it is parsed
+				STSReplayCache replays = getReplayCache(cfg);
+				String assertionId = token.getAssertionId();
+				// token which can't be remembered till it expires is rejected
+				if (replays != null
+						&& (assertionId == null || token.getNotOnOrAfter() == null))
+					throw new STSValidationException(
+							STSValidationError.NOT_REPLAY_SAFE);
+				if (replays != null && replays.contains(assertionId))
+					throw new STSValidationException(
+							STSValidationError.REPLAYED,
+							"Token was already used: " + assertionId);
+				List<STSClaim> claims = validator.validate(token, prevId,
+						errorCollector);
+				if (log.isTraceEnabled())
+					log.trace("Token claims: " + claims);
+				if (replays != null) {
+					if (!replays.markIfAbsent(assertionId, cfg
+							.getReplayExpiration(token.getNotOnOrAfter()
+									.getMillis())))
+						throw new STSValidationException(
+								STSValidationError.REPLAYED,
+								"Token was already used: " + assertionId);
+					replayId = assertionId;
+				}
 
 			} catch (Exception e) {
 				// as validator returns validation errors as exceptions
 				// log them only in debug mode
 				log.error("Failed to validate token\n" + e);
-				errorCollector.addError(new Throwable(
-						"Failed to validate token: ", e));
+				// validation failures are already collected by validator
+				if (!(e instanceof STSValidationException))
+					errorCollector.addError(new Throwable(
+							"Failed to validate token: ", e));
+				else if (isReplayError(((STSValidationException) e).getError())) {
+					STSMetrics.GLOBAL.failed(((STSValidationException) e)
+							.getError());
+					errorCollector.addError(e);
+				}
 				return false;
 			}
 
 			try {
-				DocumentBuilderFactory dbf = DocumentBuilderFactory
-						.newInstance();
-				DocumentBuilder db = dbf.newDocumentBuilder();
-				Document doc = db.parse(new ByteArrayInputStream(stsResponse
-						.getBytes("utf-8")));
-				doc.getDocumentElement().normalize();
-				log.debug("Root element:"
-						+ doc.getDocumentElement().getNodeName());
-				NodeList nodeList = doc.getElementsByTagName("saml:Attribute");
-				log.debug("Node list length:" + nodeList.getLength());
 				// Process all attributes
-				for (int i = 0; i < nodeList.getLength(); i++) {
-					Node node = nodeList.item(i);
-					String attrName = node.getAttributes()
-							.getNamedItem("AttributeName").getTextContent();
-					String attrValue = node.getChildNodes().item(0)
-							.getTextContent();
-					// CAPITAL
-					if ("CAPITAL".equals(props.getDataFormat(context)))
-						attrValue = attrValue.toUpperCase();
-					// Title
-					if ("Title".equals(props.getDataFormat(context)))
-						attrValue = attrValue.substring(0, 1).toUpperCase()
-								+ ((attrValue.length() > 1) ? attrValue
-										.substring(1).toLowerCase() : "");
-					log.debug("Node:" + attrName + ", value:" + attrValue);
+				for (Map.Entry<String, String> attr : token.getAttributes()
+						.entrySet()) {
+					String attrName = attr.getKey();
+					String attrValue = attr.getValue();
+					if (log.isDebugEnabled())
+						log.debug("Node:" + attrName + ", value:" + attrValue);
 					attributes.put(attrName, attrValue);
 				}
 				// get authentication method (should be known for legal reasons)
-				authType = doc
-						.getElementsByTagName("saml:AuthenticationStatement")
-						.item(0).getAttributes()
-						.getNamedItem("AuthenticationMethod").getNodeValue();
+				authType = token.getAuthenticationMethod();
+				if (authType == null)
+					throw new STSException("AuthenticationMethod was not found");
 			} catch (Exception e) {
 				log.error("Failed reading STS response\n" + e);
 				errorCollector.addError(new Throwable(
 						"Failed reading STS response: ", e));
+				forgetReplay(replayId);
 				return false;
 			}
 		} else {
@@ -315,130 +338,117 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 		}
 
 		// let's map the data
-		Map<String, String> userData = getExtendedInformation(attributes,
-				context);
-		String personID = attributes.get(props.getIdField(context));
+		// values are formatted (CAPITAL|Title) by the field mapping
+		Map<String, String> userData = getExtendedInformation(attributes, cfg);
+		String personID = cfg.dataTransform.apply(attributes.get(cfg.idField));
 		// set conventional person code format for NORDEA, PAREX, SEB banks
-		String person_ID;
-		if (personID != null && personID.indexOf('-') < 0
-				&& personID.length() == 11) {
-			person_ID = personID.substring(0, 6) + "-" + personID.substring(6);
-			log.debug("Changed person ID from " + personID + " to " + person_ID);
-		} else
-			person_ID = personID;
-		log.debug("STS person ID is " + person_ID);
-		log.debug("STS attributes are " + attributes);
-		log.debug("STS user data are " + userData);
+		String person_ID = STSUserProvisioner.normalizePersonId(personID);
+		if (log.isDebugEnabled()) {
+			log.debug("STS person ID is " + person_ID);
+			log.debug("STS attributes are " + attributes);
+			log.debug("STS user data are " + userData);
+		}
 		// Get STSAuthClass ID field from configuration file (for backward
 		// compatibility)
 		// TODO should change nameid to personid for all XWiki solutions
-		String stsAuthClassIdField = props.getStsAuthClassIdField(context);
-		String sql = "select distinct doc.fullName from XWikiDocument as doc, BaseObject as obj, StringProperty as nameidprop where"
-				+ " doc.fullName=obj.name and obj.className='XWiki.STSAuthClass' and obj.id=nameidprop.id.id and nameidprop.id.name='"
-				+ stsAuthClassIdField
-				+ "' and nameidprop.value='"
-				+ person_ID
-				+ "'";
-		log.debug("XWiki search SQL string: " + sql);
-		List<Object> list = context.getWiki().search(sql, context);
-		String validFullUserName = null;
-		String validUserName = null;
-
-		if (list.isEmpty()) {
-			// User does not exist. Let's generate a unique page name
-			log.debug("Did not find XWiki User. Generating it.");
-			String userName = generateXWikiUsername(userData, context);
-			if ("".equals(userName))
-				userName = "User";
-			validUserName = context.getWiki().getUniquePageName("XWiki",
-					userName, context);
-			validFullUserName = "XWiki." + validUserName;
-			log.debug("Generated XWiki User Name " + validFullUserName);
+		String stsAuthClassIdField = cfg.stsAuthClassIdField;
+		long start = System.nanoTime();
+		String validFullUserName = findUser(cfg, stsAuthClassIdField,
+				person_ID, context);
+		STSMetrics.GLOBAL.record(STSMetrics.Stage.USER_LOOKUP, start);
+		// only one of concurrent first logins of the person creates the user
+		Lock provisioningLock = null;
+		if (validFullUserName == null) {
+			try {
+				provisioningLock = provisioningLocks.tryLock(person_ID,
+						PROVISIONING_LOCK_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (provisioningLock == null) {
+				log.error("Timed out waiting for creation of user with Nameid: "
+						+ person_ID);
+				errorCollector.addError(new Throwable(
+						"Timed out waiting for user creation"));
+				forgetReplay(replayId);
+				return false;
+			}
+			// user could be created while this request was waiting
+			start = System.nanoTime();
+			validFullUserName = findUser(cfg, stsAuthClassIdField, person_ID,
+					context);
+			STSMetrics.GLOBAL.record(STSMetrics.Stage.USER_LOOKUP, start);
+		}
+		try {
+			String userName = null;
 
-		} else {
-			validFullUserName = (String) list.get(0);
-			log.debug("Found XWiki User " + validFullUserName);
+			if (validFullUserName == null) {
+				// User does not exist. Let's generate a user name
+				log.debug("Did not find XWiki User. Generating it.");
+				userName = generateXWikiUsername(userData, cfg);
+				log.debug("Generated XWiki User Name " + userName);
 
-		}
+			} else {
+				log.debug("Found XWiki User " + validFullUserName);
+
+			}
 
-		// we found a user or generated a unique user name
-		if (validFullUserName != null) {
+			// we found a user or generated a user name
 			// check if we need to create/update a user page
 			String database = context.getDatabase();
+			start = System.nanoTime();
 			try {
 				// Switch to main wiki to force users to be global users
 				context.setDatabase(context.getMainXWiki());
 
-				// test if user already exists
-				if (!context.getWiki().exists(validFullUserName, context)) {
-					log.debug("Need to create user " + validFullUserName);
-
-					// create user
-					userData.put("active", "1");
-
-					int result = context.getWiki().createUser(validUserName,
-							userData, "XWiki.XWikiUsers",
-							"#includeForm(\"XWiki.XWikiUserSheet\")", "edit",
-							context);
-					if (result < 0) {
-						log.error("Failed to create user " + validFullUserName
-								+ " with code " + result);
+				STSProfileSynchronizer profiles = getProfileSynchronizer(cfg);
+				String claimHash = STSProfileSynchronizer.claimHash(userData,
+						authType);
+				// returning user with the same claims, document isn't loaded
+				if (userName == null
+						&& profiles.isSynced(validFullUserName, claimHash)) {
+					log.info("Existing user " + validFullUserName
+							+ " was found. Claims were not changed. Nameid: "
+							+ person_ID + " authtype: " + authType);
+				}
+				// create user
+				else if (userName != null) {
+					validFullUserName = STSUserProvisioner.createUser(
+							userName, userData, person_ID, authType,
+							claimHash, context);
+					if (validFullUserName == null) {
 						errorCollector.addError(new Throwable(
 								"Failed to create user: "));
+						forgetReplay(replayId);
 						return false;
 					}
-					XWikiDocument userDoc = context.getWiki().getDocument(
-							validFullUserName, context);
-					BaseObject userObj = userDoc.getObject("XWiki.XWikiUsers");
-					// Fix bug for e-mail field where "$email" value is set on
-					// creation
-					userObj.set("email", "", context);
-					// set user profile to read only with explicit view to not
-					// allow
-					// changing his
-					// name, surname and password
-					BaseObject rightsObj = userDoc.getObject(
-							"XWiki.XWikiRights", 1);
-					rightsObj.set("allow", 1, context);
-					rightsObj.set("levels", "view", context);
-					// set person ID and authentication type
-					BaseObject stsObj = userDoc.newObject("XWiki.STSAuthClass",
-							context);
-					stsObj.set("nameid", person_ID, context);
-					stsObj.set("authtype", authType, context);
-					context.getWiki().saveDocument(userDoc, context);
+					rememberUser(cfg, stsAuthClassIdField, person_ID,
+							validFullUserName);
+					profiles.markSynced(validFullUserName, claimHash);
 					log.info("New user " + validFullUserName
 							+ " has been successfully created. Nameid: "
 							+ person_ID + " authtype: " + authType);
 
+				} else if (cfg.profileSyncAsync) {
+					// login doesn't wait for the profile update
+					getAsyncProfileSync(cfg, profiles).submit(
+							validFullUserName, userData, authType, claimHash,
+							STSBackgroundContext.detach(context),
+							rememberUserLater(cfg, stsAuthClassIdField,
+									person_ID, validFullUserName));
+					log.info("Existing user " + validFullUserName
+							+ " was found. Profile update is queued. Nameid: "
+							+ person_ID + " authtype: " + authType);
 				} else {
 
 					XWikiDocument userDoc = context.getWiki().getDocument(
 							validFullUserName, context);
-					BaseObject userObj = userDoc.getObject("XWiki.XWikiUsers");
-					boolean updated = false;
-					for (Map.Entry<String, String> entry : userData.entrySet()) {
-						String field = entry.getKey();
-						String value = entry.getValue();
-						BaseProperty prop = (BaseProperty) userObj.get(field);
-						String currentValue = (prop == null || prop.getValue() == null) ? null
-								: prop.getValue().toString();
-						if (value != null && !value.equals(currentValue)) {
-							userObj.set(field, value, context);
-							updated = true;
-						}
-
-					}
-					BaseObject stsObj = userDoc.getObject("XWiki.STSAuthClass");
-					BaseProperty prop = (BaseProperty) stsObj.get("authtype");
-					String currenAuthType = prop.getValue().toString();
-					log.debug("currenAuthType: " + currenAuthType);
-					if (!authType.equals(currenAuthType)) {
-						stsObj.set("authtype", authType, context);
-						updated = true;
-					}
-					if (updated) {
-						context.getWiki().saveDocument(userDoc, context);
+					if (profiles.update(userDoc, userData, authType,
+							claimHash, context)) {
+						STSProfileSynchronizer.save(userDoc, context);
+						// save event removed the user from the cache
+						rememberUser(cfg, stsAuthClassIdField, person_ID,
+								validFullUserName);
 						log.info("Existing user " + validFullUserName
 								+ " has been successfully updated. Nameid: "
 								+ person_ID + " authtype: " + authType);
@@ -447,30 +457,39 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 								+ validFullUserName
 								+ " was found. Properties were not changed. Nameid: "
 								+ person_ID + " authtype: " + authType);
+					profiles.markSynced(validFullUserName, claimHash);
 				}
 			} catch (Exception e) {
 				log.error("Failed to create user " + validFullUserName + "\n"
 						+ e);
 				errorCollector.addError(new Throwable(
 						"Failed to create user: ", e));
+				forgetReplay(replayId);
 				return false;
 			} finally {
 				context.setDatabase(database);
+				STSMetrics.GLOBAL.record(STSMetrics.Stage.PROVISION, start);
 			}
-
+		} finally {
+			if (provisioningLock != null)
+				provisioningLock.unlock();
 		}
 
 		log.debug("Setting authentication in session for user "
 				+ validFullUserName);
 		// mark that we have authenticated the user in the session
 		context.getRequest().getSession()
-				.setAttribute(props.getAuthField(context), validFullUserName);
+				.setAttribute(cfg.authField, validFullUserName);
+		context.getRequest().getSession()
+				.setAttribute(cfg.sessionUserAttribute,
+						new STSSessionUser(validFullUserName));
 
 		// need to redirect now
 		String sourceurl = (String) request.getSession().getAttribute(
 				"saml_url");
 
 		log.debug("Redirecting after valid authentication to " + sourceurl);
+		start = System.nanoTime();
 		try {
 			context.getResponse().sendRedirect(sourceurl);
 			context.setFinished(true);
@@ -479,10 +498,374 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 			log.error("Failed to redirect after authentication\n" + e);
 			errorCollector.addError(new Throwable(
 					"Failed to redirect after authentication: ", e));
+		} finally {
+			STSMetrics.GLOBAL.record(STSMetrics.Stage.REDIRECT, start);
 		}
+		forgetReplay(replayId);
 		return false;
 	}
 
+	/**
+	 * isReplayError - true for errors of replay check, which is made here
+	 * and not by the validator
+	 */
+	private static boolean isReplayError(STSValidationError error) {
+		return error == STSValidationError.REPLAYED
+				|| error == STSValidationError.NOT_REPLAY_SAFE;
+	}
+
+	/**
+	 * findUser - Returns full name of the user document with given person ID.
+	 * Found users are cached, so repeated logins don't run the search query.
+	 * Search uses bound parameters, see readme.txt for recommended index.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @param stsAuthClassIdField String - STSAuthClass field with person ID
+	 * @param personId String - person ID
+	 * @param context XWikiContext - context of XWiki Engine
+	 * @return String - user document full name or null if user not found
+	 * @throws XWikiException - if search fails
+	 */
+	private String findUser(STSConfig cfg, String stsAuthClassIdField,
+			String personId, XWikiContext context) throws XWikiException {
+		STSUserCache users = getUserCache(cfg);
+		if (users != null) {
+			String cached = users.get(stsAuthClassIdField, personId);
+			if (cached != null) {
+				log.debug("User found in cache: " + cached + " (hit rate "
+						+ users.getHitRate() + ")");
+				return cached;
+			}
+		}
+		String fullName = STSUserProvisioner.search(stsAuthClassIdField,
+				personId, context);
+		if (fullName == null)
+			return null;
+		rememberUser(cfg, stsAuthClassIdField, personId, fullName);
+		return fullName;
+	}
+
+	/**
+	 * rememberUser - Puts user document into the user cache, if cache is on
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @param stsAuthClassIdField String - STSAuthClass field with person ID
+	 * @param personId String - person ID
+	 * @param fullName String - user document full name
+	 */
+	private void rememberUser(STSConfig cfg, String stsAuthClassIdField,
+			String personId, String fullName) {
+		STSUserCache users = getUserCache(cfg);
+		if (users != null && personId != null)
+			users.put(stsAuthClassIdField, personId, fullName);
+	}
+
+	/**
+	 * rememberUserLater - Returns task which puts user into the cache, run
+	 * after background save removed the user from it
+	 */
+	private Runnable rememberUserLater(final STSConfig cfg,
+			final String stsAuthClassIdField, final String personId,
+			final String fullName) {
+		return new Runnable() {
+			public void run() {
+				rememberUser(cfg, stsAuthClassIdField, personId, fullName);
+			}
+		};
+	}
+
+	/**
+	 * getUserCache - Returns cache of found users or null if it is switched
+	 * off with xwiki.authentication.sts.user_cache_size=0 or can't be
+	 * registered for document change events. Cache is created on the first
+	 * call.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @return STSUserCache
+	 */
+	STSUserCache getUserCache(STSConfig cfg) {
+		if (cfg.userCacheSize <= 0 || userCacheDisabled)
+			return null;
+		STSUserCache current = userCache;
+		if (current == null) {
+			synchronized (this) {
+				current = userCache;
+				if (current == null && !userCacheDisabled) {
+					current = new STSUserCache(cfg.userCacheSize,
+							cfg.userCacheTtl);
+					if (addListener(current)) {
+						userCache = current;
+					} else {
+						// stale cache could point to deleted user
+						log.warn("User cache is switched off, can't listen to document changes");
+						userCacheDisabled = true;
+						current = null;
+					}
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * getProfileSynchronizer - Returns profile synchronizer, created on the
+	 * first call. If it can't listen to document changes, only claim hash
+	 * stored in the user document is used.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @return STSProfileSynchronizer
+	 */
+	STSProfileSynchronizer getProfileSynchronizer(STSConfig cfg) {
+		STSProfileSynchronizer current = profileSync;
+		if (current == null) {
+			synchronized (this) {
+				current = profileSync;
+				if (current == null) {
+					current = new STSProfileSynchronizer(cfg.userCacheSize,
+							cfg.userCacheTtl);
+					current.setListening(cfg.userCacheSize > 0
+							&& addListener(current));
+					profileSync = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * getAsyncProfileSync - Returns background profile updater, created on
+	 * the first call. Number of threads and queue size are read only then.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @param profiles STSProfileSynchronizer - applies updates
+	 * @return STSAsyncProfileSync
+	 */
+	STSAsyncProfileSync getAsyncProfileSync(STSConfig cfg,
+			STSProfileSynchronizer profiles) {
+		STSAsyncProfileSync current = asyncProfileSync;
+		if (current == null) {
+			synchronized (this) {
+				current = asyncProfileSync;
+				if (current == null) {
+					current = new STSAsyncProfileSync(profiles,
+							cfg.profileSyncThreads, cfg.profileSyncQueue);
+					asyncProfileSync = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * addListener - Registers listener of document events
+	 * 
+	 * @param listener EventListener
+	 * @return boolean - true if listener was registered
+	 */
+	private static boolean addListener(EventListener listener) {
+		try {
+			Utils.getComponent(ObservationManager.class).addListener(listener);
+			return true;
+		} catch (Exception e) {
+			log.warn("Can't register " + listener.getName() + ": " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * getReplayCache - Returns cache of used assertions or null if replay
+	 * check is switched off with xwiki.authentication.sts.replay_cache=0.
+	 * Cache is created on the first call.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @return STSReplayCache
+	 */
+	STSReplayCache getReplayCache(STSConfig cfg) {
+		if (!cfg.replayCache)
+			return null;
+		STSReplayCache current = replayCache;
+		if (current == null) {
+			synchronized (this) {
+				current = replayCache;
+				if (current == null) {
+					current = createReplayCache(cfg.replayCacheClass);
+					replayCache = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * createReplayCache - Creates replay cache of the given class, or in-memory
+	 * cache if class isn't set or can't be created
+	 * 
+	 * @param className String - STSReplayCache implementation class name
+	 * @return STSReplayCache
+	 */
+	private static STSReplayCache createReplayCache(String className) {
+		if (className != null && className.trim().length() > 0) {
+			try {
+				return (STSReplayCache) Class.forName(className.trim())
+						.newInstance();
+			} catch (Exception e) {
+				log.error("Failed to create replay cache " + className
+						+ ", using in-memory cache: " + e);
+			}
+		}
+		return new STSInMemoryReplayCache();
+	}
+
+	/**
+	 * forgetReplay - Removes assertion from replay cache when login fails
+	 * after the assertion was marked as used, so user can try again
+	 * 
+	 * @param assertionId String - marked assertion ID or null
+	 */
+	private void forgetReplay(String assertionId) {
+		STSReplayCache current = replayCache;
+		if (assertionId != null && current != null)
+			current.forget(assertionId);
+	}
+
+	/**
+	 * getConfig - Returns configuration snapshot. It is read from xwiki.cfg
+	 * on the first call and after reloadConfiguration().
+	 * 
+	 * @param context XWikiContext - context to read configuration from
+	 * @return STSConfig
+	 */
+	STSConfig getConfig(XWikiContext context) {
+		STSConfig current = config;
+		if (current == null) {
+			synchronized (this) {
+				current = config;
+				if (current == null) {
+					current = new STSConfig(props, context);
+					STSLogRedactor.setMode(current.logPayload);
+					config = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * reloadConfiguration - Drops configuration snapshot, token validator
+	 * and loaded certificates, so they are built again on the next request.
+	 * Settings are read from xwiki.cfg as XWiki loaded it at startup, so
+	 * this picks up changed certificate files, not changed xwiki.cfg.
+	 * Replay cache is kept, so used tokens stay rejected. User cache is
+	 * cleared, its size and TTL are read only when it is created.
+	 */
+	public void reloadConfiguration() {
+		synchronized (this) {
+			config = null;
+			validator = null;
+		}
+		flushCaches();
+		props.reloadCertificate();
+		log.info("STS configuration will be reloaded on the next request");
+	}
+
+	/**
+	 * flushCaches - Clears cached users and hashes of synchronized profiles.
+	 * Replay cache is kept, so used tokens stay rejected.
+	 */
+	public void flushCaches() {
+		STSUserCache users = userCache;
+		if (users != null)
+			users.clear();
+		STSProfileSynchronizer profiles = profileSync;
+		if (profiles != null)
+			profiles.clear();
+	}
+
+	/**
+	 * reloadCertificate - Forgets loaded trusted certificates, so they are
+	 * read from files on the next request and token validator is rebuilt
+	 */
+	public void reloadCertificate() {
+		props.reloadCertificate();
+		log.info("STS certificates will be reloaded on the next request");
+	}
+
+	/*
+	 * Current state for STSMonitor, null values mean not created yet
+	 */
+
+	STSConfig getCurrentConfig() {
+		return config;
+	}
+
+	STSUserCache getCurrentUserCache() {
+		return userCache;
+	}
+
+	STSProfileSynchronizer getCurrentProfileSynchronizer() {
+		return profileSync;
+	}
+
+	STSAsyncProfileSync getCurrentAsyncProfileSync() {
+		return asyncProfileSync;
+	}
+
+	STSReplayCache getCurrentReplayCache() {
+		return replayCache;
+	}
+
+	static Props getProps() {
+		return props;
+	}
+
+	/**
+	 * getValidator - Returns token validator shared by all requests. It is
+	 * built from configuration on the first call and built again when
+	 * configuration is reloaded or trusted certificate files are changed.
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @return STSTokenValidator
+	 * @throws Exception - if validator can't be built from configuration
+	 */
+	STSTokenValidator getValidator(STSConfig cfg) throws Exception {
+		STSTrustStore trustStore = props.getTrustStore(cfg.trustStore,
+				cfg.trustStoreType, cfg.trustStorePassword, cfg.certFilename);
+		STSTokenValidator current = validator;
+		if (current == null || current.getTrustStore() != trustStore) {
+			synchronized (this) {
+				current = validator;
+				if (current == null || current.getTrustStore() != trustStore) {
+					current = buildValidator(cfg, trustStore);
+					validator = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * buildValidator - Creates token validator from configuration snapshot
+	 * 
+	 * @param cfg STSConfig - configuration snapshot
+	 * @param trustStore STSTrustStore - trusted certificates, can be null
+	 * @return STSTokenValidator
+	 * @throws Exception - if configuration is wrong
+	 */
+	private STSTokenValidator buildValidator(STSConfig cfg,
+			STSTrustStore trustStore) throws Exception {
+		log.debug("cfg.issuer " + cfg.issuer);
+		if (cfg.parserPoolSize > 0)
+			STSParserPool.setMaxPoolSize(cfg.parserPoolSize);
+		// If time control is set, use time validation
+		STSTokenValidator built = new STSTokenValidator(cfg.subjectDNs,
+				cfg.audienceUris, cfg.issuer, cfg.issuerDN, cfg.entityId,
+				trustStore, cfg.sendTime, cfg.getMaxClockSkew(),
+				cfg.collectAllErrors);
+		// with replay check the same token never reaches validate() twice
+		built.setSignatureCacheEnabled(!cfg.replayCache);
+		return built;
+	}
+
     /**
      * checkAuth - Checks authentification session in cookies. If there is data about current user
      * returns it. If there is not an authentification data - then method is trying to login
@@ -495,32 +878,23 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	 */
 	@Override
 	public XWikiUser checkAuth(XWikiContext context) throws XWikiException {
-		log.trace("checkAuth(context)");
-		try {
-			XWikiRequest request = context.getRequest();
-			log.trace("context================\n" + context);
-			log.trace("request headers============");
-			Enumeration<String> headerNames = request.getHeaderNames();
-			while (headerNames.hasMoreElements()) {
-				String headerName = headerNames.nextElement();
-				log.trace(headerName + "=" + request.getHeader(headerName));
-			}
-			Enumeration<String> en = request.getParameterNames();
-			log.trace("request parameters=============");
-			while (en.hasMoreElements()) {
-				String paramName = en.nextElement();
-				String paramValue = request.getParameter(paramName);
-				log.trace(paramName + "=" + URLEncoder.encode(paramValue));
-			}
-		} catch (Exception e) {
-			log.error("Got error during printing request parameters: " + e);
-			errorCollector.addError(new Throwable(
-					"Got error during printing request parameters: ", e));
+		if (log.isTraceEnabled()) {
+			log.trace("checkAuth(context)");
+			traceRequest(context);
+		}
+		STSConfig cfg = getConfig(context);
+		HttpSession session = context.getRequest().getSession();
+
+		// fast path for already authenticated users
+		Object sessionUser = session.getAttribute(cfg.sessionUserAttribute);
+		if (sessionUser instanceof STSSessionUser) {
+			if (!"logout".equals(context.getAction()))
+				return ((STSSessionUser) sessionUser).get(context);
+			session.removeAttribute(cfg.sessionUserAttribute);
 		}
 
 		// check in the session if the user is already authenticated
-		String stsUserName = (String) context.getRequest().getSession()
-				.getAttribute(props.getAuthField(context));
+		String stsUserName = (String) session.getAttribute(cfg.authField);
 		if (stsUserName == null) {
 			// check standard authentication
 			if (context.getRequest().getCookie("username") != null
@@ -536,13 +910,12 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 			if (checkSTSResponse(context))
 				return null;
 		} else {
-			log.debug("Found authentication of user " + stsUserName);
-			log.info(errorCollector.listErrors());
-			if (context.isMainWiki()) {
-				return new XWikiUser(stsUserName);
-			} else {
-				return new XWikiUser(context.getMainXWiki() + ":" + stsUserName);
-			}
+			if (log.isDebugEnabled())
+				log.debug("Found authentication of user " + stsUserName);
+			STSSessionUser user = new STSSessionUser(stsUserName);
+			if (!"logout".equals(context.getAction()))
+				session.setAttribute(cfg.sessionUserAttribute, user);
+			return user.get(context);
 		}
 		return null;
 	}
@@ -556,8 +929,10 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	@Override
 	public XWikiUser checkAuth(String username, String password,
 			String rememberme, XWikiContext context) throws XWikiException {
-		log.trace("checkAuth(): " + username + ", " + password + ", "
-				+ rememberme);
+		if (log.isTraceEnabled())
+			log.trace("checkAuth(): " + username + ", "
+					+ STSLogRedactor.parameter("password", password) + ", "
+					+ rememberme);
 		String auth = getAuthFieldValue(context);
 		if ((auth == null) || "".equals(auth)) {
 			return super.checkAuth(context);
@@ -566,6 +941,41 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 		}
 	}
 
+	/**
+	 * traceRequest(XWikiContext context) - writes request headers and
+	 * parameters to the trace log, secrets are redacted. Should be called
+	 * only if trace is enabled.
+	 *
+	 * @param context XWikiContext - context of XWiki Engine
+	 */
+	private static void traceRequest(XWikiContext context) {
+		try {
+			XWikiRequest request = context.getRequest();
+			log.trace("context================\n" + context);
+			log.trace("request headers============");
+			Enumeration<String> headerNames = request.getHeaderNames();
+			while (headerNames.hasMoreElements()) {
+				String headerName = headerNames.nextElement();
+				log.trace(headerName
+						+ "="
+						+ STSLogRedactor.parameter(headerName,
+								request.getHeader(headerName)));
+			}
+			Enumeration<String> en = request.getParameterNames();
+			log.trace("request parameters=============");
+			while (en.hasMoreElements()) {
+				String paramName = en.nextElement();
+				String paramValue = STSLogRedactor.parameter(paramName,
+						request.getParameter(paramName));
+				log.trace(paramName + "="
+						+ (paramValue == null ? null : URLEncoder
+								.encode(paramValue)));
+			}
+		} catch (Exception e) {
+			log.error("Got error during printing request parameters: " + e);
+		}
+	}
+
     /**
      * getter to get authField (value) from XWikiContext
      * 
@@ -576,8 +986,9 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
 	 */
 	private String getAuthFieldValue(XWikiContext context) {
 		String val = (String) context.getRequest().getSession(true)
-				.getAttribute(props.getAuthField(context));
-		log.trace("getAuthFieldValue(): " + val);
+				.getAttribute(getConfig(context).authField);
+		if (log.isTraceEnabled())
+			log.trace("getAuthFieldValue(): " + val);
 		return val;
 	}
 	
@@ -586,93 +997,40 @@ public class XWikiSTSAuthenticator extends XWikiAuthServiceImpl {
      * Get Extended Information from context according to data parameter
      * 
      * @param data Map - data acccording which - will be extracted extended information
-     * @param context XWikiContext - context to get data from
+     * @param cfg STSConfig - configuration snapshot with field mapping
      * @return mapped information in format Map<String, String> 
 	 * @see com.xpn.xwiki.user.impl.xwiki.AppServerTrustedAuthServiceImpl#checkAuth(com.xpn.xwiki.XWikiContext)
 	 */
-	private Map<String, String> getExtendedInformation(Map data,
-			XWikiContext context) {
+	private Map<String, String> getExtendedInformation(
+			Map<String, String> data, STSConfig cfg) {
 		log.trace("ExtendedInformation()");
-		Map<String, String> extInfos = new HashMap<String, String>();
-		for (Map.Entry<String, String> entry : getFieldMapping(context)
-				.entrySet()) {
-			String dataValue = (String) data.get(entry.getKey());
-			log.trace(" STS:" + entry.getKey() + ", value:" + dataValue
-					+ ", xwiki field:" + entry.getValue());
-			if (dataValue != null) {
-				extInfos.put(entry.getValue(), dataValue);
-			}
-		}
-		return extInfos;
-	}
-
-	/**
-	 * @param context
-	 *            the XWiki context.
-	 * @return the fields to use to generate the xwiki user name
-	 */
-	private String[] getXWikiUsernameRule(XWikiContext context) {
-		String userFields = props.getUsernameRule(context);
-		log.trace("XWikiUsernameRule(): " + userFields);
-		return userFields.split(",");
+		return cfg.fieldMapping.apply(data);
 	}
 
     /**
      * generateXWikiUsername(Map userData, XWikiContext context)
      * generate username according to XWikiContext and userData fields
      * @param userData Map - data acccording which - will be extracted extended information
-     * @param context XWikiContext - context to get data from
+     * @param cfg STSConfig - configuration snapshot with user name rule
      * @return userName String
 	 * @see com.xpn.xwiki.user.impl.xwiki.AppServerTrustedAuthServiceImpl#checkAuth(com.xpn.xwiki.XWikiContext)
 	 */
-	private String generateXWikiUsername(Map userData, XWikiContext context) {
+	private String generateXWikiUsername(Map<String, String> userData,
+			STSConfig cfg) {
 		log.trace("generateXWikiUsername()");
-		String[] userFields = getXWikiUsernameRule(context);
-		StringBuilder userName = new StringBuilder("");
-		for (String field : userFields) {
-			String value = (String) userData.get(field);
-			if (value != null && value.length() > 0) {
-				userName.append(value);
-			}
-		}
-		log.debug("XWikiUsername: " + userName);
-		return userName.toString();
-	}
-
-	/**
-	 * @param context
-	 *            the XWiki context.
-	 * @return the mapping between HTTP header fields names and XWiki user
-	 *         profile fields names.
-	 */
-	private static Map<String, String> getFieldMapping(XWikiContext context) {
-		log.trace("getFieldMapping()");
-		if (userMappings == null) {
-			userMappings = new HashMap<String, String>();
-
-			String fieldMapping = props.getFieldMapping(context);
-			String[] fields = fieldMapping.split(",");
-
-			for (int j = 0; j < fields.length; j++) {
-				String[] field = fields[j].split("=");
-				if (2 == field.length) {
-					String xwikiattr = field[0].trim();
-					String headerattr = field[1].trim();
-					userMappings.put(headerattr, xwikiattr);
-				} else {
-					log.error("Error parsing STS fields_mapping attribute in xwiki.cfg: "
-							+ fields[j]);
-				}
-			}
-		}
-		return userMappings;
+		return STSUserProvisioner.generateUserName(userData, cfg.usernameRule);
 	}
 
 	/**
-	 * Put listed errors into log
+	 * Put recent login failures and stage latencies into log
 	 */
 	public void listErrors() {
-		log.info(errorCollector.listErrors());
-		errorCollector.clearErrorList();
+		StringBuilder errors = new StringBuilder(
+				"\n\n***** RECENT STS LOGIN FAILURES *****\n");
+		STSRecentErrors.RECENT.appendTo(errors);
+		errors.append("***** STS LOGIN LATENCY *****\n");
+		errors.append(STSMetrics.GLOBAL);
+		errors.append("*************************************\n");
+		log.info(errors);
 	}
 }
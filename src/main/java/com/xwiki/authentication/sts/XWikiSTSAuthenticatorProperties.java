@@ -155,4 +155,100 @@ class XWikiSTSAuthenticatorProperties {
 		return val;
 	}
 
-}
\ No newline at end of file
+	String getParserPoolSize(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.parser_pool_size");
+		log.trace("getParserPoolSize(): " + val);
+		return val;
+	}
+
+	String getReplayCache(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.replay_cache");
+		log.trace("getReplayCache(): " + val);
+		return val;
+	}
+
+	String getReplayCacheClass(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.replay_cache_class");
+		log.trace("getReplayCacheClass(): " + val);
+		return val;
+	}
+
+	String getLogPayload(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.log_payload");
+		log.trace("getLogPayload(): " + val);
+		return val;
+	}
+
+	String getCollectAllErrors(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.collect_all_errors");
+		log.trace("getCollectAllErrors(): " + val);
+		return val;
+	}
+
+	String getCertFilename(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.cert_filename");
+		log.trace("getCertFilename(): " + val);
+		return val;
+	}
+
+	String getTrustStore(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.trust_store");
+		log.trace("getTrustStore(): " + val);
+		return val;
+	}
+
+	String getTrustStoreType(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.trust_store_type");
+		log.trace("getTrustStoreType(): " + val);
+		return val;
+	}
+
+	String getTrustStorePassword(XWikiContext context) {
+		return context.getWiki().Param(
+				"xwiki.authentication.sts.trust_store_password");
+	}
+
+	String getUserCacheSize(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.user_cache_size");
+		log.trace("getUserCacheSize(): " + val);
+		return val;
+	}
+
+	String getUserCacheTtl(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.user_cache_ttl");
+		log.trace("getUserCacheTtl(): " + val);
+		return val;
+	}
+
+	String getProfileSyncAsync(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.profile_sync_async");
+		log.trace("getProfileSyncAsync(): " + val);
+		return val;
+	}
+
+	String getProfileSyncThreads(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.profile_sync_threads");
+		log.trace("getProfileSyncThreads(): " + val);
+		return val;
+	}
+
+	String getProfileSyncQueue(XWikiContext context) {
+		String val = context.getWiki().Param(
+				"xwiki.authentication.sts.profile_sync_queue");
+		log.trace("getProfileSyncQueue(): " + val);
+		return val;
+	}
+
+}
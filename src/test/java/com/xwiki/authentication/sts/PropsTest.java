@@ -4,10 +4,12 @@ import static org.junit.Assert.*;
 
 import static org.mockito.Mockito.*;
 
+import java.io.File;
 import java.security.cert.X509Certificate;
 
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -41,6 +43,23 @@ public class PropsTest {
 		assertEquals(true, cer instanceof X509Certificate);
 	}
 
+	@Test
+	public void testCachedGetCertificate() {
+		when(wiki.Param("xwiki.authentication.sts.cert_filename")).thenReturn("VISS.LVP.STS.cer");
+		cer = props.getCertificate(context);
+		assertSame(cer, props.getCertificate(context));
+		props.reloadCertificate();
+		X509Certificate reloaded = props.getCertificate(context);
+		assertNotSame(cer, reloaded);
+		assertEquals(cer, reloaded);
+	}
+
+	@Test
+	public void testNullFilenameGetCertificate() {
+		cer = props.getCertificate(context);
+		assertNull(cer);
+	}
+
 	@Test
 	public void testNotFoundGetCertificate() {
 		when(wiki.Param("xwiki.authentication.sts.cert_filename")).thenReturn("just.some.certificate.which is not there");
@@ -55,4 +74,60 @@ public class PropsTest {
 		assertEquals(false, cer instanceof X509Certificate);
 	}
 
+	@Test
+	public void testNegMissingTrustStoreTrustsNothing() {
+		// cert_filename is not used as fallback for broken trust store
+		STSTrustStore store = props.getTrustStore("no.such.trust.store.jks",
+				null, null, "VISS.LVP.STS.cer");
+		assertNotNull(store);
+		assertTrue(store.isEmpty());
+	}
+
+	@Test
+	public void testNegBrokenTrustStoreKeepsLastGood() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"sts-props-" + System.nanoTime());
+		dir.mkdirs();
+		try {
+			File file = new File(dir, "sts.cer");
+			FileUtils.copyFile(new File("VISS.LVP.STS.cer"), file);
+			STSTrustStore good = props.getTrustStore(dir.getPath(), null,
+					null, null);
+			assertEquals(1, good.size());
+
+			FileUtils.writeStringToFile(file, "not a cert");
+			props.reloadCertificate();
+			assertSame(good, props.getTrustStore(dir.getPath(), null, null,
+					null));
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testNegMissingCertificateTrustsNothing() {
+		STSTrustStore store = props.getTrustStore(null, null, null,
+				"no.such.cer");
+		assertNotNull(store);
+		assertTrue(store.isEmpty());
+	}
+
+	@Test
+	public void testNegBrokenCertificateKeepsLastGood() throws Exception {
+		File file = File.createTempFile("sts-props", ".cer");
+		try {
+			FileUtils.copyFile(new File("VISS.LVP.STS.cer"), file);
+			STSTrustStore good = props.getTrustStore(null, null, null,
+					file.getPath());
+			assertEquals(1, good.size());
+
+			FileUtils.writeStringToFile(file, "not a cert");
+			props.reloadCertificate();
+			assertSame(good, props.getTrustStore(null, null, null,
+					file.getPath()));
+		} finally {
+			file.delete();
+		}
+	}
+
 }
@@ -0,0 +1,153 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+public class STSAsyncProfileSyncTest {
+	STSProfileSynchronizer profiles;
+	STSAsyncProfileSync async;
+	XWikiContext context;
+	XWiki wiki;
+	XWikiDocument doc;
+	Map<String, String> userData;
+
+	@Before
+	public void setUp() throws Exception {
+		profiles = mock(STSProfileSynchronizer.class);
+		async = new STSAsyncProfileSync(profiles, 1, 10);
+		context = mock(XWikiContext.class);
+		wiki = mock(XWiki.class);
+		doc = mock(XWikiDocument.class);
+		when(context.getWiki()).thenReturn(wiki);
+		when(wiki.getDocument(anyString(), (XWikiContext) anyObject()))
+				.thenReturn(doc);
+		userData = new HashMap<String, String>();
+		userData.put("first_name", "Janis");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		async.shutdown();
+	}
+
+	@Test
+	public void testPosUpdateInBackground() throws Exception {
+		when(profiles.update(doc, userData, "smartcard", "h1", context))
+				.thenReturn(true);
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h1",
+				context, null);
+		async.shutdown();
+		assertTrue(async.awaitTermination(5000));
+		verify(wiki).saveDocument(doc, STSProfileSynchronizer.SAVE_COMMENT,
+				true, context);
+		verify(profiles).markSynced("XWiki.JanisBerzins", "h1");
+		assertEquals(1, async.getCompleted());
+		assertEquals(0, async.getFailed());
+	}
+
+	@Test
+	public void testPosOnSavedCalled() throws Exception {
+		when(profiles.update(doc, userData, "smartcard", "h1", context))
+				.thenReturn(true);
+		Runnable onSaved = mock(Runnable.class);
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h1",
+				context, onSaved);
+		async.shutdown();
+		assertTrue(async.awaitTermination(5000));
+		verify(onSaved).run();
+	}
+
+	@Test
+	public void testPosSameUserNotConcurrent() throws Exception {
+		// two threads, update of the running user waits for its worker
+		async.shutdown();
+		async = new STSAsyncProfileSync(profiles, 2, 10);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		when(wiki.getDocument(eq("XWiki.JanisBerzins"),
+				(XWikiContext) anyObject())).thenAnswer(
+				new org.mockito.stubbing.Answer<XWikiDocument>() {
+					public XWikiDocument answer(
+							org.mockito.invocation.InvocationOnMock invocation)
+							throws Throwable {
+						maxActive.set(Math.max(maxActive.get(),
+								active.incrementAndGet()));
+						started.countDown();
+						release.await();
+						active.decrementAndGet();
+						return doc;
+					}
+				});
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h1",
+				context, null);
+		started.await();
+		// first update is running, not pending, so this one isn't coalesced
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h2",
+				context, null);
+		Thread.sleep(200);
+		release.countDown();
+		async.shutdown();
+		assertTrue(async.awaitTermination(5000));
+		assertEquals(1, maxActive.get());
+		InOrder order = inOrder(profiles);
+		order.verify(profiles).markSynced("XWiki.JanisBerzins", "h1");
+		order.verify(profiles).markSynced("XWiki.JanisBerzins", "h2");
+		assertEquals(2, async.getCompleted());
+	}
+
+	@Test
+	public void testPosShutdownAll() throws Exception {
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h1",
+				context, null);
+		assertTrue(STSAsyncProfileSync.shutdownAll(5000));
+		assertTrue(async.isShutdown());
+		verify(profiles).markSynced("XWiki.JanisBerzins", "h1");
+	}
+
+	@Test
+	public void testPosCoalesced() throws Exception {
+		// block the only thread, so next updates stay pending
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(wiki.getDocument(eq("XWiki.Blocker"), (XWikiContext) anyObject()))
+				.thenAnswer(new org.mockito.stubbing.Answer<XWikiDocument>() {
+					public XWikiDocument answer(
+							org.mockito.invocation.InvocationOnMock invocation)
+							throws Throwable {
+						started.countDown();
+						release.await();
+						return doc;
+					}
+				});
+		async.submit("XWiki.Blocker", userData, "smartcard", "h0", context,
+				null);
+		started.await();
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h1",
+				context, null);
+		async.submit("XWiki.JanisBerzins", userData, "smartcard", "h2",
+				context, null);
+		assertEquals(1, async.getCoalesced());
+		release.countDown();
+		async.shutdown();
+		assertTrue(async.awaitTermination(5000));
+		verify(profiles).markSynced("XWiki.JanisBerzins", "h2");
+		verify(profiles, never()).markSynced("XWiki.JanisBerzins", "h1");
+		assertEquals(2, async.getCompleted());
+	}
+}
@@ -0,0 +1,184 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+public class STSBulkImporterTest {
+	XWiki wiki;
+	XWikiContext context;
+	File journal;
+
+	@Before
+	public void setUp() throws Exception {
+		wiki = mock(XWiki.class);
+		context = mock(XWikiContext.class);
+		XWikiDocument doc = mock(XWikiDocument.class);
+		BaseObject obj = mock(BaseObject.class);
+		when(context.getWiki()).thenReturn(wiki);
+		when(context.clone()).thenReturn(context);
+		when(wiki.Param("xwiki.authentication.sts.id_field")).thenReturn(
+				"privatepersonalidentifier");
+		when(wiki.Param("xwiki.authentication.sts.stsauthclass_id_field"))
+				.thenReturn("nameid");
+		when(wiki.Param("xwiki.authentication.sts.field_mapping")).thenReturn(
+				"first_name=givenname,last_name=surname");
+		when(wiki.Param("xwiki.authentication.sts.xwiki_username_rule"))
+				.thenReturn("first_name,last_name");
+		when(wiki.searchDocuments(anyString(), anyInt(), anyInt(),
+				(List<?>) anyObject(), (XWikiContext) anyObject())).thenReturn(
+				new ArrayList<String>());
+		when(wiki.getUniquePageName(eq("XWiki"), anyString(),
+				(XWikiContext) anyObject())).thenReturn("JanisBerzins");
+		when(wiki.getDocument(anyString(), (XWikiContext) anyObject()))
+				.thenReturn(doc);
+		when(doc.getObject(anyString())).thenReturn(obj);
+		when(doc.getObject(anyString(), anyInt())).thenReturn(obj);
+		when(doc.newObject(anyString(), (XWikiContext) anyObject()))
+				.thenReturn(obj);
+		journal = File.createTempFile("sts-import", ".journal");
+		journal.delete();
+	}
+
+	@After
+	public void tearDown() {
+		journal.delete();
+	}
+
+	@Test
+	public void testPosParseCsv() throws Exception {
+		List<Map<String, String>> records = STSBulkImporter
+				.readRecords(new StringReader(
+						"privatepersonalidentifier,givenname,surname\r\n"
+								+ "12345612345,Janis,\"Berzins, \"\"Jr\"\"\"\r\n"
+								+ "\n" + "23456723456,Anna,Liepa"));
+		assertEquals(2, records.size());
+		assertEquals("12345612345",
+				records.get(0).get("privatepersonalidentifier"));
+		assertEquals("Berzins, \"Jr\"", records.get(0).get("surname"));
+		assertEquals("Anna", records.get(1).get("givenname"));
+	}
+
+	@Test
+	public void testPosParseJsonLines() throws Exception {
+		List<Map<String, String>> records = STSBulkImporter
+				.readRecords(new StringReader(
+						"{\"privatepersonalidentifier\": \"12345612345\", \"givenname\": \"J\\u0101nis\"}\n"
+								+ "\n"
+								+ "{\"privatepersonalidentifier\": 23456723456, \"surname\": null}\n"));
+		assertEquals(2, records.size());
+		assertEquals("J\u0101nis", records.get(0).get("givenname"));
+		assertEquals("23456723456",
+				records.get(1).get("privatepersonalidentifier"));
+		assertFalse(records.get(1).containsKey("surname"));
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testNegBrokenJson() throws Exception {
+		STSBulkImporter.readRecords(new StringReader("{\"a\": \"b\""));
+	}
+
+	@Test
+	public void testPosParseCsvQuotedNewlineAndBom() throws Exception {
+		List<Map<String, String>> records = STSBulkImporter
+				.readRecords(new StringReader(
+						"\uFEFFprivatepersonalidentifier,givenname,surname\r\n"
+								+ "12345612345,\"Janis\r\nPeteris\",Berzins\r\n"
+								+ "23456723456,Anna,\"\""));
+		assertEquals(2, records.size());
+		assertEquals("12345612345",
+				records.get(0).get("privatepersonalidentifier"));
+		assertEquals("Janis\r\nPeteris", records.get(0).get("givenname"));
+		assertEquals("Berzins", records.get(0).get("surname"));
+		assertFalse(records.get(1).containsKey("surname"));
+	}
+
+	@Test
+	public void testPosParseJsonLinesWithBom() throws Exception {
+		List<Map<String, String>> records = STSBulkImporter
+				.readRecords(new StringReader(
+						"\uFEFF{\"privatepersonalidentifier\": \"12345612345\"}\n"));
+		assertEquals(1, records.size());
+		assertEquals("12345612345",
+				records.get(0).get("privatepersonalidentifier"));
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testNegDuplicateCsvColumn() throws Exception {
+		STSBulkImporter.readRecords(new StringReader(
+				"privatepersonalidentifier,givenname,privatepersonalidentifier\n"
+						+ "12345612345,Janis,23456723456"));
+	}
+
+	@Test
+	public void testNegDuplicateJsonKey() throws Exception {
+		try {
+			STSBulkImporter.readRecords(new StringReader(
+					"{\"privatepersonalidentifier\": \"12345612345\"}\n"
+							+ "{\"privatepersonalidentifier\": \"12345612345\", \"privatepersonalidentifier\": null}"));
+			fail();
+		} catch (java.io.IOException e) {
+			assertTrue(e.getMessage().startsWith("Line 2: Duplicate key"));
+		}
+	}
+
+	@Test
+	public void testPosImportAndResume() throws Exception {
+		List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+		records.add(record("12345612345", "Janis", "Berzins"));
+		records.add(record("23456723456", "Anna", "Liepa"));
+		records.add(record(null, "No", "Id"));
+
+		STSBulkImporter importer = new STSBulkImporter(context);
+		importer.setWorkers(2);
+		importer.setBatchSize(1);
+		importer.setJournal(journal);
+		STSBulkImporter.Result result = importer.run(records);
+		assertEquals(2, result.getCreated());
+		assertEquals(1, result.getFailed());
+		verify(wiki, times(2)).createUser(anyString(), anyMap(),
+				eq("XWiki.XWikiUsers"), anyString(), eq("edit"),
+				(XWikiContext) anyObject());
+		String journaled = FileUtils.readFileToString(journal);
+		assertTrue(journaled.contains("123456-12345\n"));
+		assertTrue(journaled.contains("234567-23456\n"));
+		// workers don't use request of the importing thread
+		verify(context, atLeastOnce()).remove("request");
+
+		// second run skips journaled persons
+		importer = new STSBulkImporter(context);
+		importer.setJournal(journal);
+		result = importer.run(records);
+		assertEquals(0, result.getCreated());
+		assertEquals(2, result.getSkipped());
+		verify(wiki, times(2)).createUser(anyString(), anyMap(),
+				anyString(), anyString(), anyString(),
+				(XWikiContext) anyObject());
+	}
+
+	private static Map<String, String> record(String id, String givenName,
+			String surname) {
+		Map<String, String> record = new HashMap<String, String>();
+		if (id != null)
+			record.put("privatepersonalidentifier", id);
+		record.put("givenname", givenName);
+		record.put("surname", surname);
+		return record;
+	}
+}
@@ -0,0 +1,72 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+
+public class STSConfigTest {
+	XWiki wiki;
+	XWikiContext context;
+	XWikiSTSAuthenticatorProperties props;
+
+	@Before
+	public void setUp() {
+		wiki = mock(XWiki.class);
+		context = mock(XWikiContext.class);
+		when(context.getWiki()).thenReturn(wiki);
+		props = new XWikiSTSAuthenticatorProperties();
+	}
+
+	@Test
+	public void testPosTypedValues() throws Exception {
+		when(wiki.Param("xwiki.authentication.sts.wctx")).thenReturn("1");
+		when(wiki.Param("xwiki.authentication.sts.wct")).thenReturn("1");
+		when(wiki.Param("xwiki.authentication.sts.wfresh")).thenReturn("2");
+		when(wiki.Param("xwiki.authentication.sts.audience_uris")).thenReturn(
+				"https://pakalpojumi.carnikava.lv/prod");
+		when(wiki.Param("xwiki.authentication.sts.field_mapping")).thenReturn(
+				"first_name=givenname, last_name=surname");
+		when(wiki.Param("xwiki.authentication.sts.xwiki_username_rule"))
+				.thenReturn("first_name,last_name");
+		STSConfig cfg = new STSConfig(props, context);
+		assertTrue(cfg.sendContext);
+		assertTrue(cfg.sendTime);
+		assertEquals(2, cfg.wfresh);
+		assertEquals(120000, cfg.getMaxClockSkew());
+		assertEquals(1120000, cfg.getReplayExpiration(1000000));
+		assertEquals(new URI("https://pakalpojumi.carnikava.lv/prod"),
+				cfg.audienceUris.get(0));
+		assertEquals(2, cfg.fieldMapping.size());
+		assertEquals("last_name", cfg.fieldMapping.getXWikiField(1));
+		assertEquals(2, cfg.usernameRule.size());
+		assertTrue(cfg.replayCache);
+	}
+
+	@Test
+	public void testNegWrongValues() {
+		when(wiki.Param("xwiki.authentication.sts.wfresh")).thenReturn("x");
+		when(wiki.Param("xwiki.authentication.sts.audience_uris")).thenReturn(
+				"not an uri");
+		when(wiki.Param("xwiki.authentication.sts.replay_cache")).thenReturn(
+				"0");
+		STSConfig cfg = new STSConfig(props, context);
+		assertFalse(cfg.sendContext);
+		assertEquals(0, cfg.wfresh);
+		assertEquals(0, cfg.getMaxClockSkew());
+		assertTrue(cfg.audienceUris.isEmpty());
+		assertFalse(cfg.replayCache);
+	}
+
+	@Test
+	public void testPosReadOnce() {
+		new STSConfig(props, context);
+		verify(wiki, times(1)).Param("xwiki.authentication.sts.auth_field");
+	}
+}
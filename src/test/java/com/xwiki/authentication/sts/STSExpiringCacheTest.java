@@ -0,0 +1,75 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class STSExpiringCacheTest {
+	STSExpiringCache<String, String> cache;
+
+	@Before
+	public void setUp() {
+		cache = new STSExpiringCache<String, String>(2);
+	}
+
+	@Test
+	public void testPosGet() {
+		cache.put("a", "1", System.currentTimeMillis() + 60000);
+		assertEquals("1", cache.get("a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+
+	@Test
+	public void testNegExpired() {
+		cache.put("a", "1", System.currentTimeMillis() - 1);
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testNegEvictedWhenFull() {
+		long expires = System.currentTimeMillis() + 60000;
+		cache.put("a", "1", expires);
+		cache.put("b", "2", expires);
+		// "a" becomes most recently used
+		cache.get("a");
+		cache.put("c", "3", expires);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("3", cache.get("c"));
+	}
+
+	@Test
+	public void testPosRemoveAndClear() {
+		long expires = System.currentTimeMillis() + 60000;
+		cache.put("a", "1", expires);
+		cache.put("b", "2", expires);
+		assertEquals("1", cache.remove("a"));
+		assertNull(cache.get("a"));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testPosRemoveIndexedValue() {
+		cache = new STSExpiringCache<String, String>(2, true);
+		long expires = System.currentTimeMillis() + 60000;
+		cache.put("a", "1", expires);
+		cache.put("b", "1", expires);
+		assertEquals(1, cache.indexedValueCount());
+		// "a" is replaced, "b" is evicted
+		cache.put("a", "2", expires);
+		cache.put("c", "3", expires);
+		assertEquals(0, cache.removeValue("1"));
+		assertEquals(2, cache.indexedValueCount());
+		assertEquals(1, cache.removeValue("2"));
+		assertNull(cache.get("a"));
+		assertEquals("3", cache.get("c"));
+		cache.clear();
+		assertEquals(0, cache.indexedValueCount());
+	}
+}
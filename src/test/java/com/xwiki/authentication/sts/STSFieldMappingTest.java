@@ -0,0 +1,56 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class STSFieldMappingTest {
+	Map<String, String> attributes;
+
+	@Before
+	public void setUp() {
+		attributes = new HashMap<String, String>();
+		attributes.put("givenname", "janis");
+		attributes.put("surname", "BERZINS");
+		attributes.put("privatepersonalidentifier", "12345612345");
+	}
+
+	@Test
+	public void testPosApply() {
+		STSFieldMapping mapping = STSFieldMapping.compile(
+				"first_name=givenname,last_name=surname", null);
+		Map<String, String> userData = mapping.apply(attributes);
+		assertEquals(2, userData.size());
+		assertEquals("janis", userData.get("first_name"));
+		assertEquals("BERZINS", userData.get("last_name"));
+	}
+
+	@Test
+	public void testPosTitle() {
+		STSFieldMapping mapping = STSFieldMapping.compile(
+				"first_name=givenname,last_name=surname", "Title");
+		Map<String, String> userData = mapping.apply(attributes);
+		assertEquals("Janis", userData.get("first_name"));
+		assertEquals("Berzins", userData.get("last_name"));
+	}
+
+	@Test
+	public void testPosCapital() {
+		STSFieldMapping mapping = STSFieldMapping.compile(
+				"first_name=givenname", "CAPITAL");
+		assertEquals("JANIS", mapping.apply(attributes).get("first_name"));
+	}
+
+	@Test
+	public void testNegWrongEntries() {
+		STSFieldMapping mapping = STSFieldMapping.compile(
+				"first_name=givenname,wrong,email=mail", null);
+		assertEquals(2, mapping.size());
+		// missing attributes are not mapped
+		assertEquals(1, mapping.apply(attributes).size());
+	}
+}
@@ -0,0 +1,77 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class STSInMemoryReplayCacheTest {
+	STSInMemoryReplayCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new STSInMemoryReplayCache();
+	}
+
+	@Test
+	public void testPosFirstUse() {
+		long notOnOrAfter = System.currentTimeMillis() + 3600000;
+		assertFalse(cache.contains("_1"));
+		assertTrue(cache.markIfAbsent("_1", notOnOrAfter));
+		assertTrue(cache.contains("_1"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testNegReplay() {
+		long notOnOrAfter = System.currentTimeMillis() + 3600000;
+		assertTrue(cache.markIfAbsent("_1", notOnOrAfter));
+		assertFalse(cache.markIfAbsent("_1", notOnOrAfter));
+	}
+
+	@Test
+	public void testPosForget() {
+		long notOnOrAfter = System.currentTimeMillis() + 3600000;
+		assertTrue(cache.markIfAbsent("_1", notOnOrAfter));
+		cache.forget("_1");
+		assertFalse(cache.contains("_1"));
+		assertTrue(cache.markIfAbsent("_1", notOnOrAfter));
+	}
+
+	@Test
+	public void testPosExpiredTokenIsKeptMinRetention() {
+		// token without lifetime check is still remembered for a while
+		assertTrue(cache.markIfAbsent("_1", 0));
+		assertTrue(cache.contains("_1"));
+		assertFalse(cache.markIfAbsent("_1", 0));
+	}
+
+	@Test
+	public void testNegReplayWithinClockSkew() {
+		final long[] now = { System.currentTimeMillis() };
+		cache = new STSInMemoryReplayCache() {
+			@Override
+			long now() {
+				return now[0];
+			}
+		};
+		int skew = 10 * 60 * 1000;
+		long notOnOrAfter = now[0] + 60000;
+		long expiration = notOnOrAfter + skew;
+		assertTrue(cache.markIfAbsent("_1", expiration));
+		// validator still accepts the token after NotOnOrAfter
+		now[0] = notOnOrAfter + skew / 2;
+		assertTrue(cache.contains("_1"));
+		assertFalse(cache.markIfAbsent("_1", expiration));
+		now[0] = expiration + STSInMemoryReplayCache.DEFAULT_BUCKET_MILLIS;
+		assertFalse(cache.contains("_1"));
+	}
+
+	@Test
+	public void testPosClear() {
+		cache.markIfAbsent("_1", 0);
+		cache.markIfAbsent("_2", 0);
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,52 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class STSLatencyHistogramTest {
+
+	@Test
+	public void testPosBucketBounds() {
+		for (long value : new long[] { 0, 1, 31, 32, 33, 63, 64, 1000,
+				123456789L, STSLatencyHistogram.MAX_VALUE }) {
+			int index = STSLatencyHistogram.bucketIndex(value);
+			assertTrue(value <= STSLatencyHistogram.bucketUpperBound(index));
+			if (index > 0)
+				assertTrue(value > STSLatencyHistogram
+						.bucketUpperBound(index - 1));
+		}
+	}
+
+	@Test
+	public void testPosPercentiles() {
+		STSLatencyHistogram histogram = new STSLatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500, histogram.getMean(), 0.1);
+		assertEquals(500000, histogram.getPercentile(50), 500000 / 32);
+		assertEquals(990000, histogram.getPercentile(99), 990000 / 32);
+		assertEquals(1000000, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	@Test
+	public void testPosMetricsFailuresAndLogins() {
+		STSMetrics metrics = new STSMetrics();
+		metrics.failed(STSValidationError.SIGNATURE);
+		metrics.failed(STSValidationError.SIGNATURE);
+		metrics.login(false);
+		metrics.login(true);
+		metrics.record(STSMetrics.Stage.LOGIN, System.nanoTime());
+		assertEquals(2, metrics.getFailures(STSValidationError.SIGNATURE));
+		assertEquals(1, metrics.getSucceededLogins());
+		assertEquals(1, metrics.getFailedLogins());
+		assertEquals(1, metrics.getHistogram(STSMetrics.Stage.LOGIN)
+				.getCount());
+		assertTrue(metrics.toString().contains("SIGNATURE: 2"));
+	}
+}
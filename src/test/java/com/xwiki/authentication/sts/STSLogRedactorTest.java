@@ -0,0 +1,53 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class STSLogRedactorTest {
+	static final String TOKEN = "<t:RequestSecurityTokenResponse xmlns:t=\"http://schemas.xmlsoap.org/ws/2005/02/trust\">"
+			+ "<t:RequestedSecurityToken>secret</t:RequestedSecurityToken></t:RequestSecurityTokenResponse>";
+
+	@After
+	public void tearDown() {
+		STSLogRedactor.setMode(STSLogRedactor.Mode.NONE);
+	}
+
+	@Test
+	public void testPosRedactedByDefault() {
+		assertEquals(STSLogRedactor.Mode.NONE, STSLogRedactor.getMode());
+		String logged = STSLogRedactor.payload(TOKEN);
+		assertFalse(logged.contains("secret"));
+		assertEquals("[" + TOKEN.length() + " chars redacted]", logged);
+		assertEquals("null", STSLogRedactor.payload(null));
+	}
+
+	@Test
+	public void testPosTruncated() {
+		STSLogRedactor.setMode(STSLogRedactor.Mode.fromValue("Truncated"));
+		String logged = STSLogRedactor.payload(TOKEN);
+		assertTrue(logged.startsWith(TOKEN.substring(0,
+				STSLogRedactor.TRUNCATED_LENGTH)));
+		assertFalse(logged.contains("secret"));
+		assertEquals("short", STSLogRedactor.payload("short"));
+	}
+
+	@Test
+	public void testPosFull() {
+		STSLogRedactor.setMode(STSLogRedactor.Mode.fromValue("full"));
+		assertTrue(STSLogRedactor.isFull());
+		assertEquals(TOKEN, STSLogRedactor.payload(TOKEN));
+	}
+
+	@Test
+	public void testPosSecretParameters() {
+		assertFalse(STSLogRedactor.parameter("wresult", TOKEN).contains(
+				"secret"));
+		assertFalse(STSLogRedactor.parameter("Cookie", "JSESSIONID=secret")
+				.contains("secret"));
+		assertEquals("wsignin1.0", STSLogRedactor.parameter("wa", "wsignin1.0"));
+		assertEquals(STSLogRedactor.Mode.NONE,
+				STSLogRedactor.Mode.fromValue("wrong"));
+	}
+}
@@ -0,0 +1,82 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class STSMonitorTest {
+
+	@Test
+	public void testPosCountersAndOperations() {
+		XWikiSTSAuthenticator auth = mock(XWikiSTSAuthenticator.class);
+		STSMetrics metrics = new STSMetrics();
+		STSMonitor monitor = new STSMonitor(auth, metrics);
+		metrics.failed(STSValidationError.REPLAYED);
+		metrics.login(false);
+		metrics.login(true);
+		metrics.record(STSMetrics.Stage.SIGNATURE, System.nanoTime());
+
+		assertEquals(1, monitor.getSucceededLogins());
+		assertEquals(1, monitor.getFailedLogins());
+		assertEquals(1, monitor.getReplayedTokens());
+		assertEquals(Long.valueOf(1),
+				monitor.getFailuresByReason().get("REPLAYED"));
+		assertEquals(Long.valueOf(1), monitor.getStageCounts()
+				.get("SIGNATURE"));
+		assertEquals(0, monitor.getUserCacheSize());
+		assertEquals(0, monitor.getReplayCacheSize());
+		assertNull(monitor.getConfigurationLoadedAt());
+
+		monitor.flushCaches();
+		verify(auth).flushCaches();
+		monitor.resetMetrics();
+		assertEquals(0, monitor.getSucceededLogins());
+	}
+
+	@Test
+	public void testPosRegister() throws Exception {
+		XWikiSTSAuthenticator auth = mock(XWikiSTSAuthenticator.class);
+		STSMonitor.register(auth);
+		// second authenticator replaces the first one
+		STSMonitor.register(auth);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = STSMonitor.getObjectName();
+		assertTrue(server.isRegistered(name));
+		assertNotNull(server.getAttribute(name, "FailuresByReason"));
+		server.invoke(name, "flushCaches", null, null);
+		verify(auth).flushCaches();
+		STSMonitor.unregister();
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testPosWebappName() throws Exception {
+		STSMonitor.setWebapp("/xwiki");
+		try {
+			assertEquals("\"/xwiki\"", STSMonitor.getObjectName()
+					.getKeyProperty("webapp"));
+			STSMonitor.register(mock(XWikiSTSAuthenticator.class));
+			assertTrue(ManagementFactory.getPlatformMBeanServer()
+					.isRegistered(STSMonitor.getObjectName()));
+		} finally {
+			STSMonitor.unregister();
+			STSMonitor.setWebapp(null);
+		}
+	}
+
+	@Test
+	public void testPosCustomReplayCacheSize() {
+		XWikiSTSAuthenticator auth = mock(XWikiSTSAuthenticator.class);
+		STSReplayCache replays = mock(STSReplayCache.class);
+		when(replays.size()).thenReturn(7);
+		when(auth.getCurrentReplayCache()).thenReturn(replays);
+		assertEquals(7, new STSMonitor(auth, new STSMetrics())
+				.getReplayCacheSize());
+	}
+}
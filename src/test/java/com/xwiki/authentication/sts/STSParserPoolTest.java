@@ -0,0 +1,53 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+public class STSParserPoolTest {
+
+	@Before
+	public void setUp() throws Exception {
+		// pool is shared, start with no idle builders
+		while (STSParserPool.getIdleCount() > 0)
+			STSParserPool.borrow();
+	}
+
+	@Test
+	public void testPosBorrowAndRelease() throws Exception {
+		DocumentBuilder builder = STSParserPool.borrow();
+		assertTrue(builder.isNamespaceAware());
+		STSParserPool.release(builder);
+		assertEquals(1, STSParserPool.getIdleCount());
+		long hits = STSParserPool.getHits();
+		assertSame(builder, STSParserPool.borrow());
+		assertEquals(hits + 1, STSParserPool.getHits());
+		assertEquals(0, STSParserPool.getIdleCount());
+		STSParserPool.release(builder);
+	}
+
+	@Test
+	public void testPosMaxPoolSize() throws Exception {
+		try {
+			STSParserPool.setMaxPoolSize(1);
+			assertEquals(1, STSParserPool.getMaxPoolSize());
+			DocumentBuilder first = STSParserPool.borrow();
+			DocumentBuilder second = STSParserPool.borrow();
+			STSParserPool.release(first);
+			// pool is full, builder is dropped
+			STSParserPool.release(second);
+			assertEquals(1, STSParserPool.getIdleCount());
+		} finally {
+			STSParserPool.setMaxPoolSize(STSParserPool.DEFAULT_POOL_SIZE);
+		}
+	}
+
+	@Test(expected = SAXException.class)
+	public void testNegDoctypeRejected() throws Exception {
+		STSParserPool.parse("<!DOCTYPE a [<!ENTITY e SYSTEM \"file:///etc/passwd\">]><a>&e;</a>");
+	}
+}
@@ -0,0 +1,114 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.observation.event.DocumentUpdateEvent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+public class STSProfileSynchronizerTest {
+	STSProfileSynchronizer profiles;
+	Map<String, String> userData;
+	XWikiContext context;
+	XWikiDocument doc;
+	BaseObject userObj;
+	BaseObject stsObj;
+
+	@Before
+	public void setUp() {
+		profiles = new STSProfileSynchronizer(10, 60);
+		profiles.setListening(true);
+		userData = new HashMap<String, String>();
+		userData.put("first_name", "Janis");
+		userData.put("last_name", "Berzins");
+		context = mock(XWikiContext.class);
+		doc = mock(XWikiDocument.class);
+		userObj = mock(BaseObject.class);
+		stsObj = mock(BaseObject.class);
+		when(doc.getFullName()).thenReturn("XWiki.JanisBerzins");
+		when(doc.getObject("XWiki.XWikiUsers")).thenReturn(userObj);
+		when(doc.getObject("XWiki.STSAuthClass")).thenReturn(stsObj);
+	}
+
+	@Test
+	public void testPosHashIgnoresOrder() {
+		Map<String, String> reversed = new LinkedHashMap<String, String>();
+		reversed.put("last_name", "Berzins");
+		reversed.put("first_name", "Janis");
+		assertEquals(STSProfileSynchronizer.claimHash(userData, "smartcard"),
+				STSProfileSynchronizer.claimHash(reversed, "smartcard"));
+		assertFalse(STSProfileSynchronizer.claimHash(userData, "smartcard")
+				.equals(STSProfileSynchronizer.claimHash(userData, "password")));
+	}
+
+	@Test
+	public void testPosSynced() {
+		String hash = STSProfileSynchronizer.claimHash(userData, "smartcard");
+		assertFalse(profiles.isSynced("XWiki.JanisBerzins", hash));
+		profiles.markSynced("XWiki.JanisBerzins", hash);
+		assertTrue(profiles.isSynced("XWiki.JanisBerzins", hash));
+		profiles.onEvent(new DocumentUpdateEvent(), doc, context);
+		assertFalse(profiles.isSynced("XWiki.JanisBerzins", hash));
+	}
+
+	@Test
+	public void testNegNotListening() {
+		profiles.setListening(false);
+		String hash = STSProfileSynchronizer.claimHash(userData, "smartcard");
+		profiles.markSynced("XWiki.JanisBerzins", hash);
+		assertFalse(profiles.isSynced("XWiki.JanisBerzins", hash));
+	}
+
+	@Test
+	public void testPosUpdateChangedField() {
+		when(userObj.get("first_name")).thenReturn(property("Janis"));
+		when(userObj.get("last_name")).thenReturn(property("Ozols"));
+		when(stsObj.get("authtype")).thenReturn(property("smartcard"));
+		String hash = STSProfileSynchronizer.claimHash(userData, "smartcard");
+		assertTrue(profiles.update(doc, userData, "smartcard", hash, context));
+		verify(userObj).set("last_name", "Berzins", context);
+		verify(userObj, never()).set("first_name", "Janis", context);
+		verify(stsObj).set(STSProfileSynchronizer.CLAIM_HASH_FIELD, hash,
+				context);
+	}
+
+	@Test
+	public void testNegUpdateNotChanged() {
+		when(userObj.get("first_name")).thenReturn(property("Janis"));
+		when(userObj.get("last_name")).thenReturn(property("Berzins"));
+		when(stsObj.get("authtype")).thenReturn(property("smartcard"));
+		String hash = STSProfileSynchronizer.claimHash(userData, "smartcard");
+		assertFalse(profiles.update(doc, userData, "smartcard", hash, context));
+		verify(userObj, never()).set(anyString(), anyObject(),
+				(XWikiContext) anyObject());
+	}
+
+	@Test
+	public void testPosLocalEditSetBack() {
+		// claims are the same as last time, but last name was edited
+		String hash = STSProfileSynchronizer.claimHash(userData, "smartcard");
+		when(stsObj.get(STSProfileSynchronizer.CLAIM_HASH_FIELD)).thenReturn(
+				property(hash));
+		when(userObj.get("first_name")).thenReturn(property("Janis"));
+		when(userObj.get("last_name")).thenReturn(property("Edited"));
+		when(stsObj.get("authtype")).thenReturn(property("smartcard"));
+		assertTrue(profiles.update(doc, userData, "smartcard", hash, context));
+		verify(userObj).set("last_name", "Berzins", context);
+	}
+
+	private static BaseProperty property(String value) {
+		BaseProperty prop = mock(BaseProperty.class);
+		when(prop.getValue()).thenReturn(value);
+		return prop;
+	}
+}
@@ -0,0 +1,44 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+public class STSProvisioningLocksTest {
+
+	@Test
+	public void testPosSamePersonSameLock() {
+		STSProvisioningLocks locks = new STSProvisioningLocks(10);
+		assertEquals(16, locks.getStripes());
+		assertSame(locks.lockFor("123456-12345"), locks.lockFor("123456-12345"));
+	}
+
+	@Test
+	public void testNegBusyLockTimesOut() throws Exception {
+		final STSProvisioningLocks locks = new STSProvisioningLocks();
+		Lock lock = locks.tryLock("123456-12345", 0);
+		assertNotNull(lock);
+		try {
+			final AtomicReference<Lock> other = new AtomicReference<Lock>();
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						other.set(locks.tryLock("123456-12345", 10));
+					} catch (InterruptedException e) {
+						// not expected
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+			assertNull(other.get());
+			assertEquals(1, locks.getWaits());
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class STSRecentErrorsTest {
+
+	@Test
+	public void testPosKeepsLatest() {
+		STSRecentErrors errors = new STSRecentErrors(3);
+		for (int i = 1; i <= 5; i++)
+			errors.add("error " + i);
+		List<String> list = errors.snapshot();
+		assertEquals(3, list.size());
+		assertTrue(list.get(0).endsWith("error 3"));
+		assertTrue(list.get(2).endsWith("error 5"));
+		assertEquals(5, errors.getTotal());
+		errors.clear();
+		assertTrue(errors.snapshot().isEmpty());
+	}
+
+	@Test
+	public void testPosTruncatesLongEntry() {
+		STSRecentErrors errors = new STSRecentErrors(1);
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i < STSRecentErrors.MAX_ENTRY_LENGTH * 2; i++)
+			token.append('x');
+		errors.add(token.toString());
+		assertTrue(errors.snapshot().get(0).length() < STSRecentErrors.MAX_ENTRY_LENGTH + 50);
+	}
+
+	@Test
+	public void testPosCollectorAsOneEntry() {
+		STSRecentErrors errors = new STSRecentErrors(4);
+		STSErrorCollector collector = new STSErrorCollector();
+		errors.add(collector);
+		assertEquals(0, errors.getTotal());
+		collector.addError(new Throwable("Wrong token Issuer"));
+		collector.addError(new Throwable("Invalid signature"));
+		errors.add(collector);
+		assertEquals(1, errors.getTotal());
+		String entry = errors.snapshot().get(0);
+		assertTrue(entry.contains("Wrong token Issuer"));
+		assertTrue(entry.contains("Invalid signature"));
+	}
+
+	@Test
+	public void testPosBoundedCollector() {
+		STSErrorCollector collector = new STSErrorCollector();
+		collector.addError("not a throwable");
+		for (int i = 0; i < STSErrorCollector.MAX_ERRORS + 10; i++)
+			collector.addError(new Throwable("error " + i));
+		assertEquals(STSErrorCollector.MAX_ERRORS, collector.geterrorListLength());
+		assertEquals(10, collector.getDropped());
+		assertTrue(collector.listErrors().contains("... 10 more"));
+		collector.clearErrorList();
+		assertEquals("", collector.listErrors());
+	}
+
+	@Test
+	public void testPosConcurrentAdd() throws Exception {
+		final STSRecentErrors errors = new STSRecentErrors(16);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 1000; i++)
+						errors.add("error " + i);
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(4000, errors.getTotal());
+		assertEquals(16, errors.snapshot().size());
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package com.xwiki.authentication.sts;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.saml1.core.Assertion;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.KeyInfoHelper;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Signed test tokens for tests and benchmarks. testToken.xml is expired and
+ * signed by the real STS, so it can't be changed. Fixture copies it with
+ * lifetime starting now, adds generated attributes and signs the assertion
+ * again with the self-signed test key from test-key.pem / test-cert.pem.
+ *
+ * @version 1.0
+ */
+final class STSTokenFixture {
+	private static final String SAML_NS = "urn:oasis:names:tc:SAML:1.0:assertion";
+	private static final String WSU_NS = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd";
+	private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+	private static final String CLAIMS_NS = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
+
+	private final PrivateKey key;
+	private final X509Certificate certificate;
+
+	/**
+	 * <b>STSTokenFixture</b> - loads test key and certificate
+	 */
+	STSTokenFixture() throws Exception {
+		byte[] encoded = Base64.decodeBase64(resource("test-key.pem")
+				.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "")
+				.getBytes("US-ASCII"));
+		key = KeyFactory.getInstance("RSA").generatePrivate(
+				new PKCS8EncodedKeySpec(encoded));
+		InputStream in = STSTokenFixture.class
+				.getResourceAsStream("test-cert.pem");
+		try {
+			certificate = (X509Certificate) CertificateFactory.getInstance(
+					"X509").generateCertificate(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * create(String template, int attributes, int padding, long lifetimeMillis) -
+	 * signed copy of the template token valid from now
+	 *
+	 * @param template String - RSTR with SAML 1.1 assertion
+	 * @param attributes int - number of generated attributes to add
+	 * @param padding int - length of generated padding attribute, 0 - none
+	 * @param lifetimeMillis long - token lifetime
+	 * @return String - RSTR with signed assertion
+	 */
+	String create(String template, int attributes, int padding,
+			long lifetimeMillis) throws Exception {
+		Document document = STSParsedToken.getDocument(template);
+		DateTimeFormatter format = ISODateTimeFormat.dateTime().withZoneUTC();
+		DateTime now = new DateTime();
+		String created = format.print(now);
+		String expires = format.print(now.plus(lifetimeMillis));
+
+		setText(document, WSU_NS, "Created", created);
+		setText(document, WSU_NS, "Expires", expires);
+		Element assertionElement = element(document, SAML_NS, "Assertion");
+		assertionElement.setAttribute("IssueInstant", created);
+		Element conditions = element(document, SAML_NS, "Conditions");
+		conditions.setAttribute("NotBefore", created);
+		conditions.setAttribute("NotOnOrAfter", expires);
+		Element authentication = element(document, SAML_NS,
+				"AuthenticationStatement");
+		authentication.setAttribute("AuthenticationInstant", created);
+
+		Element statement = element(document, SAML_NS, "AttributeStatement");
+		for (int i = 0; i < attributes; i++)
+			addAttribute(statement, "attribute" + i, "value" + i);
+		if (padding > 0) {
+			StringBuilder value = new StringBuilder(padding);
+			for (int i = 0; i < padding; i++)
+				value.append((char) ('a' + i % 26));
+			addAttribute(statement, "padding", value.toString());
+		}
+
+		// old signature is removed, assertion is signed again
+		Element oldSignature = element(document, DSIG_NS, "Signature");
+		oldSignature.getParentNode().removeChild(oldSignature);
+		Assertion assertion = (Assertion) Configuration
+				.getUnmarshallerFactory().getUnmarshaller(assertionElement)
+				.unmarshall(assertionElement);
+		Element signed = sign(assertion);
+		Node imported = document.importNode(signed, true);
+		assertionElement.getParentNode().replaceChild(imported,
+				assertionElement);
+		return XMLHelper.nodeToString(document.getDocumentElement());
+	}
+
+	private Element sign(Assertion assertion) throws Exception {
+		XMLObjectBuilderFactory builders = Configuration.getBuilderFactory();
+		BasicX509Credential credential = new BasicX509Credential();
+		credential.setEntityCertificate(certificate);
+		credential.setPrivateKey(key);
+
+		Signature signature = (Signature) builders.getBuilder(
+				Signature.DEFAULT_ELEMENT_NAME).buildObject(
+				Signature.DEFAULT_ELEMENT_NAME);
+		signature.setSigningCredential(credential);
+		signature
+				.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
+		signature
+				.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+		KeyInfo keyInfo = (KeyInfo) builders.getBuilder(
+				KeyInfo.DEFAULT_ELEMENT_NAME).buildObject(
+				KeyInfo.DEFAULT_ELEMENT_NAME);
+		KeyInfoHelper.addCertificate(keyInfo, certificate);
+		signature.setKeyInfo(keyInfo);
+
+		assertion.setSignature(signature);
+		if (signature.getContentReferences().isEmpty())
+			signature.getContentReferences().add(
+					new SAMLObjectContentReference(assertion));
+		Element element = Configuration.getMarshallerFactory()
+				.getMarshaller(assertion).marshall(assertion);
+		Signer.signObject(signature);
+		return element;
+	}
+
+	private static void addAttribute(Element statement, String name,
+			String value) {
+		Document document = statement.getOwnerDocument();
+		Element attribute = document.createElementNS(SAML_NS,
+				"saml:Attribute");
+		attribute.setAttribute("AttributeName", name);
+		attribute.setAttribute("AttributeNamespace", CLAIMS_NS);
+		Element attributeValue = document.createElementNS(SAML_NS,
+				"saml:AttributeValue");
+		attributeValue.setTextContent(value);
+		attribute.appendChild(attributeValue);
+		statement.appendChild(attribute);
+	}
+
+	private static Element element(Document document, String namespace,
+			String name) {
+		NodeList nodes = document.getElementsByTagNameNS(namespace, name);
+		if (nodes.getLength() == 0)
+			throw new IllegalArgumentException("Token has no " + name);
+		return (Element) nodes.item(0);
+	}
+
+	private static void setText(Document document, String namespace,
+			String name, String text) {
+		element(document, namespace, name).setTextContent(text);
+	}
+
+	private static String resource(String name) throws IOException {
+		InputStream in = STSTokenFixture.class.getResourceAsStream(name);
+		try {
+			return IOUtils.toString(in, "US-ASCII");
+		} finally {
+			in.close();
+		}
+	}
+}
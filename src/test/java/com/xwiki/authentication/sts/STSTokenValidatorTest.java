@@ -9,7 +9,9 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -19,11 +21,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.opensaml.common.SignableSAMLObject;
 
 public class STSTokenValidatorTest {
 	private static Log log = LogFactory.getLog(STSTokenValidatorTest.class);
 	static File testFile;
-	static STSTokenValidator validator;
 	static String context;
 	static String issuer;
 	static String testToken;
@@ -31,13 +33,11 @@ public class STSTokenValidatorTest {
 	static String issuerDN;
 	static List<String> subjectDNs;
 	static List<URI> audienceUris;
-	static boolean validateExpiration;
 	static int maxClockSkew = 60000;
 	static STSErrorCollector errorCollector = new STSErrorCollector();
 
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
-		validator = new STSTokenValidator();
 		subjectDNs = new ArrayList<String>();
 		audienceUris = new ArrayList<URI>();
 
@@ -55,19 +55,7 @@ public class STSTokenValidatorTest {
 
 	@Before
 	public void setUp() {
-
-		// validator prefilling with common test settings
-		validator.setSubjectDNs(subjectDNs);
-		validator.setAudienceUris(audienceUris);
-		validator.setEntityId(entityId);
-		validator.setIssuerDN(issuerDN);
-		validator.setIssuer(issuer);
-		validator.setContext(context);
-		validator.setValidateExpiration(false);
-		validator.setMaxClockSkew(maxClockSkew);
 		testFile = new File("testToken.xml");
-		validator.setCertificate(null);
-		validator.setSTSErrorCollector(errorCollector);
 
 		try {
 			testToken = FileUtils.readFileToString(testFile);
@@ -78,9 +66,27 @@ public class STSTokenValidatorTest {
 	
 	@After 
 	public void tearDown() {
-		log.info(validator.errorCollector.listErrors());
+		log.info(errorCollector.listErrors());
+		errorCollector.clearErrorList();
 }
 
+	/**
+	 * Validator with common test settings
+	 */
+	private STSTokenValidator validator() throws Exception {
+		return validator(subjectDNs, audienceUris, issuer, issuerDN, entityId,
+				null, false);
+	}
+
+	private STSTokenValidator validator(List<String> subjectDNs,
+			List<URI> audienceUris, String issuer, String issuerDN,
+			String entityId, X509Certificate certificate,
+			boolean validateExpiration) throws Exception {
+		return new STSTokenValidator(subjectDNs, audienceUris, issuer,
+				issuerDN, entityId, certificate, validateExpiration,
+				maxClockSkew);
+	}
+
 	@Test
 	public void testNegBadSignature() throws Exception {
 		// Current settings
@@ -89,7 +95,7 @@ public class STSTokenValidatorTest {
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator().validate(testToken, context, errorCollector);
 			log.error("testNegBadSignature failed");
 
 		} catch (Exception e) {
@@ -108,18 +114,17 @@ public class STSTokenValidatorTest {
 		// Current settings
 		List<String> wrongIssuers = new ArrayList<String>();
 		wrongIssuers.add("Wrong Issuer");
-		validator.setSubjectDNs(wrongIssuers);
+		STSTokenValidator validator = validator(wrongIssuers, audienceUris,
+				issuer, issuerDN, entityId, null, false);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongSubjectDNs failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
 			Assert.assertEquals("Wrong token SubjectDN", e.getMessage());
 			log.info("testNegWrongSubjectDNs passed");
-		} finally {
-			validator.setSubjectDNs(subjectDNs);
 		}
 	}
 
@@ -128,66 +133,64 @@ public class STSTokenValidatorTest {
 		// Current settings
 		List<URI> wrongAudienceUris = new ArrayList<URI>();
 		wrongAudienceUris.add(new URI("http://Wrong/Audience"));
-		validator.setAudienceUris(wrongAudienceUris);
+		STSTokenValidator validator = validator(subjectDNs,
+				wrongAudienceUris, issuer, issuerDN, entityId, null, false);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongAudience failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
 			Assert.assertEquals("The token applies to an untrusted audience: "
 					+ audienceUris.get(0), e.getMessage());
 			log.info("testNegWrongAudience passed");
-		} finally {
-			validator.setAudienceUris(audienceUris);
 		}
 	}
 
 	@Test
 	public void testNegWrongEntityId() throws Exception {
 		// Current settings
-		validator.setEntityId("WrongEntityId");
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				issuer, issuerDN, "WrongEntityId", null, false);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongEntityId failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
 			Assert.assertEquals("Invalid signature", e.getMessage());
 			log.info("testNegWrongEntityId passed");
-		} finally {
-			validator.setEntityId(entityId);
 		}
 	}
 
 	@Test
 	public void testNegWrongIssuerDN() throws Exception {
 		// Current settings
-		validator.setIssuerDN("WrongIssuerDN");
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				issuer, "WrongIssuerDN", entityId, null, false);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongIssuerDN failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
 			Assert.assertEquals("Wrong token IssuerDN", e.getMessage());
 			log.info("testNegWrongIssuerDN passed");
-		} finally {
-			validator.setIssuerDN(issuerDN);
 		}
 	}
 
 	@Test
 	public void testNegWrongDate() throws Exception {
 		// Current settings
-		validator.setValidateExpiration(true);
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				issuer, issuerDN, entityId, null, true);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongDate failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
@@ -195,19 +198,16 @@ public class STSTokenValidatorTest {
 					"Token Created or Expires elements have been expired",
 					e.getMessage());
 			log.info("testNegWrongDate passed");
-		} finally {
-			validator.setValidateExpiration(false);
 		}
 	}
 
 	@Test
 	public void testNegWrongContext() throws Exception {
-		// Current settings
-		validator.setContext("WrongContext");
-		// Validate token
+		// Validate token with wrong context
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator().validate(testToken, "WrongContext",
+					errorCollector);
 			log.error("testNegWrongContext failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
@@ -215,33 +215,194 @@ public class STSTokenValidatorTest {
 					"Wrong token Context. Suspected: WrongContext got: "
 							+ context, e.getMessage());
 			log.info("testNegWrongContext passed");
-		} finally {
-			validator.setContext(context);
 		}
 	}
 
 	@Test
 	public void testNegWrongIssuer() throws Exception {
 		// Current settings
-		validator.setIssuer("WrongIssuer");
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				"WrongIssuer", issuerDN, entityId, null, false);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
+			claims = validator.validate(testToken, context, errorCollector);
 			log.error("testNegWrongIssuer failed");
 		} catch (STSException e) {
 			Assert.assertEquals(claims, null);
 			Assert.assertEquals("Wrong token Issuer", e.getMessage());
 			log.info("testNegWrongIssuer passed");
-		} finally {
-			validator.setIssuer(issuer);
 		}
 	}
 
+	@Test
+	public void testNegStopsOnFirstError() throws Exception {
+		List<URI> wrongAudienceUris = new ArrayList<URI>();
+		wrongAudienceUris.add(new URI("http://Wrong/Audience"));
+		STSTokenValidator validator = new STSTokenValidator(subjectDNs,
+				wrongAudienceUris, issuer, "WrongIssuerDN", entityId,
+				(STSTrustStore) null, false, maxClockSkew);
+		STSValidationResult result = validator.check(new STSParsedToken(
+				testToken), context);
+		Assert.assertFalse(result.isValid());
+		Assert.assertEquals(Arrays.asList(STSValidationError.ISSUER_DN),
+				result.getErrors());
+		STSValidationException e = result.toException(errorCollector);
+		Assert.assertEquals(STSValidationError.ISSUER_DN, e.getError());
+		Assert.assertEquals(0, e.getStackTrace().length);
+	}
+
+	@Test
+	public void testNegCollectAllErrors() throws Exception {
+		List<URI> wrongAudienceUris = new ArrayList<URI>();
+		wrongAudienceUris.add(new URI("http://Wrong/Audience"));
+		STSTokenValidator validator = new STSTokenValidator(subjectDNs,
+				wrongAudienceUris, issuer, "WrongIssuerDN", entityId,
+				(STSTrustStore) null, false, maxClockSkew, true);
+		STSValidationResult result = validator.check(new STSParsedToken(
+				testToken), context);
+		Assert.assertEquals(Arrays.asList(STSValidationError.ISSUER_DN,
+				STSValidationError.AUDIENCE), result.getErrors());
+		// the last failure is thrown, as before
+		try {
+			validator.validate(testToken, context, errorCollector);
+			Assert.fail();
+		} catch (STSValidationException e) {
+			Assert.assertEquals(STSValidationError.AUDIENCE, e.getError());
+		}
+	}
+
+	@Test
+	public void testNegCollectAllErrorsFromPrecheck() throws Exception {
+		List<URI> wrongAudienceUris = new ArrayList<URI>();
+		wrongAudienceUris.add(new URI("http://Wrong/Audience"));
+		// token lifetime ended in 2016
+		STSTokenValidator validator = new STSTokenValidator(subjectDNs,
+				wrongAudienceUris, issuer, issuerDN, entityId,
+				(STSTrustStore) null, true, maxClockSkew, true);
+		STSValidationResult result = validator.check(new STSParsedToken(
+				testToken), "WrongContext");
+		Assert.assertEquals(Arrays.asList(STSValidationError.CONTEXT,
+				STSValidationError.EXPIRED, STSValidationError.AUDIENCE,
+				STSValidationError.EXPIRED), result.getErrors());
+		Assert.assertTrue(result.getMessage(STSValidationError.CONTEXT)
+				.contains("WrongContext"));
+		// exception of the last made check is thrown, all are collected
+		STSErrorCollector collector = new STSErrorCollector();
+		try {
+			validator.validate(testToken, "WrongContext", collector);
+			Assert.fail();
+		} catch (STSValidationException e) {
+			Assert.assertEquals(STSValidationError.EXPIRED, e.getError());
+		}
+		Assert.assertEquals(4, collector.geterrorListLength());
+
+		// without collecting, validation stops on the context
+		validator = new STSTokenValidator(subjectDNs, wrongAudienceUris,
+				issuer, issuerDN, entityId, (STSTrustStore) null, true,
+				maxClockSkew);
+		Assert.assertEquals(Arrays.asList(STSValidationError.CONTEXT),
+				validator.check(new STSParsedToken(testToken), "WrongContext")
+						.getErrors());
+	}
+
+	@Test
+	public void testPosSignatureCacheHit() throws Exception {
+		final AtomicInteger verified = new AtomicInteger();
+		STSTokenValidator validator = countingValidator(verified);
+		String token = notExpiredToken();
+		validator.validate(token, context, errorCollector);
+		List<STSClaim> claims = validator.validate(token, context,
+				errorCollector);
+		Assert.assertFalse(claims.isEmpty());
+		// second validation of the same token uses cached signature
+		Assert.assertEquals(1, verified.get());
+	}
+
+	@Test
+	public void testNegSignatureCacheChangedContent() throws Exception {
+		final AtomicInteger verified = new AtomicInteger();
+		STSTokenValidator validator = countingValidator(verified);
+		String token = notExpiredToken();
+		validator.validate(token, context, errorCollector);
+		// same AssertionID, changed claim
+		String changed = token.replace(">ARTJOMS<", ">JANIS<");
+		Assert.assertFalse(changed.equals(token));
+		validator.validate(changed, context, errorCollector);
+		Assert.assertEquals(2, verified.get());
+	}
+
+	@Test
+	public void testNegSignatureCacheDisabled() throws Exception {
+		final AtomicInteger verified = new AtomicInteger();
+		STSTokenValidator validator = countingValidator(verified);
+		validator.setSignatureCacheEnabled(false);
+		String token = notExpiredToken();
+		validator.validate(token, context, errorCollector);
+		validator.validate(token, context, errorCollector);
+		// as with replay check on, signature is verified every time
+		Assert.assertEquals(2, verified.get());
+	}
+
+	/**
+	 * Validator counting signature checks, signature is always valid
+	 */
+	private STSTokenValidator countingValidator(final AtomicInteger verified)
+			throws Exception {
+		return new STSTokenValidator(subjectDNs, audienceUris, issuer,
+				issuerDN, entityId, (X509Certificate) null, false,
+				maxClockSkew) {
+			@Override
+			boolean validateToken(SignableSAMLObject samlToken) {
+				verified.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Test token with NotOnOrAfter in the future, so its signature can be
+	 * cached. Signature isn't valid any more.
+	 */
+	private String notExpiredToken() {
+		String token = testToken.replace("2016-11-01T18:04:57.762Z",
+				"2099-11-01T18:04:57.762Z");
+		Assert.assertFalse(token.equals(testToken));
+		return token;
+	}
+
+	@Test
+	public void testNegEmptyTrustStoreRejectsSelfSignedToken()
+			throws Exception {
+		STSTokenFixture fixture = new STSTokenFixture();
+		X509Certificate cert = fixture.getCertificate();
+		String token = fixture.create(testToken, 0, 0, 60 * 60 * 1000L);
+		List<String> dns = Arrays.asList(cert.getSubjectDN().getName());
+		String certIssuerDN = cert.getIssuerDN().getName();
+
+		// issuer and DN checks trust the self-signed certificate of the token
+		STSTokenValidator byDNs = new STSTokenValidator(dns, audienceUris,
+				issuer, certIssuerDN, entityId, (STSTrustStore) null, true,
+				maxClockSkew);
+		Assert.assertTrue(byDNs.check(new STSParsedToken(token), context)
+				.isValid());
+
+		// broken trust store trusts nothing
+		STSTokenValidator validator = new STSTokenValidator(dns,
+				audienceUris, issuer, certIssuerDN, entityId,
+				STSTrustStore.NONE, true, maxClockSkew);
+		Assert.assertSame(STSTrustStore.NONE, validator.getTrustStore());
+		STSValidationResult result = validator.check(new STSParsedToken(
+				token), context);
+		Assert.assertEquals(Arrays.asList(STSValidationError.CERTIFICATE),
+				result.getErrors());
+	}
+
 	@Test
 	public void testPosValidationUsingMetadata() throws Exception {
 		// Validate token
-		List<STSClaim> claims = validator.validate(testToken);
+		List<STSClaim> claims = validator().validate(testToken, context,
+				errorCollector);
 		log.info("Validation passed. Claims: " + claims.size());
 		for (int i = 0; i < claims.size(); i++) {
 			log.debug("claim " + claims.get(i).getClaimType() + ' '
@@ -253,9 +414,11 @@ public class STSTokenValidatorTest {
 	@Test
 	public void testPosValidationUsingCertificate() throws Exception {
 
-		validator.setCertificate(getCert("VISS.LVP.STS.cer"));
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				issuer, issuerDN, entityId, getCert("VISS.LVP.STS.cer"), false);
 		// Validate token
-		List<STSClaim> claims = validator.validate(testToken);
+		List<STSClaim> claims = validator.validate(testToken, context,
+				errorCollector);
 		log.info("Validation passed. Claims: " + claims.size());
 		for (int i = 0; i < claims.size(); i++) {
 			log.debug("claim " + claims.get(i).getClaimType() + ' '
@@ -264,28 +427,49 @@ public class STSTokenValidatorTest {
 		log.info("testPosValidationUsingCertificate passed");
 	}
 
+	@Test
+	public void testPosValidationUsingTrustStore() throws Exception {
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		certs.add(getCert("VISS.LVP.STS.wrong.cer"));
+		certs.add(getCert("VISS.LVP.STS.cer"));
+		STSTokenValidator validator = new STSTokenValidator(subjectDNs,
+				audienceUris, issuer, issuerDN, entityId,
+				STSTrustStore.fromCertificates(certs), false, maxClockSkew);
+		// Validate token
+		List<STSClaim> claims = validator.validate(testToken, context,
+				errorCollector);
+		Assert.assertNotNull(claims);
+		log.info("testPosValidationUsingTrustStore passed");
+	}
+
 	@Test(expected = STSException.class)
 	public void testNegValidationUsingWrongCertificate() throws Exception {
 
-		validator.setCertificate(getCert("VISS.LVP.STS.wrong.cer"));
+		STSTokenValidator validator = validator(subjectDNs, audienceUris,
+				issuer, issuerDN, entityId,
+				getCert("VISS.LVP.STS.wrong.cer"), false);
 		// Validate token
-		validator.validate(testToken);
+		validator.validate(testToken, context, errorCollector);
 	}
 	
 	@Test
 	public void testNegBadToken() throws Exception {
 		// Current settings
-		validator.errorCollector.clearErrorList();
 		File tamperedFile = new File("tamperedToken1.xml");
 		testToken = FileUtils.readFileToString(tamperedFile);
 		// Validate token
 		List<STSClaim> claims = null;
 		try {
-			claims = validator.validate(testToken);
-			log.error(validator.errorCollector.listErrors());
+			claims = validator().validate(testToken, context, errorCollector);
+			log.error(errorCollector.listErrors());
 		} catch (Exception e) {
+			// tampered token is rejected by envelope pre-check before its
+			// signature is verified
 			Assert.assertEquals(claims, null);
-			Assert.assertEquals("Invalid signature", e.getMessage());
+			Assert.assertEquals(
+					"Wrong token Context. Suspected: " + context
+							+ " got: c6ibufXPEnVbU9hYc5rplyhjtEpWHEKWuMAJ8ryk4f",
+					e.getMessage());
 			log.info("testNegBadToken passed");
 		} finally {
 			// Renew default settings
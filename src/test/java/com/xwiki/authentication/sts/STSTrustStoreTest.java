@@ -0,0 +1,82 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class STSTrustStoreTest {
+	X509Certificate cert;
+	X509Certificate wrongCert;
+	File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		cert = getCert("VISS.LVP.STS.cer");
+		wrongCert = getCert("VISS.LVP.STS.wrong.cer");
+		dir = new File(System.getProperty("java.io.tmpdir"), "sts-trust-"
+				+ System.nanoTime());
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testPosFromCertificates() throws Exception {
+		STSTrustStore store = STSTrustStore.fromCertificates(Arrays.asList(
+				cert, wrongCert));
+		assertEquals(2, store.size());
+		assertSame(cert, store.get(getCert("VISS.LVP.STS.cer")));
+		assertTrue(store.isTrusted(wrongCert));
+	}
+
+	@Test
+	public void testNegNotTrusted() throws Exception {
+		STSTrustStore store = STSTrustStore.fromCertificate(cert);
+		assertFalse(store.isTrusted(wrongCert));
+		assertNull(store.get(null));
+	}
+
+	@Test
+	public void testPosLoadFile() throws Exception {
+		STSTrustStore store = STSTrustStore.load("VISS.LVP.STS.cer", null,
+				null);
+		assertEquals(1, store.size());
+		assertTrue(store.isTrusted(cert));
+	}
+
+	@Test
+	public void testPosLoadDirectory() throws Exception {
+		FileUtils.copyFile(new File("VISS.LVP.STS.cer"), new File(dir,
+				"old.cer"));
+		FileUtils.copyFile(new File("VISS.LVP.STS.wrong.cer"), new File(dir,
+				"new.cer"));
+		FileUtils.writeStringToFile(new File(dir, "readme.txt"), "not a cert");
+		STSTrustStore store = STSTrustStore.load(dir.getPath(), null, null);
+		assertEquals(2, store.size());
+		assertTrue(store.isTrusted(cert));
+		assertTrue(store.isTrusted(wrongCert));
+	}
+
+	private X509Certificate getCert(String filename) throws Exception {
+		InputStream in = new FileInputStream(filename);
+		try {
+			return (X509Certificate) CertificateFactory.getInstance("X509")
+					.generateCertificate(in);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.xwiki.authentication.sts;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.observation.event.DocumentDeleteEvent;
+import org.xwiki.observation.event.DocumentSaveEvent;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+public class STSUserCacheTest {
+	STSUserCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new STSUserCache(10, 60);
+	}
+
+	@Test
+	public void testPosGet() {
+		cache.put("nameid", "123456-12345", "XWiki.JanisBerzins");
+		assertEquals("XWiki.JanisBerzins", cache.get("nameid", "123456-12345"));
+		assertNull(cache.get("personid", "123456-12345"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+	}
+
+	@Test
+	public void testNegInvalidatedOnSave() {
+		cache.put("nameid", "123456-12345", "XWiki.JanisBerzins");
+		cache.put("nameid", "123456-54321", "XWiki.Other");
+		XWikiDocument doc = mock(XWikiDocument.class);
+		when(doc.getFullName()).thenReturn("XWiki.JanisBerzins");
+		cache.onEvent(new DocumentSaveEvent(), doc, null);
+		assertNull(cache.get("nameid", "123456-12345"));
+		assertEquals("XWiki.Other", cache.get("nameid", "123456-54321"));
+	}
+
+	@Test
+	public void testNegInvalidatedOnDelete() {
+		cache.put("nameid", "123456-12345", "XWiki.JanisBerzins");
+		XWikiDocument doc = mock(XWikiDocument.class);
+		when(doc.getFullName()).thenReturn("XWiki.JanisBerzins");
+		cache.onEvent(new DocumentDeleteEvent(), doc, null);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testNegExpired() {
+		cache = new STSUserCache(10, 0);
+		cache.put("nameid", "123456-12345", "XWiki.JanisBerzins");
+		assertNull(cache.get("nameid", "123456-12345"));
+	}
+}
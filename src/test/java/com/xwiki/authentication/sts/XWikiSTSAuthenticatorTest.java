@@ -51,6 +51,7 @@ public class XWikiSTSAuthenticatorTest extends AbstractComponentTestCase {
 	XWikiContext context;
 	XWikiSTSAuthenticator auth;
 	XWiki wiki, wikispy;
+	HttpSession session;
 
 	@SuppressWarnings("deprecation")
 	@Before
@@ -60,7 +61,7 @@ public class XWikiSTSAuthenticatorTest extends AbstractComponentTestCase {
 		wiki = mock(XWiki.class);
 		context = mock(XWikiContext.class);
 		XWikiRequest request = mock(XWikiRequest.class);
-		HttpSession session = mock(HttpSession.class);
+		session = mock(HttpSession.class);
 		XWikiDocument doc = mock(XWikiDocument.class);
 		BaseObject baseObj = mock(BaseObject.class);
 		BaseProperty baseProp = mock(BaseProperty.class);
@@ -82,11 +83,11 @@ public class XWikiSTSAuthenticatorTest extends AbstractComponentTestCase {
 		when(wiki.Param("xwiki.authentication.sts.auth_field")).thenReturn("sts_user");
 		when(wiki.Param("xwiki.authentication.sts.stsauthclass_id_field")).thenReturn("nameid");
 		when(wiki.exists(anyString(), (XWikiContext) anyObject())).thenReturn(false, true);
-		List<Object> xwikilist0 = new ArrayList<Object>(0);
-		List<Object> xwikilist1 = new ArrayList<Object>(1);
+		List<String> xwikilist0 = new ArrayList<String>(0);
+		List<String> xwikilist1 = new ArrayList<String>(1);
 		// xwikilist1.add("ValdisVitolins");
 
-		when(wiki.search(anyString(), (XWikiContext) anyObject())).thenReturn(xwikilist0, xwikilist1);
+		when(wiki.searchDocuments(anyString(), anyInt(), anyInt(), (List<?>) anyObject(), (XWikiContext) anyObject())).thenReturn(xwikilist0, xwikilist1);
 
 		when(wiki.getDocument(anyString(), (XWikiContext) anyObject())).thenReturn(doc);
 
@@ -164,11 +165,25 @@ public class XWikiSTSAuthenticatorTest extends AbstractComponentTestCase {
 
 	}
 
+	@Test
+	public void checkAuthFastPathTest() throws XWikiException {
+		when(context.isMainWiki()).thenReturn(true);
+		when(context.getAction()).thenReturn("view");
+		when(session.getAttribute("sts_user.xwikiuser")).thenReturn(
+				new STSSessionUser("XWiki.ValdisVitolins"));
+		XWikiUser user = auth.checkAuth(context);
+		assertEquals("XWiki.ValdisVitolins", user.getUser());
+		assertSame(user, auth.checkAuth(context));
+		verify(session, never()).getAttribute("sts_user");
+	}
+
 	@Test
 	public void checkSTSResponseTest() {
 		try {
 			log.info("checkSTSResponse(context) negative test");
 			assertFalse("checkSTSResponse(context) negative test failed", auth.checkSTSResponse(context));
+			// configuration is read once, reload it to get next stubbed wct/wctx values
+			auth.reloadConfiguration();
 			log.info("checkSTSResponse(context) new user");
 			assertTrue("checkSTSResponse(context) new user failed", auth.checkSTSResponse(context));
 			assertTrue("checkSTSResponse(context) update user failed", auth.checkSTSResponse(context));